@@ -30,6 +30,7 @@ public class FastForwardAgent {
         modules.add(com.spotify.ffwd.debug.DebugModule.class);
         modules.add(com.spotify.ffwd.json.JsonModule.class);
         modules.add(com.spotify.ffwd.protobuf.ProtobufModule.class);
+        modules.add(com.spotify.ffwd.binary.BinaryModule.class);
         modules.add(com.spotify.ffwd.serializer.BuiltInSerializers.class);
         modules.add(com.spotify.ffwd.noop.NoopModule.class);
 
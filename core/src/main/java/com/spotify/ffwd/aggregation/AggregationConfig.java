@@ -0,0 +1,60 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.aggregation;
+
+import java.util.List;
+
+import lombok.Data;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.spotify.ffwd.model.Metric;
+
+@Data
+public class AggregationConfig {
+    public static final long DEFAULT_WINDOW = 10000;
+    public static final List<AggregationRule> DEFAULT_RULES = ImmutableList.of();
+
+    private final long window;
+    private final List<AggregationRule> rules;
+
+    @JsonCreator
+    public AggregationConfig(@JsonProperty("window") Long window,
+            @JsonProperty("rules") List<AggregationRule> rules) {
+        this.window = Optional.fromNullable(window).or(DEFAULT_WINDOW);
+        this.rules = Optional.fromNullable(rules).or(DEFAULT_RULES);
+
+        if (this.window <= 0)
+            throw new IllegalArgumentException("window must be positive");
+    }
+
+    /**
+     * Find the first rule matching the given metric.
+     *
+     * @return The matching rule, or {@code null} if the metric should not be aggregated.
+     */
+    public AggregationRule match(final Metric metric) {
+        for (final AggregationRule rule : rules) {
+            if (rule.getMatcher().matches(metric))
+                return rule;
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,88 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.aggregation;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import lombok.Data;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+
+@Data
+public class AggregationRule {
+    public static final List<Statistic> DEFAULT_STATISTICS = ImmutableList.copyOf(Statistic.values());
+    public static final List<Double> DEFAULT_QUANTILES = ImmutableList.of();
+
+    private final MetricMatcher matcher;
+    private final List<Statistic> statistics;
+    private final List<Double> quantiles;
+    private final double accuracy;
+
+    /* value of the stat attribute for each quantile, like p99 */
+    private final List<String> quantileIds;
+
+    @JsonCreator
+    public AggregationRule(@JsonProperty("prefix") String prefix, @JsonProperty("attribute") String attribute,
+            @JsonProperty("value") String value, @JsonProperty("statistics") List<String> statistics,
+            @JsonProperty("quantiles") List<Double> quantiles, @JsonProperty("accuracy") Double accuracy) {
+        this.matcher = new MetricMatcher(prefix, attribute, value);
+        this.statistics = parseStatistics(statistics);
+        this.quantiles = Optional.fromNullable(quantiles).or(DEFAULT_QUANTILES);
+        this.accuracy = Optional.fromNullable(accuracy).or(QuantileSketch.DEFAULT_ACCURACY);
+        this.quantileIds = quantileIds(this.quantiles);
+
+        if (this.accuracy <= 0 || this.accuracy >= 1)
+            throw new IllegalArgumentException("accuracy must be between 0 and 1");
+    }
+
+    /**
+     * If quantiles should be estimated for matching series.
+     */
+    public boolean hasQuantiles() {
+        return !quantiles.isEmpty();
+    }
+
+    private List<Statistic> parseStatistics(List<String> statistics) {
+        if (statistics == null)
+            return DEFAULT_STATISTICS;
+
+        final List<Statistic> result = new ArrayList<>(statistics.size());
+
+        for (final String s : statistics)
+            result.add(Statistic.parse(s));
+
+        return result;
+    }
+
+    private List<String> quantileIds(List<Double> quantiles) {
+        final List<String> ids = new ArrayList<>(quantiles.size());
+
+        for (final double q : quantiles) {
+            if (q < 0 || q > 1)
+                throw new IllegalArgumentException("quantile must be between 0 and 1: " + q);
+
+            ids.add("p" + BigDecimal.valueOf(q).movePointRight(2).stripTrailingZeros().toPlainString());
+        }
+
+        return ids;
+    }
+}
@@ -0,0 +1,354 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.aggregation;
+
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import com.google.inject.Inject;
+import com.spotify.ffwd.model.Metric;
+
+/**
+ * Aggregates samples of the same series into one metric for each statistic and window.
+ *
+ * Windows are aligned to wall-clock time, so that agents aggregating the same series emit matching points. Each series
+ * has a cell keyed by its {@link Series#fingerprint(Metric)}, so samples of different hosts are never merged. A cell
+ * holds the state of its current window, and is only locked to update or take that cell. A cell is emitted when its
+ * window has passed, either by the periodic flush or by the next sample of the series, whichever comes first.
+ *
+ * Emitted metrics have the time of the start of their window, and the statistic in the {@code stat} attribute. A
+ * series that already has a statistic, like a rate, keeps it as a prefix (e.g. {@code rate-sum}). Quantiles are
+ * estimated with a {@link QuantileSketch} per series, which is reused for every window.
+ */
+@Slf4j
+public class Aggregator {
+    /* windows without samples before the cell of a series is dropped */
+    private static final int IDLE_WINDOWS = 2;
+
+    public static interface Emitter {
+        public void emit(Metric metric);
+    }
+
+    @Inject
+    private AggregationConfig config;
+
+    @Inject
+    private Timer timer;
+
+    @Inject
+    private ExecutorService executor;
+
+    private final ConcurrentMap<Long, Cell> cells = new ConcurrentHashMap<>();
+
+    private final Object $lock = new Object();
+    private volatile Emitter emitter;
+    private Timeout flush;
+
+    /**
+     * Add a sample to its series, if an aggregation rule matches it.
+     *
+     * @return {@code true} if the sample was aggregated, {@code false} if it should be passed on as-is.
+     */
+    public boolean offer(final Metric metric) {
+        return offer(metric, System.currentTimeMillis());
+    }
+
+    boolean offer(final Metric metric, final long now) {
+        final Emitter emitter = this.emitter;
+
+        if (emitter == null)
+            return false;
+
+        final AggregationRule rule = config.match(metric);
+
+        if (rule == null)
+            return false;
+
+        final long window = windowOf(now);
+        final long fingerprint = Series.fingerprint(metric);
+
+        while (true) {
+            final Cell cell = cellFor(fingerprint, metric, rule);
+            final Snapshot stale;
+
+            synchronized (cell) {
+                // dropped by a concurrent flush, use a new cell.
+                if (cell.evicted)
+                    continue;
+
+                stale = cell.add(window, metric.getValue());
+            }
+
+            if (stale != null)
+                emit(emitter, cell, stale);
+
+            return true;
+        }
+    }
+
+    public void start(final Emitter emitter) {
+        synchronized ($lock) {
+            this.emitter = emitter;
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Stop aggregating, and emit every cell that has samples.
+     */
+    public void stop() {
+        final Emitter emitter;
+
+        synchronized ($lock) {
+            emitter = this.emitter;
+            this.emitter = null;
+
+            if (flush != null) {
+                flush.cancel();
+                flush = null;
+            }
+        }
+
+        if (emitter != null)
+            flush(emitter, Long.MAX_VALUE);
+    }
+
+    private long windowOf(final long time) {
+        return time - (time % config.getWindow());
+    }
+
+    /**
+     * Number of series with a cell.
+     */
+    int size() {
+        return cells.size();
+    }
+
+    private Cell cellFor(final long fingerprint, final Metric metric, final AggregationRule rule) {
+        final Cell cell = cells.get(fingerprint);
+
+        if (cell != null)
+            return cell;
+
+        final Cell created = new Cell(fingerprint, metric, rule);
+        final Cell existing = cells.putIfAbsent(fingerprint, created);
+        return existing != null ? existing : created;
+    }
+
+    private void scheduleFlush() {
+        final long now = System.currentTimeMillis();
+        final long delay = windowOf(now) + config.getWindow() - now;
+
+        flush = timer.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized ($lock) {
+                            if (emitter == null)
+                                return;
+
+                            try {
+                                flush(emitter, windowOf(System.currentTimeMillis()));
+                            } catch (Exception e) {
+                                log.error("Failed to flush aggregated metrics", e);
+                            }
+
+                            scheduleFlush();
+                        }
+                    }
+                });
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Emit all cells with samples from windows before the given one, and drop cells that have been idle for a while.
+     */
+    void flush(final Emitter emitter, final long current) {
+        final long idle = IDLE_WINDOWS * config.getWindow();
+
+        for (final Cell cell : cells.values()) {
+            final Snapshot snapshot;
+
+            synchronized (cell) {
+                snapshot = cell.takeBefore(current);
+
+                if (snapshot == null && cell.isIdle(current, idle)) {
+                    cell.evicted = true;
+                    cells.remove(cell.fingerprint, cell);
+                }
+            }
+
+            if (snapshot != null)
+                emit(emitter, cell, snapshot);
+        }
+    }
+
+    private void emit(final Emitter emitter, final Cell cell, final Snapshot snapshot) {
+        final Metric series = cell.series;
+        final Date time = new Date(snapshot.window);
+
+        for (final Statistic s : cell.rule.getStatistics()) {
+            final Map<String, String> attributes = new HashMap<>(series.getAttributes());
+            attributes.put(Statistic.ATTRIBUTE, stat(series, s.id()));
+
+            emitter.emit(new Metric(series.getKey(), snapshot.value(s), time, series.getHost(), series.getTags(),
+                    attributes, series.getProc()));
+        }
+
+        final List<String> ids = cell.rule.getQuantileIds();
+
+        for (int i = 0; i < ids.size(); i++) {
+            final Map<String, String> attributes = new HashMap<>(series.getAttributes());
+            attributes.put(Statistic.ATTRIBUTE, stat(series, ids.get(i)));
+
+            emitter.emit(new Metric(series.getKey(), snapshot.quantiles[i], time, series.getHost(),
+                    series.getTags(), attributes, series.getProc()));
+        }
+    }
+
+    /**
+     * Value of the stat attribute for the given statistic of a series, prefixed by the statistic of the series itself.
+     */
+    private static String stat(final Metric series, final String id) {
+        final String existing = series.getAttributes().get(Statistic.ATTRIBUTE);
+        return existing != null ? existing + "-" + id : id;
+    }
+
+    /**
+     * State of a single series, guarded by its own monitor.
+     */
+    private static final class Cell {
+        private final long fingerprint;
+        /* the first sample of the series, which provides its key, host, tags and attributes */
+        private final Metric series;
+        private final AggregationRule rule;
+        private final QuantileSketch sketch;
+
+        private long window;
+        private long count;
+        private double sum;
+        private double min;
+        private double max;
+        private double last;
+        private boolean evicted;
+
+        private Cell(final long fingerprint, final Metric series, final AggregationRule rule) {
+            this.fingerprint = fingerprint;
+            this.series = series;
+            this.rule = rule;
+            this.sketch = rule.hasQuantiles() ? new QuantileSketch(rule.getAccuracy(),
+                    QuantileSketch.DEFAULT_MAX_BUCKETS) : null;
+        }
+
+        /**
+         * @return Samples of an earlier window that have not been emitted yet, or {@code null}.
+         */
+        private Snapshot add(final long window, final double value) {
+            Snapshot stale = null;
+
+            if (count > 0 && this.window != window)
+                stale = take();
+
+            if (count == 0) {
+                this.window = window;
+                this.sum = 0;
+                this.min = value;
+                this.max = value;
+            }
+
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            last = value;
+
+            if (sketch != null)
+                sketch.add(value);
+
+            return stale;
+        }
+
+        private Snapshot takeBefore(final long current) {
+            if (count == 0 || window >= current)
+                return null;
+
+            return take();
+        }
+
+        private boolean isIdle(final long current, final long timeout) {
+            return count == 0 && current - window >= timeout;
+        }
+
+        private Snapshot take() {
+            final List<Double> quantiles = rule.getQuantiles();
+            final double[] estimates = new double[quantiles.size()];
+
+            if (sketch != null) {
+                for (int i = 0; i < estimates.length; i++)
+                    estimates[i] = sketch.quantile(quantiles.get(i));
+
+                sketch.clear();
+            }
+
+            final Snapshot snapshot = new Snapshot(window, count, sum, min, max, last, estimates);
+            count = 0;
+            return snapshot;
+        }
+    }
+
+    @RequiredArgsConstructor
+    private static final class Snapshot {
+        private final long window;
+        private final long count;
+        private final double sum;
+        private final double min;
+        private final double max;
+        private final double last;
+        private final double[] quantiles;
+
+        private double value(final Statistic statistic) {
+            switch (statistic) {
+            case SUM:
+                return sum;
+            case COUNT:
+                return count;
+            case MIN:
+                return min;
+            case MAX:
+                return max;
+            default:
+                return last;
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.aggregation;
+
+import lombok.Data;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.spotify.ffwd.model.Metric;
+
+/**
+ * Selects metrics by a prefix of their key, and by the presence or value of an attribute.
+ *
+ * Criteria that are {@code null} match any metric.
+ */
+@Data
+public class MetricMatcher {
+    private final String prefix;
+    private final String attribute;
+    private final String value;
+
+    @JsonCreator
+    public MetricMatcher(@JsonProperty("prefix") String prefix, @JsonProperty("attribute") String attribute,
+            @JsonProperty("value") String value) {
+        this.prefix = prefix;
+        this.attribute = attribute;
+        this.value = value;
+    }
+
+    public boolean matches(final Metric metric) {
+        if (prefix != null && (metric.getKey() == null || !metric.getKey().startsWith(prefix)))
+            return false;
+
+        if (attribute == null)
+            return true;
+
+        final String actual = metric.getAttributes().get(attribute);
+
+        if (actual == null)
+            return false;
+
+        return value == null || value.equals(actual);
+    }
+}
@@ -0,0 +1,295 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.aggregation;
+
+import java.util.Arrays;
+
+/**
+ * Mergeable quantile sketch with relative accuracy guarantees, as described in DDSketch.
+ *
+ * Values are counted in logarithmic buckets, such that every quantile is estimated within the given relative accuracy
+ * of its actual value. Buckets are kept in dense arrays covering the range of values seen. Arrays are only allocated
+ * when that range grows, and are kept when clearing the sketch, so updating a sketch that is reused for every window
+ * does not allocate once its range has settled.
+ *
+ * When a sketch would use more than {@code maxBuckets} buckets for values of the same sign, the buckets of the
+ * smallest magnitudes are collapsed, which only affects the accuracy of the lowest quantiles. NaN and infinite values
+ * are not counted.
+ *
+ * A sketch is not thread-safe.
+ */
+public class QuantileSketch {
+    public static final double DEFAULT_ACCURACY = 0.01;
+    public static final int DEFAULT_MAX_BUCKETS = 2048;
+
+    /* values of a smaller magnitude are counted as zero */
+    private static final double MIN_INDEXABLE = 1e-9;
+
+    private final double gamma;
+    private final double logGamma;
+
+    private final Store positive;
+    private final Store negative;
+    private long zeros;
+    private long count;
+
+    public QuantileSketch() {
+        this(DEFAULT_ACCURACY, DEFAULT_MAX_BUCKETS);
+    }
+
+    /**
+     * @param accuracy Relative accuracy of estimated quantiles, between 0 and 1 (exclusive).
+     * @param maxBuckets Maximum number of buckets for values of each sign.
+     */
+    public QuantileSketch(final double accuracy, final int maxBuckets) {
+        if (accuracy <= 0 || accuracy >= 1)
+            throw new IllegalArgumentException("accuracy must be between 0 and 1");
+
+        if (maxBuckets <= 0)
+            throw new IllegalArgumentException("maxBuckets must be positive");
+
+        this.gamma = (1 + accuracy) / (1 - accuracy);
+        this.logGamma = Math.log(gamma);
+        this.positive = new Store(maxBuckets);
+        this.negative = new Store(maxBuckets);
+    }
+
+    /**
+     * Add a value to the sketch. NaN and infinite values have no bucket and are ignored.
+     */
+    public void add(final double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value))
+            return;
+
+        if (value >= MIN_INDEXABLE) {
+            positive.add(index(value), 1);
+        } else if (value <= -MIN_INDEXABLE) {
+            negative.add(index(-value), 1);
+        } else {
+            zeros++;
+        }
+
+        count++;
+    }
+
+    /**
+     * Add all values of another sketch with the same accuracy to this one.
+     */
+    public void merge(final QuantileSketch other) {
+        if (other.gamma != gamma)
+            throw new IllegalArgumentException("sketches have different accuracy");
+
+        positive.merge(other.positive);
+        negative.merge(other.negative);
+        zeros += other.zeros;
+        count += other.count;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    /**
+     * Estimate the value at the given quantile.
+     *
+     * @param quantile Quantile between 0 and 1 (inclusive).
+     * @return The estimated value, or {@code NaN} if the sketch is empty.
+     */
+    public double quantile(final double quantile) {
+        if (quantile < 0 || quantile > 1)
+            throw new IllegalArgumentException("quantile must be between 0 and 1");
+
+        if (count == 0)
+            return Double.NaN;
+
+        final long rank = (long) (quantile * (count - 1));
+
+        // negative values in ascending order are the buckets of their magnitude in descending order.
+        if (rank < negative.total)
+            return -value(negative.indexAtDescending(rank));
+
+        if (rank < negative.total + zeros)
+            return 0;
+
+        return value(positive.indexAt(rank - negative.total - zeros));
+    }
+
+    /**
+     * Remove all values, keeping allocated buckets for reuse.
+     */
+    public void clear() {
+        positive.clear();
+        negative.clear();
+        zeros = 0;
+        count = 0;
+    }
+
+    private int index(final double magnitude) {
+        return (int) Math.ceil(Math.log(magnitude) / logGamma);
+    }
+
+    /**
+     * Representative value of a bucket, which is within the relative accuracy of every value in it.
+     */
+    private double value(final int index) {
+        // the bucket of the largest finite values has an upper bound beyond Double.MAX_VALUE.
+        return Math.min(2 * (Math.pow(gamma, index) / (gamma + 1)), Double.MAX_VALUE);
+    }
+
+    /**
+     * Counts of the buckets of a single sign, covering the range of buckets between {@code min} and {@code max}.
+     */
+    private static final class Store {
+        private static final int INITIAL_SIZE = 64;
+
+        private final int maxBuckets;
+
+        private long[] counts;
+        /* bucket index of counts[0] */
+        private int offset;
+        private int min;
+        private int max;
+        private long total;
+
+        private Store(final int maxBuckets) {
+            this.maxBuckets = maxBuckets;
+        }
+
+        private void add(int index, final long n) {
+            if (counts == null)
+                counts = new long[Math.min(INITIAL_SIZE, maxBuckets)];
+
+            if (total == 0) {
+                offset = index - counts.length / 2;
+                min = index;
+                max = index;
+            }
+
+            final int high = Math.max(max, index);
+
+            if (high - Math.min(min, index) + 1 > maxBuckets) {
+                final int floor = high - maxBuckets + 1;
+                collapseBelow(floor);
+                index = Math.max(index, floor);
+            }
+
+            cover(index);
+            counts[index - offset] += n;
+            total += n;
+            min = Math.min(min, index);
+            max = Math.max(max, index);
+        }
+
+        private void merge(final Store other) {
+            if (other.total == 0)
+                return;
+
+            for (int i = other.min; i <= other.max; i++) {
+                final long n = other.counts[i - other.offset];
+
+                if (n > 0)
+                    add(i, n);
+            }
+        }
+
+        /**
+         * Move the counts of all buckets below the given index into it.
+         */
+        private void collapseBelow(final int floor) {
+            if (min >= floor)
+                return;
+
+            long collapsed = 0;
+
+            for (int i = min; i <= Math.min(max, floor - 1); i++) {
+                collapsed += counts[i - offset];
+                counts[i - offset] = 0;
+            }
+
+            // every bucket was collapsed, start over from the floor.
+            if (max < floor) {
+                offset = floor - counts.length / 2;
+                max = floor;
+            }
+
+            min = floor;
+            counts[floor - offset] += collapsed;
+        }
+
+        /**
+         * Make sure the array covers the given index, in addition to the range in use.
+         */
+        private void cover(final int index) {
+            if (index >= offset && index < offset + counts.length)
+                return;
+
+            final int low = Math.min(min, index);
+            final int high = Math.max(max, index);
+            final int span = high - low + 1;
+            // the range in use never exceeds maxBuckets, but might have moved.
+            final int size = span <= counts.length ? counts.length : Math.max(counts.length * 2, span);
+
+            final long[] grown = new long[size];
+            final int grownOffset = low - (size - span) / 2;
+
+            if (total > 0)
+                System.arraycopy(counts, min - offset, grown, min - grownOffset, max - min + 1);
+
+            counts = grown;
+            offset = grownOffset;
+        }
+
+        /**
+         * Index of the bucket holding the value with the given rank, in ascending order.
+         */
+        private int indexAt(final long rank) {
+            long seen = 0;
+
+            for (int i = min; i < max; i++) {
+                seen += counts[i - offset];
+
+                if (seen > rank)
+                    return i;
+            }
+
+            return max;
+        }
+
+        /**
+         * Index of the bucket holding the value with the given rank, in descending order.
+         */
+        private int indexAtDescending(final long rank) {
+            long seen = 0;
+
+            for (int i = max; i > min; i--) {
+                seen += counts[i - offset];
+
+                if (seen > rank)
+                    return i;
+            }
+
+            return min;
+        }
+
+        private void clear() {
+            if (total > 0)
+                Arrays.fill(counts, min - offset, max - offset + 1, 0);
+
+            total = 0;
+        }
+    }
+}
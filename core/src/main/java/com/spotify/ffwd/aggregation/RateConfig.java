@@ -0,0 +1,58 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.aggregation;
+
+import java.util.List;
+
+import lombok.Data;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.spotify.ffwd.model.Metric;
+
+@Data
+public class RateConfig {
+    public static final long DEFAULT_IDLE_TIMEOUT = 600000;
+    public static final List<MetricMatcher> DEFAULT_RULES = ImmutableList.of();
+
+    private final long idleTimeout;
+    private final List<MetricMatcher> rules;
+
+    @JsonCreator
+    public RateConfig(@JsonProperty("idleTimeout") Long idleTimeout,
+            @JsonProperty("rules") List<MetricMatcher> rules) {
+        this.idleTimeout = Optional.fromNullable(idleTimeout).or(DEFAULT_IDLE_TIMEOUT);
+        this.rules = Optional.fromNullable(rules).or(DEFAULT_RULES);
+
+        if (this.idleTimeout <= 0)
+            throw new IllegalArgumentException("idleTimeout must be positive");
+    }
+
+    /**
+     * If the given metric is a counter that should be converted into a rate.
+     */
+    public boolean matches(final Metric metric) {
+        for (final MetricMatcher rule : rules) {
+            if (rule.matches(metric))
+                return true;
+        }
+
+        return false;
+    }
+}
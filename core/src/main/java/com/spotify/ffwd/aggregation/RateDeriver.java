@@ -0,0 +1,157 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.aggregation;
+
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.slf4j.Slf4j;
+
+import com.google.inject.Inject;
+import com.spotify.ffwd.model.Metric;
+
+/**
+ * Converts monotonically increasing counters into per-second rates.
+ *
+ * The last sample of each series is kept in a {@link RateTable}, keyed by the fingerprint of the series. Series are
+ * spread over a fixed number of tables, each guarded by its own monitor, to limit contention between writers. Series
+ * that have not been seen for {@code idleTimeout} are dropped periodically.
+ *
+ * The first sample of a series only initializes its state, following samples are replaced by the rate since the
+ * previous one. Rates keep the key, tags and attributes of their series, with {@code stat} set to {@code rate}.
+ */
+@Slf4j
+public class RateDeriver {
+    public static final String RATE = "rate";
+
+    /* must be a power of two */
+    private static final int TABLES = 16;
+    private static final long MINIMUM_EVICT_INTERVAL = 1000;
+
+    @Inject
+    private RateConfig config;
+
+    @Inject
+    private Timer timer;
+
+    @Inject
+    private ExecutorService executor;
+
+    private final RateTable[] tables = new RateTable[TABLES];
+
+    private final Object $lock = new Object();
+    private boolean started;
+    private Timeout evict;
+
+    public RateDeriver() {
+        for (int i = 0; i < TABLES; i++)
+            tables[i] = new RateTable();
+    }
+
+    /**
+     * Derive the rate of a counter.
+     *
+     * @return The given metric if it is not a configured counter, the derived rate, or {@code null} if no rate can be
+     *         derived from this sample yet.
+     */
+    public Metric apply(final Metric metric) {
+        if (!config.matches(metric))
+            return metric;
+
+        final long key = Series.fingerprint(metric);
+        final long now = System.currentTimeMillis();
+        final long time = metric.getTime() != null ? metric.getTime().getTime() : now;
+
+        // the high bits of the fingerprint pick the table, the low bits pick the slot within it.
+        final RateTable table = tables[(int) (key >>> 60) & (TABLES - 1)];
+        final double rate;
+
+        synchronized (table) {
+            rate = table.update(key, metric.getValue(), time, now, config.getIdleTimeout());
+        }
+
+        if (Double.isNaN(rate))
+            return null;
+
+        final Map<String, String> attributes = new HashMap<>(metric.getAttributes());
+        attributes.put(Statistic.ATTRIBUTE, RATE);
+
+        return new Metric(metric.getKey(), rate, metric.getTime(), metric.getHost(), metric.getTags(), attributes,
+                metric.getProc());
+    }
+
+    public void start() {
+        synchronized ($lock) {
+            started = true;
+            scheduleEvict();
+        }
+    }
+
+    public void stop() {
+        synchronized ($lock) {
+            started = false;
+
+            if (evict != null) {
+                evict.cancel();
+                evict = null;
+            }
+        }
+    }
+
+    private void scheduleEvict() {
+        final long interval = Math.max(MINIMUM_EVICT_INTERVAL, config.getIdleTimeout() / 2);
+
+        evict = timer.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized ($lock) {
+                            if (!started)
+                                return;
+
+                            evict(System.currentTimeMillis() - config.getIdleTimeout());
+                            scheduleEvict();
+                        }
+                    }
+                });
+            }
+        }, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void evict(final long cutoff) {
+        int evicted = 0;
+        int size = 0;
+
+        for (final RateTable table : tables) {
+            synchronized (table) {
+                evicted += table.evict(cutoff);
+                size += table.size();
+            }
+        }
+
+        if (evicted > 0)
+            log.debug("Evicted {} idle counter(s), {} remaining", evicted, size);
+    }
+}
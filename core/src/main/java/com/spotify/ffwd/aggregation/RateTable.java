@@ -0,0 +1,174 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.aggregation;
+
+/**
+ * Open-addressing hash table from series fingerprints to the last sample of each series.
+ *
+ * State is kept in parallel primitive arrays and probed linearly, so updating a series does not allocate unless the
+ * table has to grow. A table is not thread-safe.
+ */
+final class RateTable {
+    /* fingerprints are never zero, see Series#fingerprint */
+    private static final long EMPTY = 0;
+    private static final int MINIMUM_CAPACITY = 16;
+
+    private long[] keys;
+    private double[] values;
+    private long[] times;
+    private long[] seen;
+    private int mask;
+    private int size;
+
+    RateTable() {
+        allocate(MINIMUM_CAPACITY);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Store a new sample of a series, and derive its rate from the previous sample.
+     *
+     * A counter that decreased is assumed to have been reset to zero in between the two samples. Samples which are not
+     * newer than the previous sample of the series are ignored.
+     *
+     * @param time Time of the sample.
+     * @param now Current time, used to detect idle series.
+     * @param idle Time after which the previous sample of a series is no longer used.
+     * @return The per-second rate, or {@code NaN} if no rate can be derived from the sample.
+     */
+    public double update(final long key, final double value, final long time, final long now, final long idle) {
+        final int slot = slot(key);
+
+        if (keys[slot] == EMPTY) {
+            insert(slot, key, value, time, now);
+            return Double.NaN;
+        }
+
+        final double lastValue = values[slot];
+        final long lastTime = times[slot];
+        final long lastSeen = seen[slot];
+
+        seen[slot] = now;
+
+        if (now - lastSeen > idle) {
+            values[slot] = value;
+            times[slot] = time;
+            return Double.NaN;
+        }
+
+        final long elapsed = time - lastTime;
+
+        // duplicate or out of order sample, the last sample is kept.
+        if (elapsed <= 0)
+            return Double.NaN;
+
+        values[slot] = value;
+        times[slot] = time;
+
+        final double delta = value >= lastValue ? value - lastValue : value;
+        return delta * 1000 / elapsed;
+    }
+
+    /**
+     * Remove all series which have not been seen since the given time.
+     *
+     * @return The number of removed series.
+     */
+    public int evict(final long cutoff) {
+        final long[] keys = this.keys;
+        final double[] values = this.values;
+        final long[] times = this.times;
+        final long[] seen = this.seen;
+        final int before = size;
+
+        int live = 0;
+
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY && seen[i] >= cutoff)
+                live++;
+        }
+
+        if (live == before)
+            return 0;
+
+        allocate(capacityFor(live));
+
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY && seen[i] >= cutoff)
+                insert(slot(keys[i]), keys[i], values[i], times[i], seen[i]);
+        }
+
+        return before - size;
+    }
+
+    private int slot(final long key) {
+        // fingerprints are well distributed, the low bits can be used as they are.
+        int i = (int) key & mask;
+
+        while (keys[i] != EMPTY && keys[i] != key)
+            i = (i + 1) & mask;
+
+        return i;
+    }
+
+    private void insert(final int slot, final long key, final double value, final long time, final long now) {
+        keys[slot] = key;
+        values[slot] = value;
+        times[slot] = time;
+        seen[slot] = now;
+        size++;
+
+        // keep the load factor at or below one half.
+        if (size * 2 > keys.length)
+            grow();
+    }
+
+    private void grow() {
+        final long[] keys = this.keys;
+        final double[] values = this.values;
+        final long[] times = this.times;
+        final long[] seen = this.seen;
+
+        allocate(keys.length * 2);
+
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY)
+                insert(slot(keys[i]), keys[i], values[i], times[i], seen[i]);
+        }
+    }
+
+    private void allocate(final int capacity) {
+        keys = new long[capacity];
+        values = new double[capacity];
+        times = new long[capacity];
+        seen = new long[capacity];
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    private static int capacityFor(final int size) {
+        int capacity = MINIMUM_CAPACITY;
+
+        while (size * 2 > capacity)
+            capacity *= 2;
+
+        return capacity;
+    }
+}
@@ -0,0 +1,63 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.aggregation;
+
+import java.util.Map;
+
+import com.spotify.ffwd.model.Metric;
+import com.spotify.ffwd.util.Hashing;
+
+/**
+ * Identity of a series (key, host, tags and attributes) as a 64-bit fingerprint, built from {@link Hashing}.
+ *
+ * Unlike {@link Metric#equals(Object)}, the host is part of the identity, so that the same series reported for
+ * different hosts is never merged.
+ */
+public final class Series {
+    private Series() {
+    }
+
+    /**
+     * Fingerprint the series of the given metric.
+     *
+     * Tags and attributes are combined in an order-independent manner, so equal sets and maps always fingerprint the
+     * same regardless of their iteration order. The fingerprint is never zero.
+     */
+    public static long fingerprint(final Metric metric) {
+        long tags = 0;
+
+        for (final String tag : metric.getTags())
+            tags += Hashing.mix(Hashing.fnv(tag));
+
+        long attributes = 0;
+
+        for (final Map.Entry<String, String> e : metric.getAttributes().entrySet())
+            attributes += Hashing.mix(Hashing.fnv(e.getKey()) * 31 + Hashing.fnv(e.getValue()));
+
+        final long series = Hashing.fnv(metric.getKey()) ^ Hashing.hash(metric.getHost());
+        final long h = Hashing.mix(Hashing.mix(Hashing.mix(series) ^ tags) ^ attributes);
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * Fingerprint a single value, like an attribute value. The fingerprint is never zero.
+     */
+    public static long fingerprint(final String value) {
+        final long h = Hashing.hash(value);
+        return h == 0 ? 1 : h;
+    }
+}
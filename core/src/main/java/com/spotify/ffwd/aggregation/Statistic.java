@@ -0,0 +1,44 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.aggregation;
+
+/**
+ * Statistics which can be emitted for each series and window.
+ */
+public enum Statistic {
+    SUM, COUNT, MIN, MAX, LAST;
+
+    /**
+     * Attribute holding the statistic of a metric, which is set both by aggregation and when deriving rates.
+     */
+    public static final String ATTRIBUTE = "stat";
+
+    /**
+     * Value of the {@code stat} attribute of emitted metrics.
+     */
+    public String id() {
+        return name().toLowerCase();
+    }
+
+    public static Statistic parse(final String value) {
+        try {
+            return valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unsupported statistic: " + value, e);
+        }
+    }
+}
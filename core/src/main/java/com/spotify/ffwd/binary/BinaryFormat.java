@@ -0,0 +1,368 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.binary;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.spotify.ffwd.model.Event;
+import com.spotify.ffwd.model.Metric;
+
+/**
+ * Encoding and decoding of the ffwd binary format, see docs/binary-format.md for the schema.
+ */
+public final class BinaryFormat {
+    public static final int VERSION = 1;
+
+    public static final int FLAG_DICTIONARY = 0x01;
+
+    public static final int TYPE_METRIC = 1;
+    public static final int TYPE_EVENT = 2;
+
+    private static final int RECORD_TIME = 0x01;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private BinaryFormat() {
+    }
+
+    /**
+     * Write a payload containing the given metrics and events.
+     *
+     * @param dictionary If {@code true}, attribute keys are written once in a dictionary at the start of the payload,
+     *            and referred to by index in each record.
+     * @throws IllegalArgumentException If a message is neither a metric nor an event, in which case nothing is written
+     *             to the buffer.
+     */
+    public static void writePayload(final ByteBuf out, final Collection<?> messages, final boolean dictionary) {
+        final int writerIndex = out.writerIndex();
+
+        try {
+            writeMessages(out, messages, dictionary);
+        } catch (final RuntimeException e) {
+            out.writerIndex(writerIndex);
+            throw e;
+        }
+    }
+
+    private static void writeMessages(final ByteBuf out, final Collection<?> messages, final boolean dictionary) {
+        out.writeByte(VERSION);
+        out.writeByte(dictionary ? FLAG_DICTIONARY : 0);
+
+        final Map<String, Integer> keys;
+
+        if (dictionary) {
+            keys = buildDictionary(messages);
+            writeVarint(out, keys.size());
+
+            for (final String key : keys.keySet())
+                writeString(out, key);
+        } else {
+            keys = null;
+        }
+
+        writeVarint(out, messages.size());
+
+        for (final Object m : messages)
+            writeRecord(out, m, keys);
+    }
+
+    /**
+     * Read all records of a payload.
+     *
+     * Records of an unknown type are skipped. Every length and count is checked against the remaining payload before it
+     * is used, so a malformed payload fails with an {@link IOException} instead of allocating or looping according to
+     * arbitrary values.
+     */
+    public static void readPayload(final ByteBuf in, final List<Object> out) throws IOException {
+        try {
+            readMessages(in, out);
+        } catch (final IndexOutOfBoundsException e) {
+            throw new IOException("Truncated payload", e);
+        }
+    }
+
+    private static void readMessages(final ByteBuf in, final List<Object> out) throws IOException {
+        final int version = in.readUnsignedByte();
+
+        if (version != VERSION)
+            throw new IOException("Unsupported binary format version: " + version);
+
+        final int flags = in.readUnsignedByte();
+
+        final List<String> keys;
+
+        if ((flags & FLAG_DICTIONARY) != 0) {
+            final int size = readCount(in);
+            keys = new ArrayList<>(size);
+
+            for (int i = 0; i < size; i++)
+                keys.add(readString(in));
+        } else {
+            keys = null;
+        }
+
+        final int count = readCount(in);
+
+        for (int i = 0; i < count; i++) {
+            final Object record = readRecord(in, keys);
+
+            if (record != null)
+                out.add(record);
+        }
+    }
+
+    private static Map<String, Integer> buildDictionary(final Collection<?> messages) {
+        final Map<String, Integer> keys = new LinkedHashMap<>();
+
+        for (final Object m : messages) {
+            for (final String key : attributesOf(m).keySet()) {
+                if (!keys.containsKey(key))
+                    keys.put(key, keys.size());
+            }
+        }
+
+        return keys;
+    }
+
+    private static Map<String, String> attributesOf(final Object m) {
+        if (m instanceof Metric)
+            return ((Metric) m).getAttributes();
+
+        if (m instanceof Event)
+            return ((Event) m).getAttributes();
+
+        throw new IllegalArgumentException("Unsupported message: " + m);
+    }
+
+    private static void writeRecord(final ByteBuf out, final Object m, final Map<String, Integer> keys) {
+        final int type;
+
+        if (m instanceof Metric) {
+            type = TYPE_METRIC;
+        } else if (m instanceof Event) {
+            type = TYPE_EVENT;
+        } else {
+            throw new IllegalArgumentException("Unsupported message: " + m);
+        }
+
+        out.writeByte(type);
+
+        // length of the record is written once it is known.
+        final int lengthIndex = out.writerIndex();
+        out.writeInt(0);
+
+        if (type == TYPE_METRIC) {
+            final Metric metric = (Metric) m;
+            writeCommon(out, metric.getKey(), metric.getValue(), metric.getTime(), metric.getHost(),
+                    metric.getTags(), metric.getAttributes(), keys);
+            writeString(out, metric.getProc());
+        } else {
+            final Event event = (Event) m;
+            writeCommon(out, event.getKey(), event.getValue(), event.getTime(), event.getHost(), event.getTags(),
+                    event.getAttributes(), keys);
+            writeVarint(out, zigZag(event.getTtl()));
+            writeString(out, event.getState());
+            writeString(out, event.getDescription());
+        }
+
+        out.setInt(lengthIndex, out.writerIndex() - lengthIndex - 4);
+    }
+
+    private static void writeCommon(final ByteBuf out, final String key, final double value, final Date time,
+            final String host, final Set<String> tags, final Map<String, String> attributes,
+            final Map<String, Integer> keys) {
+        out.writeByte(time != null ? RECORD_TIME : 0);
+        writeString(out, key);
+        out.writeLong(Double.doubleToRawLongBits(value));
+
+        if (time != null)
+            writeVarint(out, zigZag(time.getTime()));
+
+        writeString(out, host);
+
+        writeVarint(out, tags.size());
+
+        for (final String tag : tags)
+            writeString(out, tag);
+
+        writeVarint(out, attributes.size());
+
+        for (final Map.Entry<String, String> a : attributes.entrySet()) {
+            if (keys != null) {
+                writeVarint(out, keys.get(a.getKey()));
+            } else {
+                writeString(out, a.getKey());
+            }
+
+            writeString(out, a.getValue());
+        }
+    }
+
+    private static Object readRecord(final ByteBuf in, final List<String> keys) throws IOException {
+        final int type = in.readUnsignedByte();
+        final long length = in.readUnsignedInt();
+
+        if (length > in.readableBytes())
+            throw new IOException("Record length (" + length + ") larger than remaining payload");
+
+        if (type != TYPE_METRIC && type != TYPE_EVENT) {
+            in.skipBytes((int) length);
+            return null;
+        }
+
+        final int end = in.readerIndex() + (int) length;
+
+        final int flags = in.readUnsignedByte();
+        final String key = readString(in);
+        final double value = Double.longBitsToDouble(in.readLong());
+        final Date time = (flags & RECORD_TIME) != 0 ? new Date(unZigZag(readVarint(in))) : null;
+        final String host = readString(in);
+
+        final int tagCount = readCount(in);
+        final Set<String> tags = new HashSet<>();
+
+        for (int i = 0; i < tagCount; i++)
+            tags.add(readString(in));
+
+        final int attributeCount = readCount(in);
+        final Map<String, String> attributes = new HashMap<>();
+
+        for (int i = 0; i < attributeCount; i++) {
+            final String k = keys != null ? lookup(keys, readLength(in)) : readString(in);
+            attributes.put(k, readString(in));
+        }
+
+        final Object record;
+
+        if (type == TYPE_METRIC) {
+            final String proc = readString(in);
+            record = new Metric(key, value, time, host, tags, attributes, proc);
+        } else {
+            final long ttl = unZigZag(readVarint(in));
+            final String state = readString(in);
+            final String description = readString(in);
+            record = new Event(key, value, time, ttl, state, description, host, tags, attributes);
+        }
+
+        if (in.readerIndex() > end)
+            throw new IOException("Record is larger than its length (" + length + ")");
+
+        // skip fields added by later revisions of this version.
+        in.readerIndex(end);
+        return record;
+    }
+
+    private static String lookup(final List<String> keys, final int index) throws IOException {
+        if (index >= keys.size())
+            throw new IOException("Dictionary index (" + index + ") out of bounds");
+
+        return keys.get(index);
+    }
+
+    /**
+     * Strings are written as their UTF-8 length plus one, followed by the encoded bytes. A length of zero indicates
+     * {@code null}.
+     */
+    private static void writeString(final ByteBuf out, final String value) {
+        if (value == null) {
+            writeVarint(out, 0);
+            return;
+        }
+
+        final byte[] bytes = value.getBytes(UTF8);
+        writeVarint(out, bytes.length + 1);
+        out.writeBytes(bytes);
+    }
+
+    private static String readString(final ByteBuf in) throws IOException {
+        final int length = readLength(in);
+
+        if (length == 0)
+            return null;
+
+        if (length - 1 > in.readableBytes())
+            throw new IOException("String length (" + (length - 1) + ") larger than remaining payload");
+
+        final String value = in.toString(in.readerIndex(), length - 1, UTF8);
+        in.skipBytes(length - 1);
+        return value;
+    }
+
+    private static void writeVarint(final ByteBuf out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+
+        out.writeByte((int) value);
+    }
+
+    private static long readVarint(final ByteBuf in) throws IOException {
+        long value = 0;
+
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = in.readByte();
+            value |= (long) (b & 0x7f) << shift;
+
+            if ((b & 0x80) == 0)
+                return value;
+        }
+
+        throw new IOException("Malformed varint");
+    }
+
+    private static int readLength(final ByteBuf in) throws IOException {
+        final long value = readVarint(in);
+
+        if (value < 0 || value > Integer.MAX_VALUE)
+            throw new IOException("Length out of range: " + value);
+
+        return (int) value;
+    }
+
+    /**
+     * Read the number of elements that follow, each of which takes up at least one byte.
+     */
+    private static int readCount(final ByteBuf in) throws IOException {
+        final int count = readLength(in);
+
+        if (count > in.readableBytes())
+            throw new IOException("Count (" + count + ") larger than remaining payload");
+
+        return count;
+    }
+
+    private static long zigZag(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(final long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
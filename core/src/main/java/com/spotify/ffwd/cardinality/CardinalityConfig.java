@@ -0,0 +1,76 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.cardinality;
+
+import lombok.Data;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Optional;
+
+@Data
+public class CardinalityConfig {
+    public static enum Action {
+        /**
+         * Drop metrics of series that would exceed the budget.
+         */
+        DROP,
+        /**
+         * Replace the value of the attribute with the most distinct values, and drop metrics if there is none left.
+         */
+        COLLAPSE
+    }
+
+    public static final long DEFAULT_BUDGET = 10000;
+    public static final int DEFAULT_EXACT_LIMIT = 1024;
+    public static final long DEFAULT_WINDOW = 3600000;
+    public static final Action DEFAULT_ACTION = Action.COLLAPSE;
+
+    private final long budget;
+    private final int exactLimit;
+    private final long window;
+    private final Action action;
+
+    @JsonCreator
+    public CardinalityConfig(@JsonProperty("budget") Long budget, @JsonProperty("exactLimit") Integer exactLimit,
+            @JsonProperty("window") Long window, @JsonProperty("action") String action) {
+        this.budget = Optional.fromNullable(budget).or(DEFAULT_BUDGET);
+        this.exactLimit = Optional.fromNullable(exactLimit).or(DEFAULT_EXACT_LIMIT);
+        this.window = Optional.fromNullable(window).or(DEFAULT_WINDOW);
+        this.action = parseAction(action);
+
+        if (this.budget <= 0)
+            throw new IllegalArgumentException("budget must be positive");
+
+        if (this.exactLimit < 0)
+            throw new IllegalArgumentException("exactLimit must not be negative");
+
+        if (this.window <= 0)
+            throw new IllegalArgumentException("window must be positive");
+    }
+
+    private Action parseAction(String action) {
+        if (action == null)
+            return DEFAULT_ACTION;
+
+        try {
+            return Action.valueOf(action.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unsupported action: " + action, e);
+        }
+    }
+}
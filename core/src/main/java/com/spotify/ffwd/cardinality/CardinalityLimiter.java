@@ -0,0 +1,347 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.cardinality;
+
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.extern.slf4j.Slf4j;
+
+import com.google.inject.Inject;
+import com.spotify.ffwd.aggregation.Series;
+import com.spotify.ffwd.model.Metric;
+
+/**
+ * Limits the number of distinct series of every metric key.
+ *
+ * Every key has a budget of {@code budget} series for each {@code window}. Series, and the values of each attribute,
+ * are counted exactly until {@code exactLimit}, and estimated by a {@link HyperLogLog} beyond that. Only new series
+ * are counted, so metrics of known series pass with a lookup.
+ *
+ * When a new series would exceed the budget, metrics of it are either dropped, or the attribute of the key with the
+ * most distinct values is collapsed. Collapsing replaces the value of that attribute with {@value #COLLAPSED} for
+ * every following metric of the key until the end of the window, and counting starts over with the collapsed
+ * series. Metrics are dropped if no attribute is left to collapse.
+ *
+ * Dropping has to recognize the series that were let through, so they are always counted exactly. When collapsing,
+ * a new series of a key with estimated series is only recognized if it would change the estimator, so some new series
+ * are let through without collapsing further.
+ */
+@Slf4j
+public class CardinalityLimiter {
+    public static final String COLLAPSED = "collapsed";
+
+    private static final String NO_KEY = "";
+    private static final long REPORT_INTERVAL = 10000;
+
+    @Inject
+    private CardinalityConfig config;
+
+    @Inject
+    private Timer timer;
+
+    @Inject
+    private ExecutorService executor;
+
+    private final ConcurrentMap<String, Budget> budgets = new ConcurrentHashMap<>();
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong collapsed = new AtomicLong();
+    private final AtomicLong nextReport = new AtomicLong();
+
+    private final Object $lock = new Object();
+    private boolean started;
+    private Timeout evict;
+
+    /**
+     * Apply the budget of the key of the given metric.
+     *
+     * @return The given metric, the metric with collapsed attributes, or {@code null} if it should be dropped.
+     */
+    public Metric apply(final Metric metric) {
+        return apply(metric, System.currentTimeMillis());
+    }
+
+    Metric apply(final Metric metric, final long now) {
+        final String key = metric.getKey() != null ? metric.getKey() : NO_KEY;
+
+        Budget budget = budgets.get(key);
+
+        if (budget == null) {
+            final Budget created = new Budget(now);
+            budget = budgets.putIfAbsent(key, created);
+
+            if (budget == null)
+                budget = created;
+        }
+
+        final Metric result;
+
+        synchronized (budget) {
+            result = budget.apply(key, metric, now);
+        }
+
+        if (result == null) {
+            dropped.incrementAndGet();
+            return null;
+        }
+
+        if (result != metric)
+            collapsed.incrementAndGet();
+
+        return result;
+    }
+
+    /**
+     * Total number of dropped metrics.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Total number of metrics that had attributes collapsed.
+     */
+    public long getCollapsed() {
+        return collapsed.get();
+    }
+
+    public void start() {
+        synchronized ($lock) {
+            started = true;
+            scheduleEvict();
+        }
+    }
+
+    public void stop() {
+        synchronized ($lock) {
+            started = false;
+
+            if (evict != null) {
+                evict.cancel();
+                evict = null;
+            }
+        }
+    }
+
+    private void scheduleEvict() {
+        evict = timer.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized ($lock) {
+                            if (!started)
+                                return;
+
+                            evict(System.currentTimeMillis() - config.getWindow());
+                            scheduleEvict();
+                        }
+                    }
+                });
+            }
+        }, config.getWindow(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Forget keys that have not been seen since the given time.
+     */
+    private void evict(final long cutoff) {
+        int evicted = 0;
+
+        final Iterator<Budget> it = budgets.values().iterator();
+
+        while (it.hasNext()) {
+            final Budget budget = it.next();
+
+            synchronized (budget) {
+                if (budget.seen >= cutoff)
+                    continue;
+            }
+
+            it.remove();
+            evicted++;
+        }
+
+        if (evicted > 0)
+            log.debug("Evicted {} idle key(s), {} remaining", evicted, budgets.size());
+    }
+
+    /**
+     * Log that a key exceeded its budget, at most once every {@code REPORT_INTERVAL}.
+     *
+     * @param attribute The attribute being collapsed, or {@code null} if metrics are dropped.
+     */
+    private void report(final long now, final String key, final String attribute) {
+        final long next = nextReport.get();
+
+        if (now < next || !nextReport.compareAndSet(next, now + REPORT_INTERVAL))
+            return;
+
+        if (attribute == null) {
+            log.warn("{}: exceeded budget of {} series, dropping metrics of new series ({} dropped, {} collapsed)",
+                    key, config.getBudget(), dropped.get(), collapsed.get());
+            return;
+        }
+
+        log.warn("{}: exceeded budget of {} series, collapsing attribute {} ({} dropped, {} collapsed)", key,
+                config.getBudget(), attribute, dropped.get(), collapsed.get());
+    }
+
+    /**
+     * Series of a single key in the current window, guarded by its own monitor.
+     */
+    private final class Budget {
+        private long start;
+        private long seen;
+
+        private DistinctCounter series;
+        /* distinct values of each attribute, only used to find an attribute to collapse */
+        private Map<String, DistinctCounter> values;
+        private Set<String> collapsing;
+
+        public Budget(final long now) {
+            reset(now);
+        }
+
+        public Metric apply(final String key, final Metric metric, final long now) {
+            if (now - start >= config.getWindow())
+                reset(now);
+
+            seen = now;
+
+            Metric m = collapse(metric, collapsing);
+
+            while (true) {
+                final long fingerprint = Series.fingerprint(m);
+
+                if (series.count() < config.getBudget()) {
+                    if (series.add(fingerprint))
+                        count(m);
+
+                    return m;
+                }
+
+                if (series.contains(fingerprint))
+                    return m;
+
+                final String attribute = config.getAction() == CardinalityConfig.Action.COLLAPSE ? offender(m) : null;
+
+                report(now, key, attribute);
+
+                if (attribute == null)
+                    return null;
+
+                // every following metric is collapsed, so only collapsed series count from now on.
+                collapsing.add(attribute);
+                series = newSeries();
+                values = new HashMap<>();
+                m = collapse(m, collapsing);
+            }
+        }
+
+        private void reset(final long now) {
+            start = now;
+            series = newSeries();
+            values = new HashMap<>();
+            collapsing = new LinkedHashSet<>();
+        }
+
+        private DistinctCounter newSeries() {
+            if (config.getAction() == CardinalityConfig.Action.DROP)
+                return new DistinctCounter((int) Math.min(Integer.MAX_VALUE, config.getBudget()));
+
+            return new DistinctCounter(config.getExactLimit());
+        }
+
+        private void count(final Metric metric) {
+            if (config.getAction() != CardinalityConfig.Action.COLLAPSE)
+                return;
+
+            for (final Map.Entry<String, String> e : metric.getAttributes().entrySet()) {
+                DistinctCounter counter = values.get(e.getKey());
+
+                if (counter == null) {
+                    counter = new DistinctCounter(config.getExactLimit());
+                    values.put(e.getKey(), counter);
+                }
+
+                counter.add(Series.fingerprint(e.getValue()));
+            }
+        }
+
+        /**
+         * Find the attribute of the given metric with the most distinct values, if it has more than one.
+         */
+        private String offender(final Metric metric) {
+            String offender = null;
+            long most = 1;
+
+            for (final String attribute : metric.getAttributes().keySet()) {
+                if (collapsing.contains(attribute))
+                    continue;
+
+                final DistinctCounter counter = values.get(attribute);
+
+                if (counter != null && counter.count() > most) {
+                    offender = attribute;
+                    most = counter.count();
+                }
+            }
+
+            return offender;
+        }
+
+        private Metric collapse(final Metric metric, final Set<String> attributes) {
+            if (attributes.isEmpty())
+                return metric;
+
+            Map<String, String> collapsed = null;
+
+            for (final String attribute : attributes) {
+                final String value = metric.getAttributes().get(attribute);
+
+                if (value == null || COLLAPSED.equals(value))
+                    continue;
+
+                if (collapsed == null)
+                    collapsed = new HashMap<>(metric.getAttributes());
+
+                collapsed.put(attribute, COLLAPSED);
+            }
+
+            if (collapsed == null)
+                return metric;
+
+            return new Metric(metric.getKey(), metric.getValue(), metric.getTime(), metric.getHost(),
+                    metric.getTags(), collapsed, metric.getProc());
+        }
+    }
+}
@@ -0,0 +1,122 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.cardinality;
+
+/**
+ * Counts distinct hashes exactly in an open-addressing set, until it would hold more than a limit, after which the
+ * count is estimated by a {@link HyperLogLog}.
+ *
+ * Memory is bounded by the larger of the limit and the registers of the estimator. Not thread-safe.
+ */
+final class DistinctCounter {
+    /* hashes are never zero, see Series#fingerprint */
+    private static final long EMPTY = 0;
+    private static final int MINIMUM_CAPACITY = 8;
+
+    private final int exactLimit;
+
+    private long[] hashes = new long[MINIMUM_CAPACITY];
+    private int size;
+    private HyperLogLog sketch;
+
+    DistinctCounter(final int exactLimit) {
+        this.exactLimit = exactLimit;
+    }
+
+    public boolean isExact() {
+        return sketch == null;
+    }
+
+    /**
+     * Add a hash.
+     *
+     * @return {@code true} if the hash has not been added before, or might not have been once the count is estimated.
+     */
+    public boolean add(final long hash) {
+        if (sketch != null)
+            return sketch.add(hash);
+
+        final int slot = slot(hashes, hash);
+
+        if (hashes[slot] != EMPTY)
+            return false;
+
+        if (size >= exactLimit) {
+            estimate();
+            return sketch.add(hash);
+        }
+
+        hashes[slot] = hash;
+
+        if (++size * 2 > hashes.length)
+            grow();
+
+        return true;
+    }
+
+    /**
+     * If the hash has been added before.
+     *
+     * This is exact while counting exactly, but once the count is estimated a hash that would not change the estimator
+     * is assumed to have been added.
+     */
+    public boolean contains(final long hash) {
+        if (sketch != null)
+            return !sketch.changes(hash);
+
+        return hashes[slot(hashes, hash)] != EMPTY;
+    }
+
+    public long count() {
+        if (sketch != null)
+            return sketch.estimate();
+
+        return size;
+    }
+
+    private void estimate() {
+        sketch = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+
+        for (final long h : hashes) {
+            if (h != EMPTY)
+                sketch.add(h);
+        }
+
+        hashes = null;
+        size = 0;
+    }
+
+    private void grow() {
+        final long[] previous = hashes;
+        hashes = new long[previous.length * 2];
+
+        for (final long h : previous) {
+            if (h != EMPTY)
+                hashes[slot(hashes, h)] = h;
+        }
+    }
+
+    private static int slot(final long[] hashes, final long hash) {
+        final int mask = hashes.length - 1;
+        int slot = (int) hash & mask;
+
+        while (hashes[slot] != EMPTY && hashes[slot] != hash)
+            slot = (slot + 1) & mask;
+
+        return slot;
+    }
+}
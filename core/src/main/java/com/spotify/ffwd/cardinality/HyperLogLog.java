@@ -0,0 +1,111 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.cardinality;
+
+/**
+ * HyperLogLog estimator of the number of distinct 64-bit hashes.
+ *
+ * Every hash updates one of {@code 2^precision} registers, which keep the longest run of leading zeros seen in the
+ * remaining bits. The sum used for the estimate is maintained as registers change, so estimating is constant time.
+ * The standard error of the estimate is about {@code 1.04 / sqrt(2^precision)}. Not thread-safe.
+ */
+public final class HyperLogLog {
+    public static final int DEFAULT_PRECISION = 12;
+
+    private final int precision;
+    private final byte[] registers;
+
+    /* sum of 2^-register over all registers */
+    private double sum;
+    private int zeros;
+
+    public HyperLogLog(final int precision) {
+        if (precision < 4 || precision > 16)
+            throw new IllegalArgumentException("precision must be between 4 and 16");
+
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+        this.sum = registers.length;
+        this.zeros = registers.length;
+    }
+
+    /**
+     * Add a hash, which must be uniformly distributed over all 64 bits.
+     *
+     * @return {@code true} if a register changed, which is always the case for a hash that was not added before when
+     *         the estimate is small, but only for a fraction of them once registers fill up.
+     */
+    public boolean add(final long hash) {
+        final int index = index(hash);
+        final int rank = rank(hash);
+        final int current = registers[index];
+
+        if (rank <= current)
+            return false;
+
+        if (current == 0)
+            zeros--;
+
+        sum += Math.scalb(1.0, -rank) - Math.scalb(1.0, -current);
+        registers[index] = (byte) rank;
+        return true;
+    }
+
+    /**
+     * If adding the given hash would change a register, in which case it has certainly not been added before.
+     */
+    public boolean changes(final long hash) {
+        return rank(hash) > registers[index(hash)];
+    }
+
+    public long estimate() {
+        final int m = registers.length;
+
+        // linear counting is more accurate for small cardinalities.
+        if (zeros > 0) {
+            final double linear = m * Math.log((double) m / zeros);
+
+            if (linear <= 2.5 * m)
+                return Math.round(linear);
+        }
+
+        return Math.round(alpha(m) * m * m / sum);
+    }
+
+    private int index(final long hash) {
+        return (int) (hash >>> (64 - precision));
+    }
+
+    private int rank(final long hash) {
+        // the bits that do not select a register, with a sentinel bit to bound the rank.
+        final long w = (hash << precision) | (1L << (precision - 1));
+        return Long.numberOfLeadingZeros(w) + 1;
+    }
+
+    private static double alpha(final int m) {
+        switch (m) {
+        case 16:
+            return 0.673;
+        case 32:
+            return 0.697;
+        case 64:
+            return 0.709;
+        default:
+            return 0.7213 / (1 + 1.079 / m);
+        }
+    }
+}
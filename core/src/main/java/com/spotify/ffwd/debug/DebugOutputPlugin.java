@@ -28,13 +28,20 @@ import com.spotify.ffwd.output.OutputPlugin;
 import com.spotify.ffwd.output.PluginSink;
 
 public class DebugOutputPlugin implements OutputPlugin {
+    private final String id;
     private final Long flushInterval;
 
     @JsonCreator
-    public DebugOutputPlugin(@JsonProperty("flushInterval") Long flushInterval) {
+    public DebugOutputPlugin(@JsonProperty("id") String id, @JsonProperty("flushInterval") Long flushInterval) {
+        this.id = id;
         this.flushInterval = flushInterval;
     }
 
+    @Override
+    public String id() {
+        return id;
+    }
+
     @Override
     public Module module(final Key<PluginSink> key) {
         return new PrivateModule() {
@@ -33,13 +33,20 @@ import com.spotify.ffwd.output.PluginSink;
 public class NoopOutputPlugin implements OutputPlugin {
     private static final long DEFAULT_FLUSH_INTERVAL = TimeUnit.MILLISECONDS.convert(10, TimeUnit.SECONDS);
 
+    private final String id;
     private final Long flushInterval;
 
     @JsonCreator
-    public NoopOutputPlugin(@JsonProperty("flushInterval") Long flushInterval) {
+    public NoopOutputPlugin(@JsonProperty("id") String id, @JsonProperty("flushInterval") Long flushInterval) {
+        this.id = id;
         this.flushInterval = Optional.fromNullable(flushInterval).or(DEFAULT_FLUSH_INTERVAL);
     }
 
+    @Override
+    public String id() {
+        return id;
+    }
+
     @Override
     public Module module(final Key<PluginSink> key) {
         return new PrivateModule() {
@@ -0,0 +1,106 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.output;
+
+import lombok.Data;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Optional;
+import com.spotify.ffwd.qlog.QLogManagerImpl;
+import com.spotify.ffwd.qlog.QLogRetention;
+
+/**
+ * Configuration of the durable stage between the output manager and the plugin sinks, see docs/on-disk-queue.md.
+ */
+@Data
+public class DurableConfig {
+    public static enum Mode {
+        /**
+         * Write every message to the on-disk log, and deliver it from there.
+         */
+        ALWAYS,
+        /**
+         * Deliver messages from memory, and only write them to disk when a sink is not keeping up.
+         */
+        HYBRID
+    }
+
+    public static final Mode DEFAULT_MODE = Mode.ALWAYS;
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    public static final int DEFAULT_MEMORY_SIZE = 10000;
+    public static final long DEFAULT_TRIM_INTERVAL = 10000;
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 1000;
+    public static final QLogManagerImpl.Durability DEFAULT_DURABILITY = QLogManagerImpl.Durability.NONE;
+    public static final long DEFAULT_SYNC_INTERVAL = 1000;
+    public static final boolean DEFAULT_COMPRESSION = false;
+    public static final long DEFAULT_MAX_BYTES = 0;
+    public static final long DEFAULT_MAX_AGE = 0;
+    public static final int DEFAULT_MAX_SEGMENTS = 0;
+
+    private final Mode mode;
+    private final int batchSize;
+    private final int memorySize;
+    private final long trimInterval;
+    private final long checkpointInterval;
+    private final QLogManagerImpl.Durability durability;
+    private final long syncInterval;
+    private final boolean compression;
+    private final QLogRetention retention;
+
+    @JsonCreator
+    public DurableConfig(@JsonProperty("mode") String mode, @JsonProperty("batchSize") Integer batchSize,
+            @JsonProperty("memorySize") Integer memorySize, @JsonProperty("trimInterval") Long trimInterval,
+            @JsonProperty("checkpointInterval") Long checkpointInterval,
+            @JsonProperty("durability") String durability, @JsonProperty("syncInterval") Long syncInterval,
+            @JsonProperty("compression") Boolean compression, @JsonProperty("maxBytes") Long maxBytes,
+            @JsonProperty("maxAge") Long maxAge, @JsonProperty("maxSegments") Integer maxSegments) {
+        this.mode = parseMode(mode);
+        this.batchSize = Optional.fromNullable(batchSize).or(DEFAULT_BATCH_SIZE);
+        this.memorySize = Optional.fromNullable(memorySize).or(DEFAULT_MEMORY_SIZE);
+        this.trimInterval = Optional.fromNullable(trimInterval).or(DEFAULT_TRIM_INTERVAL);
+        this.checkpointInterval = Optional.fromNullable(checkpointInterval).or(DEFAULT_CHECKPOINT_INTERVAL);
+        this.durability = parseDurability(durability);
+        this.syncInterval = Optional.fromNullable(syncInterval).or(DEFAULT_SYNC_INTERVAL);
+        this.compression = Optional.fromNullable(compression).or(DEFAULT_COMPRESSION);
+        this.retention = new QLogRetention(Optional.fromNullable(maxBytes).or(DEFAULT_MAX_BYTES),
+                Optional.fromNullable(maxAge).or(DEFAULT_MAX_AGE),
+                Optional.fromNullable(maxSegments).or(DEFAULT_MAX_SEGMENTS));
+    }
+
+    private Mode parseMode(String mode) {
+        if (mode == null)
+            return DEFAULT_MODE;
+
+        try {
+            return Mode.valueOf(mode.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unsupported mode: " + mode, e);
+        }
+    }
+
+    private QLogManagerImpl.Durability parseDurability(String durability) {
+        if (durability == null)
+            return DEFAULT_DURABILITY;
+
+        try {
+            return QLogManagerImpl.Durability.valueOf(durability.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unsupported durability: " + durability, e);
+        }
+    }
+}
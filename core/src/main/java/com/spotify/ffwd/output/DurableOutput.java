@@ -0,0 +1,385 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.output;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import lombok.extern.slf4j.Slf4j;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.spotify.ffwd.binary.BinaryFormat;
+import com.spotify.ffwd.model.Event;
+import com.spotify.ffwd.model.Metric;
+import com.spotify.ffwd.qlog.QLogManager;
+import com.spotify.ffwd.qlog.QLogReader;
+
+import eu.toolchain.async.AsyncFramework;
+import eu.toolchain.async.AsyncFuture;
+import eu.toolchain.async.FutureDone;
+import eu.toolchain.async.LazyTransform;
+
+/**
+ * Durable stage between the output manager and the plugin sinks.
+ *
+ * Every message is encoded into the on-disk log, and each sink consumes the log independently from its own position,
+ * which is stored in the log under the id of its output plugin. A sink that is not ready, or fails to send a batch, is
+ * retried from the same position later. Segments that have been consumed by every sink are periodically trimmed, and
+ * segments exceeding the retention limits of the log are dropped at the same interval, even if a sink lags behind.
+ *
+ * The positions of the sinks are checkpointed at a separate interval, which bounds how much is delivered again after a
+ * crash.
+ *
+ * Messages are acknowledged when a {@link BatchedPluginSink} resolves the future of a batch, which includes sinks
+ * behind a {@link FlushingPluginSink}. Other sinks cannot report when a batch has been sent, and messages are
+ * acknowledged as soon as they have been handed over.
+ */
+@Slf4j
+public class DurableOutput implements OutputBuffer {
+    private static final long RETRY_DELAY = 1000;
+    private static final long POLL_INTERVAL = 1000;
+
+    @Inject
+    private QLogManager qlog;
+
+    @Inject
+    @Named("path")
+    private Path path;
+
+    /* sinks by the id of their output plugin */
+    @Inject
+    private Map<String, PluginSink> sinks;
+
+    @Inject
+    private AsyncFramework async;
+
+    @Inject
+    private ExecutorService executor;
+
+    @Inject
+    private Timer timer;
+
+    @Inject
+    private DurableConfig config;
+
+    private final Object $lock = new Object();
+
+    private volatile List<Consumer> consumers = Collections.emptyList();
+    private volatile boolean stopped = true;
+    private Timeout trim;
+    private Timeout checkpoint;
+
+    @Override
+    public void write(final Object message) {
+        final ByteBuf buffer = Unpooled.buffer();
+
+        BinaryFormat.writePayload(buffer, Collections.singletonList(message), false);
+
+        try {
+            qlog.write(buffer.nioBuffer());
+        } catch (IOException e) {
+            log.error("Failed to write message to log", e);
+            return;
+        }
+
+        for (final Consumer c : consumers)
+            c.wake();
+    }
+
+    @Override
+    public AsyncFuture<Void> start() {
+        try {
+            Files.createDirectories(path);
+        } catch (IOException e) {
+            return async.failed(e);
+        }
+
+        return qlog.start().transform(new LazyTransform<Void, Void>() {
+            @Override
+            public AsyncFuture<Void> transform(Void result) throws Exception {
+                final List<Consumer> consumers = new ArrayList<>(sinks.size());
+
+                for (final Map.Entry<String, PluginSink> e : sinks.entrySet()) {
+                    final String id = e.getKey();
+                    final PluginSink sink = e.getValue();
+                    final QLogReader reader = qlog.reader(id);
+
+                    if (!(sink instanceof BatchedPluginSink))
+                        log.warn("{}: sink is not batched, messages are acknowledged when handed over", id);
+
+                    // register the consumer, so that trimming takes it into account.
+                    reader.commit(reader.position());
+
+                    log.info("Consuming log for sink {} from position {}", id, reader.position());
+                    consumers.add(new Consumer(id, sink, reader));
+                }
+
+                synchronized ($lock) {
+                    DurableOutput.this.consumers = consumers;
+                    stopped = false;
+                    scheduleTrim();
+                    scheduleCheckpoint();
+                }
+
+                for (final Consumer c : consumers)
+                    executor.execute(c);
+
+                return async.resolved(null);
+            }
+        });
+    }
+
+    @Override
+    public AsyncFuture<Void> stop() {
+        synchronized ($lock) {
+            stopped = true;
+
+            if (trim != null) {
+                trim.cancel();
+                trim = null;
+            }
+
+            if (checkpoint != null) {
+                checkpoint.cancel();
+                checkpoint = null;
+            }
+        }
+
+        return qlog.stop();
+    }
+
+    private void scheduleTrim() {
+        trim = timer.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                synchronized ($lock) {
+                    if (stopped)
+                        return;
+
+                    try {
+                        qlog.retain();
+                        qlog.trim();
+                    } catch (Exception e) {
+                        log.error("Failed to trim log", e);
+                    }
+
+                    scheduleTrim();
+                }
+            }
+        }, config.getTrimInterval(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Checkpoints are forced to disk, which is done on the executor to not hold up the timer.
+     */
+    private void scheduleCheckpoint() {
+        checkpoint = timer.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized ($lock) {
+                            if (stopped)
+                                return;
+
+                            try {
+                                qlog.checkpoint();
+                            } catch (Exception e) {
+                                log.error("Failed to checkpoint log", e);
+                            }
+
+                            scheduleCheckpoint();
+                        }
+                    }
+                });
+            }
+        }, config.getCheckpointInterval(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Consumes the log on behalf of a single sink.
+     *
+     * At most one poll is active at a time, the next one is either submitted when a batch has been delivered, by a
+     * timer, or by a write while the consumer is idle.
+     */
+    private class Consumer implements Runnable {
+        private final String id;
+        private final PluginSink sink;
+
+        /* only accessed by the active poll */
+        private final QLogReader reader;
+
+        private final AtomicBoolean idle = new AtomicBoolean();
+
+        public Consumer(final String id, final PluginSink sink, final QLogReader reader) {
+            this.id = id;
+            this.sink = sink;
+            this.reader = reader;
+        }
+
+        @Override
+        public void run() {
+            if (stopped)
+                return;
+
+            try {
+                poll();
+            } catch (Exception e) {
+                log.error("{}: failed to consume log", id, e);
+                retry();
+            }
+        }
+
+        public void wake() {
+            if (idle.compareAndSet(true, false))
+                executor.execute(this);
+        }
+
+        private void poll() throws IOException {
+            if (!sink.isReady()) {
+                retry();
+                return;
+            }
+
+            final long position = reader.position();
+            final List<ByteBuffer> entries;
+
+            try {
+                entries = reader.read(config.getBatchSize());
+            } catch (IOException e) {
+                reader.seek(position);
+                throw e;
+            }
+
+            if (entries.isEmpty()) {
+                idle.set(true);
+
+                // a write could have happened before becoming idle.
+                if (qlog.position() > reader.position()) {
+                    wake();
+                    return;
+                }
+
+                timer.newTimeout(new TimerTask() {
+                    @Override
+                    public void run(Timeout timeout) throws Exception {
+                        wake();
+                    }
+                }, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+
+                return;
+            }
+
+            final List<Event> events = new ArrayList<>();
+            final List<Metric> metrics = new ArrayList<>();
+            final List<Object> messages = new ArrayList<>();
+
+            for (final ByteBuffer entry : entries) {
+                messages.clear();
+
+                try {
+                    BinaryFormat.readPayload(Unpooled.wrappedBuffer(entry), messages);
+                } catch (IOException e) {
+                    log.error("{}: skipping corrupt entry in log", id, e);
+                    continue;
+                }
+
+                for (final Object m : messages) {
+                    if (m instanceof Event)
+                        events.add((Event) m);
+                    else if (m instanceof Metric)
+                        metrics.add((Metric) m);
+                }
+            }
+
+            if (!(sink instanceof BatchedPluginSink)) {
+                for (final Event e : events)
+                    sink.sendEvent(e);
+
+                for (final Metric m : metrics)
+                    sink.sendMetric(m);
+
+                commit(reader.position());
+                executor.execute(this);
+                return;
+            }
+
+            final BatchedPluginSink batched = (BatchedPluginSink) sink;
+            final List<AsyncFuture<Void>> futures = new ArrayList<>();
+
+            if (!events.isEmpty())
+                futures.add(batched.sendEvents(events));
+
+            if (!metrics.isEmpty())
+                futures.add(batched.sendMetrics(metrics));
+
+            async.collectAndDiscard(futures).on(new FutureDone<Void>() {
+                @Override
+                public void failed(Throwable cause) throws Exception {
+                    log.error("{}: failed to send batch at position {}, retrying", id, position, cause);
+                    reader.seek(position);
+                    retry();
+                }
+
+                @Override
+                public void resolved(Void result) throws Exception {
+                    commit(reader.position());
+                    executor.execute(Consumer.this);
+                }
+
+                @Override
+                public void cancelled() throws Exception {
+                    reader.seek(position);
+                    retry();
+                }
+            });
+        }
+
+        private void commit(final long position) {
+            if (stopped)
+                return;
+
+            reader.commit(position);
+        }
+
+        private void retry() {
+            timer.newTimeout(new TimerTask() {
+                @Override
+                public void run(Timeout timeout) throws Exception {
+                    executor.execute(Consumer.this);
+                }
+            }, RETRY_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,489 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.output;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import lombok.extern.slf4j.Slf4j;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.spotify.ffwd.binary.BinaryFormat;
+import com.spotify.ffwd.model.Event;
+import com.spotify.ffwd.model.Metric;
+import com.spotify.ffwd.qlog.QLogManager;
+import com.spotify.ffwd.qlog.QLogManagerImpl;
+import com.spotify.ffwd.qlog.QLogReader;
+
+import eu.toolchain.async.AsyncFramework;
+import eu.toolchain.async.AsyncFuture;
+import eu.toolchain.async.FutureDone;
+import eu.toolchain.async.LazyTransform;
+
+/**
+ * Memory-first stage between the output manager and the plugin sinks, which only writes to disk during outages.
+ *
+ * Each sink has a bounded in-memory queue which is delivered in batches. Messages are spilled to an on-disk log of
+ * that sink, named after the id of its output plugin, when its queue is full or the sink is not ready. Every following
+ * message is spilled as well until the sink has caught up with the log, which keeps messages in order.
+ *
+ * Messages are acknowledged like in {@link DurableOutput}, and the logs are trimmed and checkpointed at the same
+ * intervals. Messages still in memory when stopping are written to the log, after any messages that were already
+ * spilled.
+ */
+@Slf4j
+public class HybridOutput implements OutputBuffer {
+    private static final long RETRY_DELAY = 1000;
+    private static final String CONSUMER = "sink";
+
+    @Inject
+    @Named("path")
+    private Path path;
+
+    /* sinks by the id of their output plugin */
+    @Inject
+    private Map<String, PluginSink> sinks;
+
+    @Inject
+    private AsyncFramework async;
+
+    @Inject
+    private ExecutorService executor;
+
+    @Inject
+    private Timer timer;
+
+    @Inject
+    private DurableConfig config;
+
+    private final Object $lock = new Object();
+
+    private volatile List<Buffer> buffers = Collections.emptyList();
+    private volatile boolean stopped = true;
+    private Timeout trim;
+    private Timeout checkpoint;
+
+    @Override
+    public void write(final Object message) {
+        for (final Buffer b : buffers)
+            b.write(message);
+    }
+
+    @Override
+    public AsyncFuture<Void> start() {
+        final List<Buffer> buffers = new ArrayList<>(sinks.size());
+        final List<AsyncFuture<Void>> futures = new ArrayList<>(sinks.size());
+
+        for (final Map.Entry<String, PluginSink> entry : sinks.entrySet()) {
+            final String id = entry.getKey();
+            final PluginSink sink = entry.getValue();
+            final Path spill = path.resolve("spill-" + id);
+
+            if (!(sink instanceof BatchedPluginSink))
+                log.warn("{}: sink is not batched, messages are acknowledged when handed over", id);
+
+            try {
+                Files.createDirectories(spill);
+            } catch (IOException e) {
+                return async.failed(e);
+            }
+
+            final QLogManager qlog = new QLogManagerImpl(spill, async, QLogManagerImpl.DEFAULT_MAX_LOG_SIZE,
+                    config.getDurability(), config.getSyncInterval(), config.isCompression(), config.getRetention());
+
+            buffers.add(new Buffer(id, sink, qlog));
+            futures.add(qlog.start());
+        }
+
+        return async.collectAndDiscard(futures).transform(new LazyTransform<Void, Void>() {
+            @Override
+            public AsyncFuture<Void> transform(Void result) throws Exception {
+                for (final Buffer b : buffers)
+                    b.open();
+
+                synchronized ($lock) {
+                    HybridOutput.this.buffers = buffers;
+                    stopped = false;
+                    scheduleTrim();
+                    scheduleCheckpoint();
+                }
+
+                for (final Buffer b : buffers)
+                    executor.execute(b);
+
+                return async.resolved(null);
+            }
+        });
+    }
+
+    @Override
+    public AsyncFuture<Void> stop() {
+        final List<Buffer> buffers;
+
+        synchronized ($lock) {
+            stopped = true;
+
+            if (trim != null) {
+                trim.cancel();
+                trim = null;
+            }
+
+            if (checkpoint != null) {
+                checkpoint.cancel();
+                checkpoint = null;
+            }
+
+            buffers = this.buffers;
+        }
+
+        final List<AsyncFuture<Void>> futures = new ArrayList<>(buffers.size());
+
+        for (final Buffer b : buffers)
+            futures.add(b.close());
+
+        return async.collectAndDiscard(futures);
+    }
+
+    private void scheduleTrim() {
+        trim = timer.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                synchronized ($lock) {
+                    if (stopped)
+                        return;
+
+                    for (final Buffer b : buffers) {
+                        try {
+                            b.qlog.retain();
+                            b.qlog.trim();
+                        } catch (Exception e) {
+                            log.error("{}: failed to trim log", b.id, e);
+                        }
+                    }
+
+                    scheduleTrim();
+                }
+            }
+        }, config.getTrimInterval(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Checkpoints are forced to disk, which is done on the executor to not hold up the timer.
+     */
+    private void scheduleCheckpoint() {
+        checkpoint = timer.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized ($lock) {
+                            if (stopped)
+                                return;
+
+                            for (final Buffer b : buffers) {
+                                try {
+                                    b.qlog.checkpoint();
+                                } catch (Exception e) {
+                                    log.error("{}: failed to checkpoint log", b.id, e);
+                                }
+                            }
+
+                            scheduleCheckpoint();
+                        }
+                    }
+                });
+            }
+        }, config.getCheckpointInterval(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Buffers messages for a single sink.
+     *
+     * At most one poll is active at a time, the next one is either submitted when a batch has been delivered, by a
+     * timer, or by a write while the buffer is idle.
+     */
+    private class Buffer implements Runnable {
+        private final String id;
+        private final PluginSink sink;
+        private final QLogManager qlog;
+
+        private final Object $queue = new Object();
+        private final Deque<Object> memory = new ArrayDeque<>();
+        private boolean spilling;
+        private boolean closed;
+
+        /* only accessed by the active poll */
+        private QLogReader reader;
+
+        private final AtomicBoolean idle = new AtomicBoolean();
+
+        public Buffer(final String id, final PluginSink sink, final QLogManager qlog) {
+            this.id = id;
+            this.sink = sink;
+            this.qlog = qlog;
+        }
+
+        public void open() throws IOException {
+            reader = qlog.reader(CONSUMER);
+
+            // register the consumer, so that trimming takes it into account.
+            reader.commit(reader.position());
+
+            // messages spilled before a restart are delivered first.
+            final boolean behind = reader.position() < qlog.position();
+
+            synchronized ($queue) {
+                spilling = behind;
+            }
+
+            if (behind)
+                log.info("{}: delivering spilled messages from position {}", id, reader.position());
+        }
+
+        public AsyncFuture<Void> close() {
+            synchronized ($queue) {
+                closed = true;
+
+                while (!memory.isEmpty()) {
+                    try {
+                        spill(memory.poll());
+                    } catch (IOException e) {
+                        log.error("{}: failed to spill {} message(s) when stopping", id, memory.size() + 1, e);
+                        break;
+                    }
+                }
+
+                memory.clear();
+            }
+
+            return qlog.stop();
+        }
+
+        public void write(final Object message) {
+            synchronized ($queue) {
+                if (closed)
+                    return;
+
+                if (!spilling && memory.size() < config.getMemorySize() && sink.isReady()) {
+                    memory.add(message);
+                } else {
+                    if (!spilling)
+                        log.warn("{}: spilling messages to disk", id);
+
+                    spilling = true;
+
+                    // written while holding the lock, so that the log is never behind the queue.
+                    try {
+                        spill(message);
+                    } catch (IOException e) {
+                        log.error("{}: failed to spill message to log", id, e);
+                        return;
+                    }
+                }
+            }
+
+            wake();
+        }
+
+        @Override
+        public void run() {
+            if (stopped)
+                return;
+
+            try {
+                poll();
+            } catch (Exception e) {
+                log.error("{}: failed to deliver messages", id, e);
+                retry();
+            }
+        }
+
+        private void wake() {
+            if (idle.compareAndSet(true, false))
+                executor.execute(this);
+        }
+
+        private void spill(final Object message) throws IOException {
+            final ByteBuf buffer = Unpooled.buffer();
+            BinaryFormat.writePayload(buffer, Collections.singletonList(message), false);
+            qlog.write(buffer.nioBuffer());
+        }
+
+        private void poll() throws IOException {
+            if (!sink.isReady()) {
+                retry();
+                return;
+            }
+
+            final List<Object> messages = new ArrayList<>();
+
+            synchronized ($queue) {
+                while (messages.size() < config.getBatchSize() && !memory.isEmpty())
+                    messages.add(memory.poll());
+
+                if (messages.isEmpty() && spilling && reader.position() >= qlog.position()) {
+                    log.info("{}: caught up with spilled messages", id);
+                    spilling = false;
+                }
+
+                // writes wake the buffer up, since they also take the lock.
+                if (messages.isEmpty() && !spilling) {
+                    idle.set(true);
+                    return;
+                }
+            }
+
+            if (!messages.isEmpty()) {
+                deliver(messages, -1);
+                return;
+            }
+
+            final long position = reader.position();
+            final List<ByteBuffer> entries;
+
+            try {
+                entries = reader.read(config.getBatchSize());
+            } catch (IOException e) {
+                reader.seek(position);
+                throw e;
+            }
+
+            for (final ByteBuffer entry : entries) {
+                try {
+                    BinaryFormat.readPayload(Unpooled.wrappedBuffer(entry), messages);
+                } catch (IOException e) {
+                    log.error("{}: skipping corrupt entry in log", id, e);
+                }
+            }
+
+            deliver(messages, position);
+        }
+
+        /**
+         * Deliver a batch of messages.
+         *
+         * @param position Position of the batch in the log, or {@code -1} if the batch was taken from memory.
+         */
+        private void deliver(final List<Object> messages, final long position) {
+            final List<Event> events = new ArrayList<>();
+            final List<Metric> metrics = new ArrayList<>();
+
+            for (final Object m : messages) {
+                if (m instanceof Event)
+                    events.add((Event) m);
+                else if (m instanceof Metric)
+                    metrics.add((Metric) m);
+            }
+
+            if (!(sink instanceof BatchedPluginSink)) {
+                for (final Event e : events)
+                    sink.sendEvent(e);
+
+                for (final Metric m : metrics)
+                    sink.sendMetric(m);
+
+                delivered(position);
+                return;
+            }
+
+            final BatchedPluginSink batched = (BatchedPluginSink) sink;
+            final List<AsyncFuture<Void>> futures = new ArrayList<>();
+
+            if (!events.isEmpty())
+                futures.add(batched.sendEvents(events));
+
+            if (!metrics.isEmpty())
+                futures.add(batched.sendMetrics(metrics));
+
+            async.collectAndDiscard(futures).on(new FutureDone<Void>() {
+                @Override
+                public void failed(Throwable cause) throws Exception {
+                    log.error("{}: failed to send batch, retrying", id, cause);
+                    undelivered(messages, position);
+                }
+
+                @Override
+                public void resolved(Void result) throws Exception {
+                    delivered(position);
+                }
+
+                @Override
+                public void cancelled() throws Exception {
+                    undelivered(messages, position);
+                }
+            });
+        }
+
+        private void delivered(final long position) {
+            if (position >= 0 && !stopped)
+                reader.commit(reader.position());
+
+            executor.execute(this);
+        }
+
+        /**
+         * Put a batch back at the front of the queue, or rewind the log to it.
+         */
+        private void undelivered(final List<Object> messages, final long position) throws IOException {
+            if (position >= 0) {
+                reader.seek(position);
+                retry();
+                return;
+            }
+
+            synchronized ($queue) {
+                if (closed) {
+                    log.warn("{}: dropping {} undelivered message(s) after stopping", id, messages.size());
+                    return;
+                }
+
+                for (int i = messages.size() - 1; i >= 0; i--)
+                    memory.addFirst(messages.get(i));
+            }
+
+            retry();
+        }
+
+        private void retry() {
+            timer.newTimeout(new TimerTask() {
+                @Override
+                public void run(Timeout timeout) throws Exception {
+                    executor.execute(Buffer.this);
+                }
+            }, RETRY_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+}
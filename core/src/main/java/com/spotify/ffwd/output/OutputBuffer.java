@@ -0,0 +1,30 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.output;
+
+import eu.toolchain.async.AsyncFuture;
+
+/**
+ * Stage between the output manager and the plugin sinks, which takes over delivery of messages to the sinks.
+ */
+public interface OutputBuffer {
+    public void write(Object message);
+
+    public AsyncFuture<Void> start();
+
+    public AsyncFuture<Void> stop();
+}
@@ -22,30 +22,49 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import lombok.extern.slf4j.Slf4j;
 
+import com.google.common.base.Optional;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
+import com.spotify.ffwd.aggregation.Aggregator;
+import com.spotify.ffwd.aggregation.RateDeriver;
+import com.spotify.ffwd.cardinality.CardinalityLimiter;
 import com.spotify.ffwd.model.Event;
 import com.spotify.ffwd.model.Metric;
 
 import eu.toolchain.async.AsyncFramework;
 import eu.toolchain.async.AsyncFuture;
 import eu.toolchain.async.Collector;
-import eu.toolchain.async.FutureDone;
+import eu.toolchain.async.LazyTransform;
 
 @Slf4j
 public class OutputManagerImpl implements OutputManager {
+    private static final long REPORT_INTERVAL = 10000;
+
     @Inject
     private List<PluginSink> sinks;
 
     @Inject
     private AsyncFramework async;
 
+    @Inject
+    private Optional<OutputBuffer> buffer;
+
+    @Inject
+    private Optional<CardinalityLimiter> cardinality;
+
+    @Inject
+    private Optional<RateDeriver> rates;
+
+    @Inject
+    private Optional<Aggregator> aggregator;
+
     @Inject
     @Named("attributes")
     private Map<String, String> attributes;
@@ -62,22 +81,83 @@ public class OutputManagerImpl implements OutputManager {
     @Named("ttl")
     private long ttl;
 
+    /* messages not handed to a sink because it was not ready */
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong nextReport = new AtomicLong();
+
     @Override
     public void sendEvent(Event event) {
         final Event filtered = filter(event);
 
-        for (final PluginSink s : sinks)
+        if (buffer.isPresent()) {
+            buffer.get().write(filtered);
+            return;
+        }
+
+        for (final PluginSink s : sinks) {
             if (s.isReady())
                 s.sendEvent(filtered);
+            else
+                skip(s);
+        }
     }
 
     @Override
     public void sendMetric(Metric metric) {
-        final Metric filtered = filter(metric);
+        Metric filtered = filter(metric);
 
-        for (final PluginSink s : sinks)
+        // rates are derived from the original series, since a collapsed series mixes the samples of several counters.
+        if (rates.isPresent()) {
+            filtered = rates.get().apply(filtered);
+
+            if (filtered == null)
+                return;
+        }
+
+        if (cardinality.isPresent()) {
+            filtered = cardinality.get().apply(filtered);
+
+            if (filtered == null)
+                return;
+        }
+
+        if (aggregator.isPresent() && aggregator.get().offer(filtered))
+            return;
+
+        deliver(filtered);
+    }
+
+    private void deliver(final Metric metric) {
+        if (buffer.isPresent()) {
+            buffer.get().write(metric);
+            return;
+        }
+
+        for (final PluginSink s : sinks) {
             if (s.isReady())
-                s.sendMetric(filtered);
+                s.sendMetric(metric);
+            else
+                skip(s);
+        }
+    }
+
+    /**
+     * Count a message which was not sent to a sink, logging the total at most once every {@code REPORT_INTERVAL}.
+     */
+    private void skip(final PluginSink sink) {
+        final long total = skipped.incrementAndGet();
+        final long now = System.currentTimeMillis();
+        final long next = nextReport.get();
+
+        if (now >= next && nextReport.compareAndSet(next, now + REPORT_INTERVAL))
+            log.warn("{} is not ready, {} message(s) skipped so far", sink, total);
+    }
+
+    /**
+     * Number of messages which were not sent to a sink because it was not ready.
+     */
+    public long getSkipped() {
+        return skipped.get();
     }
 
     @Override
@@ -87,11 +167,56 @@ public class OutputManagerImpl implements OutputManager {
         for (final PluginSink s : sinks)
             futures.add(s.start());
 
+        if (buffer.isPresent())
+            futures.add(buffer.get().start());
+
+        if (cardinality.isPresent())
+            cardinality.get().start();
+
+        if (rates.isPresent())
+            rates.get().start();
+
+        if (aggregator.isPresent()) {
+            aggregator.get().start(new Aggregator.Emitter() {
+                @Override
+                public void emit(Metric metric) {
+                    deliver(metric);
+                }
+            });
+        }
+
         return async.collectAndDiscard(futures);
     }
 
     @Override
     public AsyncFuture<Void> stop() {
+        // emit pending aggregates while they can still be delivered.
+        if (aggregator.isPresent())
+            aggregator.get().stop();
+
+        if (rates.isPresent())
+            rates.get().stop();
+
+        if (cardinality.isPresent())
+            cardinality.get().stop();
+
+        // stop delivering buffered messages before the sinks go away.
+        if (buffer.isPresent()) {
+            return buffer.get().stop().transform(new LazyTransform<Void, Void>() {
+                @Override
+                public AsyncFuture<Void> transform(Void result) throws Exception {
+                    return stopSinks();
+                }
+            });
+        }
+
+        return stopSinks();
+    }
+
+    private AsyncFuture<Void> stopSinks() {
+        if (skipped.get() > 0)
+            log.info("Stopping, {} message(s) skipped while a sink was not ready", skipped.get());
+
         final ArrayList<AsyncFuture<Void>> futures = Lists.newArrayList();
 
         for (final PluginSink s : sinks)
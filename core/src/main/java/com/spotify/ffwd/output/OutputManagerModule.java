@@ -16,9 +16,12 @@
  **/
 package com.spotify.ffwd.output;
 
+import java.nio.file.Path;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Pattern;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
@@ -28,22 +31,70 @@ import com.google.common.collect.Lists;
 import com.google.inject.Key;
 import com.google.inject.Module;
 import com.google.inject.PrivateModule;
+import com.google.inject.Provider;
 import com.google.inject.Provides;
 import com.google.inject.Scopes;
 import com.google.inject.Singleton;
+import com.google.inject.multibindings.MapBinder;
 import com.google.inject.multibindings.Multibinder;
+import com.google.inject.multibindings.OptionalBinder;
 import com.google.inject.name.Named;
 import com.google.inject.name.Names;
 import com.spotify.ffwd.AgentConfig;
+import com.spotify.ffwd.aggregation.AggregationConfig;
+import com.spotify.ffwd.aggregation.Aggregator;
+import com.spotify.ffwd.aggregation.RateConfig;
+import com.spotify.ffwd.aggregation.RateDeriver;
+import com.spotify.ffwd.cardinality.CardinalityConfig;
+import com.spotify.ffwd.cardinality.CardinalityLimiter;
+import com.spotify.ffwd.qlog.QLogManager;
+import com.spotify.ffwd.qlog.QLogManagerImpl;
+import com.spotify.ffwd.qlog.QLogRetention;
 
 public class OutputManagerModule {
+    private static final Pattern VALID_ID = Pattern.compile("[A-Za-z0-9_.-]+");
+
     private final List<OutputPlugin> DEFAULT_PLUGINS = Lists.newArrayList();
 
     private final List<OutputPlugin> plugins;
+    private final DurableConfig durable;
+    private final AggregationConfig aggregation;
+    private final RateConfig rates;
+    private final CardinalityConfig cardinality;
 
     @JsonCreator
-    public OutputManagerModule(@JsonProperty("plugins") List<OutputPlugin> plugins) {
-        this.plugins = Optional.of(plugins).or(DEFAULT_PLUGINS);
+    public OutputManagerModule(@JsonProperty("plugins") List<OutputPlugin> plugins,
+            @JsonProperty("durable") DurableConfig durable, @JsonProperty("aggregation") AggregationConfig aggregation,
+            @JsonProperty("rates") RateConfig rates, @JsonProperty("cardinality") CardinalityConfig cardinality) {
+        this.plugins = Optional.fromNullable(plugins).or(DEFAULT_PLUGINS);
+        this.durable = durable;
+        this.aggregation = aggregation;
+        this.rates = rates;
+        this.cardinality = cardinality;
+
+        if (this.durable != null)
+            checkIds(this.plugins);
+    }
+
+    /**
+     * Every plugin consumes the durable log under its id, which has to be stable across restarts and usable in a file
+     * name.
+     */
+    private static void checkIds(final List<OutputPlugin> plugins) {
+        final Set<String> seen = new HashSet<>();
+
+        for (int i = 0; i < plugins.size(); i++) {
+            final String id = plugins.get(i).id();
+
+            if (id == null)
+                throw new IllegalArgumentException("output plugin #" + i + " must have an id when durable is enabled");
+
+            if (!VALID_ID.matcher(id).matches())
+                throw new IllegalArgumentException("output plugin id must match " + VALID_ID + ": " + id);
+
+            if (!seen.add(id))
+                throw new IllegalArgumentException("duplicate output plugin id: " + id);
+        }
     }
 
     public Module module() {
@@ -82,16 +133,104 @@ public class OutputManagerModule {
                 return config.getTtl();
             }
 
+            @Provides
+            @Singleton
+            @Named("path")
+            public Path path(AgentConfig config) {
+                return config.getQlog();
+            }
+
+            @Provides
+            @Singleton
+            public Optional<Aggregator> aggregator(Provider<Aggregator> aggregator) {
+                if (aggregation == null)
+                    return Optional.absent();
+
+                return Optional.of(aggregator.get());
+            }
+
+            @Provides
+            @Singleton
+            public AggregationConfig aggregation() {
+                return aggregation;
+            }
+
+            @Provides
+            @Singleton
+            public Optional<RateDeriver> rateDeriver(Provider<RateDeriver> deriver) {
+                if (rates == null)
+                    return Optional.absent();
+
+                return Optional.of(deriver.get());
+            }
+
+            @Provides
+            @Singleton
+            public RateConfig rates() {
+                return rates;
+            }
+
+            @Provides
+            @Singleton
+            public Optional<CardinalityLimiter> cardinalityLimiter(Provider<CardinalityLimiter> limiter) {
+                if (cardinality == null)
+                    return Optional.absent();
+
+                return Optional.of(limiter.get());
+            }
+
+            @Provides
+            @Singleton
+            public CardinalityConfig cardinality() {
+                return cardinality;
+            }
+
             @Override
             protected void configure() {
+                bind(Aggregator.class).in(Scopes.SINGLETON);
+                bind(RateDeriver.class).in(Scopes.SINGLETON);
+                bind(CardinalityLimiter.class).in(Scopes.SINGLETON);
+
+                bindDurable();
+
                 bind(OutputManager.class).to(OutputManagerImpl.class).in(Scopes.SINGLETON);
                 expose(OutputManager.class);
 
                 bindPlugins();
             }
 
+            /**
+             * The log and its settings are only bound if the durable stage is enabled.
+             */
+            private void bindDurable() {
+                final OptionalBinder<OutputBuffer> buffer = OptionalBinder.newOptionalBinder(binder(),
+                        OutputBuffer.class);
+
+                if (durable == null)
+                    return;
+
+                bind(DurableConfig.class).toInstance(durable);
+                bindConstant().annotatedWith(Names.named("durability")).to(durable.getDurability());
+                bindConstant().annotatedWith(Names.named("syncInterval")).to(durable.getSyncInterval());
+                bindConstant().annotatedWith(Names.named("compress")).to(durable.isCompression());
+                bind(QLogRetention.class).toInstance(durable.getRetention());
+
+                if (durable.getMode() == DurableConfig.Mode.HYBRID) {
+                    buffer.setBinding().to(HybridOutput.class).in(Scopes.SINGLETON);
+                    return;
+                }
+
+                bind(QLogManager.class).to(QLogManagerImpl.class).in(Scopes.SINGLETON);
+                buffer.setBinding().to(DurableOutput.class).in(Scopes.SINGLETON);
+            }
+
+            /**
+             * Sinks are also bound by plugin id when the durable stage is enabled, which keys its state on them.
+             */
             private void bindPlugins() {
                 final Multibinder<PluginSink> sinks = Multibinder.newSetBinder(binder(), PluginSink.class);
+                final MapBinder<String, PluginSink> ids = MapBinder.newMapBinder(binder(), String.class,
+                        PluginSink.class);
 
                 int i = 0;
 
@@ -99,6 +238,9 @@ public class OutputManagerModule {
                     final Key<PluginSink> k = Key.get(PluginSink.class, Names.named(String.valueOf(i++)));
                     install(p.module(k));
                     sinks.addBinding().to(k);
+
+                    if (durable != null)
+                        ids.addBinding(p.id()).to(k);
                 }
             }
         };
@@ -108,7 +250,7 @@ public class OutputManagerModule {
         return new Supplier<OutputManagerModule>() {
             @Override
             public OutputManagerModule get() {
-                return new OutputManagerModule(null);
+                return new OutputManagerModule(null, null, null, null, null);
             }
         };
     }
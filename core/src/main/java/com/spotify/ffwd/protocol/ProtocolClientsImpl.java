@@ -20,6 +20,7 @@ import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.nio.NioDatagramChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.util.Timer;
 
@@ -46,18 +47,18 @@ public class ProtocolClientsImpl implements ProtocolClients {
 
     @Override
     public AsyncFuture<ProtocolConnection> connect(Logger log, Protocol protocol, ProtocolClient client,
-            RetryPolicy policy) {
+            RetryPolicy policy, int maxResends) {
         if (protocol.getType() == ProtocolType.UDP)
-            return connectUDP(protocol, client, policy);
+            return connectUDP(log, protocol, client, policy, maxResends);
 
         if (protocol.getType() == ProtocolType.TCP)
-            return connectTCP(log, protocol, client, policy);
+            return connectTCP(log, protocol, client, policy, maxResends);
 
         throw new IllegalArgumentException("Unsupported protocol: " + protocol);
     }
 
     private AsyncFuture<ProtocolConnection> connectTCP(Logger log, Protocol protocol, ProtocolClient client,
-            RetryPolicy policy) {
+            RetryPolicy policy, int maxResends) {
         final Bootstrap b = new Bootstrap();
 
         b.group(worker);
@@ -80,12 +81,38 @@ public class ProtocolClientsImpl implements ProtocolClients {
                     public String toString() {
                         return String.format("connect tcp://%s:%d", host, port);
                     }
-                });
+                }, maxResends);
 
         return async.resolved(connection);
     }
 
-    private AsyncFuture<ProtocolConnection> connectUDP(Protocol protocol, ProtocolClient client, RetryPolicy policy) {
-        return async.failed(new RuntimeException("not implemented"));
+    /**
+     * Connect a datagram channel, which fixes the remote address so that plain buffers can be written to it.
+     */
+    private AsyncFuture<ProtocolConnection> connectUDP(Logger log, Protocol protocol, ProtocolClient client,
+            RetryPolicy policy, int maxResends) {
+        final Bootstrap b = new Bootstrap();
+
+        b.group(worker);
+        b.channel(NioDatagramChannel.class);
+        b.handler(client.initializer());
+
+        final String host = protocol.getAddress().getHostString();
+        final int port = protocol.getAddress().getPort();
+
+        final ProtocolConnection connection = new RetryingProtocolConnection(async, timer, log, policy,
+                new ProtocolChannelSetup() {
+                    @Override
+                    public ChannelFuture setup() {
+                        return b.connect(host, port);
+                    }
+
+                    @Override
+                    public String toString() {
+                        return String.format("connect udp://%s:%d", host, port);
+                    }
+                }, maxResends);
+
+        return async.resolved(connection);
     }
 }
\ No newline at end of file
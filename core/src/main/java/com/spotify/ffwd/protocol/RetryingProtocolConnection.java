@@ -23,12 +23,17 @@ import io.netty.util.Timeout;
 import io.netty.util.Timer;
 import io.netty.util.TimerTask;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
+import lombok.RequiredArgsConstructor;
+
 import org.slf4j.Logger;
 
 import eu.toolchain.async.AsyncFramework;
@@ -40,21 +45,35 @@ public class RetryingProtocolConnection implements ProtocolConnection {
     private final AtomicReference<Channel> channel = new AtomicReference<>();
     private final Object $lock = new Object();
 
+    // batches that were lost together with a previous channel, to be re-sent when reconnected.
+    private final List<PendingBatch> resend = new ArrayList<>();
+
     private final AsyncFramework async;
     private final Timer timer;
     private final Logger log;
     private final RetryPolicy policy;
     private final ProtocolChannelSetup action;
+    private final int maxResends;
 
     private final ResolvableFuture<ProtocolConnection> initialFuture;
 
     public RetryingProtocolConnection(AsyncFramework async, Timer timer, Logger log, RetryPolicy policy,
             ProtocolChannelSetup action) {
+        this(async, timer, log, policy, action, ProtocolClients.DEFAULT_MAX_RESENDS);
+    }
+
+    /**
+     * @param maxResends Number of times a batch is re-sent after being lost with a connection, before its future is
+     *            failed.
+     */
+    public RetryingProtocolConnection(AsyncFramework async, Timer timer, Logger log, RetryPolicy policy,
+            ProtocolChannelSetup action, int maxResends) {
         this.async = async;
         this.timer = timer;
         this.log = log;
         this.policy = policy;
         this.action = action;
+        this.maxResends = maxResends;
 
         this.initialFuture = async.<ProtocolConnection> future();
 
@@ -107,6 +126,14 @@ public class RetryingProtocolConnection implements ProtocolConnection {
                 initialFuture.resolve(this);
 
             channel.set(c);
+
+            if (!resend.isEmpty())
+                log.info("Re-sending {} batch(es) lost with previous connection", resend.size());
+
+            for (final PendingBatch pending : resend)
+                write(c, pending);
+
+            resend.clear();
         }
 
         c.closeFuture().addListener(new ChannelFutureListener() {
@@ -126,6 +153,11 @@ public class RetryingProtocolConnection implements ProtocolConnection {
         synchronized ($lock) {
             stopped.set(true);
 
+            for (final PendingBatch pending : resend)
+                pending.future.fail(new IllegalStateException("connection stopped"));
+
+            resend.clear();
+
             c = channel.getAndSet(null);
 
             if (c == null)
@@ -166,19 +198,72 @@ public class RetryingProtocolConnection implements ProtocolConnection {
             return async.failed(new IllegalStateException("not connected"));
 
         final ResolvableFuture<Void> future = async.future();
+        write(c, new PendingBatch(batch, future));
+        return future;
+    }
 
-        c.writeAndFlush(batch).addListener(new ChannelFutureListener() {
+    /**
+     * Write a batch, and re-send it if the channel is lost before the write completes.
+     *
+     * Clients which only complete writes when they have been acknowledged by the remote end will have all batches which
+     * were not acknowledged re-sent after reconnecting. A batch is re-sent at most {@code maxResends} times, so that a
+     * batch which causes the remote end to drop the connection is not re-sent forever.
+     */
+    private void write(final Channel c, final PendingBatch pending) {
+        c.writeAndFlush(pending.batch).addListener(new ChannelFutureListener() {
             @Override
             public void operationComplete(ChannelFuture f) throws Exception {
-                try {
-                    future.resolve(f.get());
-                } catch (ExecutionException e) {
-                    future.fail(e);
+                if (f.isSuccess()) {
+                    pending.future.resolve(null);
+                    return;
+                }
+
+                if (f.channel().isActive()) {
+                    pending.future.fail(f.cause());
+                    return;
+                }
+
+                if (pending.resends >= maxResends) {
+                    log.error("Giving up on batch of {} message(s) lost with {} connection(s)", pending.batch.size(),
+                            pending.resends + 1);
+                    pending.future.fail(new IOException("batch lost with " + (pending.resends + 1)
+                            + " connection(s)", f.cause()));
+                    return;
                 }
+
+                pending.resends++;
+
+                if (retry(f.channel(), pending))
+                    return;
+
+                pending.future.fail(f.cause());
             }
         });
+    }
 
-        return future;
+    /**
+     * Queue a batch that was lost together with the given channel, or write it immediately if a new channel is already
+     * available.
+     *
+     * @return {@code true} if the batch will be re-sent, {@code false} if this connection has been stopped.
+     */
+    private boolean retry(final Channel lost, final PendingBatch pending) {
+        final Channel c;
+
+        synchronized ($lock) {
+            if (stopped.get())
+                return false;
+
+            c = channel.get();
+
+            if (c == null || c == lost || !c.isActive()) {
+                resend.add(pending);
+                return true;
+            }
+        }
+
+        write(c, pending);
+        return true;
     }
 
     @Override
@@ -197,4 +282,13 @@ public class RetryingProtocolConnection implements ProtocolConnection {
     public AsyncFuture<ProtocolConnection> getInitialFuture() {
         return initialFuture;
     }
+
+    @RequiredArgsConstructor
+    private static final class PendingBatch {
+        private final Collection<? extends Object> batch;
+        private final ResolvableFuture<Void> future;
+
+        /* only accessed by the listener of the current write */
+        private int resends;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,286 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.qlog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Segment where entries are stored in Deflate-compressed blocks (version 3).
+ *
+ * Segments are compressed as a whole once they are no longer the tail, so the entire layout including the block index
+ * is known when it is written.
+ *
+ * <pre>
+ * header  | 16 | magic, version and offset, like other versions.
+ * ... blocks, each made up of:
+ * size    |  4 | Size of the compressed data.
+ * entries |  4 | Number of entries in the block.
+ * length  |  4 | Size of the uncompressed data.
+ * crc     |  4 | CRC-32C of the compressed data.
+ * data    |  n | Compressed entries, each prefixed with a 4-byte length.
+ * ... block index, for each block:
+ * before  |  4 | Number of entries in the segment before the block.
+ * offset  |  4 | Byte position of the block.
+ * ... trailer:
+ * blocks  |  4 | Number of blocks.
+ * index   |  4 | Byte position of the block index.
+ * </pre>
+ */
+class CompressedSegment {
+    public static final int VERSION = 3;
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int BLOCK_HEADER_SIZE = 16;
+    private static final int TRAILER_SIZE = 8;
+    private static final int INDEX_SLOT_SIZE = 8;
+
+    private final ByteBuffer buffer;
+    private final int blocks;
+    private final int index;
+
+    public CompressedSegment(final ByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < TRAILER_SIZE)
+            throw new IOException("segment too small");
+
+        this.buffer = buffer;
+        this.blocks = buffer.getInt(buffer.capacity() - TRAILER_SIZE);
+        this.index = buffer.getInt(buffer.capacity() - TRAILER_SIZE + 4);
+
+        if (blocks < 0 || index < 0 || index + blocks * INDEX_SLOT_SIZE != buffer.capacity() - TRAILER_SIZE)
+            throw new IOException("corrupt block index");
+    }
+
+    public int blocks() {
+        return blocks;
+    }
+
+    public int entriesBefore(final int block) {
+        return buffer.getInt(index + block * INDEX_SLOT_SIZE);
+    }
+
+    /**
+     * Total number of entries in the segment.
+     */
+    public int entries() {
+        if (blocks == 0)
+            return 0;
+
+        final int position = buffer.getInt(index + (blocks - 1) * INDEX_SLOT_SIZE + 4);
+        return entriesBefore(blocks - 1) + buffer.getInt(position + 4);
+    }
+
+    /**
+     * Find the block containing the given entry, or the last block if it is past the end of the segment.
+     */
+    public int findBlock(final int entry) {
+        int lo = 0;
+        int hi = blocks - 1;
+        int found = 0;
+
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+
+            if (entriesBefore(mid) <= entry) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Decompress the given block.
+     *
+     * @return A buffer positioned at the first entry of the block, see {@link #next(ByteBuffer)}.
+     */
+    public ByteBuffer inflate(final int block) throws IOException {
+        final int position = buffer.getInt(index + block * INDEX_SLOT_SIZE + 4);
+
+        final int size = buffer.getInt(position);
+        final int length = buffer.getInt(position + 8);
+        final int crc = buffer.getInt(position + 12);
+
+        final ByteBuffer compressed = buffer.duplicate();
+        compressed.limit(position + BLOCK_HEADER_SIZE + size);
+        compressed.position(position + BLOCK_HEADER_SIZE);
+
+        if (Crc32c.checksum(compressed) != crc)
+            throw new IOException("corrupt block " + block);
+
+        final byte[] input = new byte[size];
+        compressed.get(input);
+
+        final byte[] output = new byte[length];
+        final Inflater inflater = new Inflater();
+
+        try {
+            inflater.setInput(input);
+
+            if (inflater.inflate(output) != length)
+                throw new IOException("truncated block " + block);
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt block " + block, e);
+        } finally {
+            inflater.end();
+        }
+
+        return ByteBuffer.wrap(output).asReadOnlyBuffer();
+    }
+
+    /**
+     * Read the next entry of a decompressed block.
+     *
+     * @return The next entry, or {@code null} if there are no more entries in the block.
+     */
+    public static ByteBuffer next(final ByteBuffer block) {
+        if (block.remaining() < 4)
+            return null;
+
+        final int size = block.getInt();
+
+        final ByteBuffer entry = block.slice();
+        entry.limit(size);
+
+        block.position(block.position() + size);
+        return entry;
+    }
+
+    /**
+     * Writes a compressed segment to a channel.
+     */
+    public static class Writer {
+        private final FileChannel channel;
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+        private ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        private byte[] compressed = new byte[BLOCK_SIZE];
+
+        private ByteBuffer index = ByteBuffer.allocate(INDEX_SLOT_SIZE * 64);
+        private int blocks = 0;
+
+        private int entries = 0;
+        private int blockEntries = 0;
+        private int position;
+
+        /**
+         * @param header Header of the segment, which is written as-is.
+         */
+        public Writer(final FileChannel channel, final ByteBuffer header) throws IOException {
+            this.channel = channel;
+            this.position = write(header);
+        }
+
+        public void add(final ByteBuffer entry) throws IOException {
+            if (block.remaining() < 4 + entry.remaining()) {
+                flush();
+
+                // entries larger than a block get a block of their own.
+                if (block.capacity() < 4 + entry.remaining())
+                    block = ByteBuffer.allocate(4 + entry.remaining());
+            }
+
+            block.putInt(entry.remaining());
+            block.put(entry.duplicate());
+            blockEntries++;
+        }
+
+        public void finish() throws IOException {
+            flush();
+
+            try {
+                index.flip();
+
+                final int indexPosition = position;
+                position += write(index);
+
+                final ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+                trailer.putInt(blocks);
+                trailer.putInt(indexPosition);
+                trailer.flip();
+
+                position += write(trailer);
+            } finally {
+                deflater.end();
+            }
+        }
+
+        private void flush() throws IOException {
+            if (blockEntries == 0)
+                return;
+
+            final int length = block.position();
+
+            deflater.reset();
+            deflater.setInput(block.array(), 0, length);
+            deflater.finish();
+
+            int size = 0;
+
+            while (!deflater.finished()) {
+                if (size == compressed.length)
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+
+                size += deflater.deflate(compressed, size, compressed.length - size);
+            }
+
+            final ByteBuffer data = ByteBuffer.wrap(compressed, 0, size);
+
+            final ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+            header.putInt(size);
+            header.putInt(blockEntries);
+            header.putInt(length);
+            header.putInt(Crc32c.checksum(data));
+            header.flip();
+
+            if (index.remaining() < INDEX_SLOT_SIZE) {
+                final ByteBuffer larger = ByteBuffer.allocate(index.capacity() * 2);
+                index.flip();
+                larger.put(index);
+                index = larger;
+            }
+
+            index.putInt(entries);
+            index.putInt(position);
+            blocks++;
+
+            position += write(header);
+            position += write(data);
+
+            entries += blockEntries;
+            blockEntries = 0;
+            block.clear();
+        }
+
+        private int write(final ByteBuffer source) throws IOException {
+            final int size = source.remaining();
+
+            while (source.hasRemaining())
+                channel.write(source);
+
+            return size;
+        }
+    }
+}
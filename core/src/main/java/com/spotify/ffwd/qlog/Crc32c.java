@@ -0,0 +1,60 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.qlog;
+
+import java.nio.ByteBuffer;
+
+/**
+ * CRC-32C (Castagnoli), as used to checksum entries of the on-disk log.
+ */
+final class Crc32c {
+    private static final int POLYNOMIAL = 0x82f63b78;
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+
+            for (int j = 0; j < 8; j++)
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+
+            TABLE[i] = crc;
+        }
+    }
+
+    private Crc32c() {
+    }
+
+    /**
+     * Checksum the remaining bytes of the given buffer, without modifying its position.
+     */
+    public static int checksum(final ByteBuffer buffer) {
+        int crc = 0xffffffff;
+
+        for (int i = buffer.position(); i < buffer.limit(); i++)
+            crc = (crc >>> 8) ^ TABLE[(crc ^ buffer.get(i)) & 0xff];
+
+        return ~crc;
+    }
+
+    public static int checksum(final int a, final int b) {
+        final ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putInt(0, a);
+        buffer.putInt(4, b);
+        return checksum(buffer);
+    }
+}
@@ -33,10 +33,56 @@ public interface QLogManager {
 
     public void trim();
 
+    /**
+     * Drop the oldest segments that exceed the retention limits, even if they have not been consumed.
+     *
+     * Consumers positioned in dropped segments are advanced to the new head of the log, and the skipped entries are
+     * counted as lost for them.
+     */
+    public void retain();
+
+    /**
+     * Number of entries the given consumer has lost to retention.
+     */
+    public long lost(String id);
+
+    /**
+     * Write an entry to the log.
+     *
+     * @return The position of the log after the entry, which can be passed to {@link #sync(long)}.
+     */
     public long write(ByteBuffer buffer) throws IOException;
 
+    /**
+     * Wait for entries to be durably stored.
+     *
+     * @param position The position up until which entries should be durable.
+     * @return A future resolved when every entry before the given position has been forced to disk.
+     */
+    public AsyncFuture<Void> sync(long position);
+
     public void update(String id, long position);
 
+    /**
+     * Durably store the positions of all consumers, so that they resume close to where they left off after a crash.
+     *
+     * Positions are otherwise only stored when the log is stopped.
+     */
+    public void checkpoint() throws IOException;
+
+    /**
+     * Get the position of the given consumer.
+     *
+     * @return The last position stored through {@link #update(String, long)}, or the head of the log if the consumer
+     *         is not known.
+     */
+    public long committed(String id);
+
+    /**
+     * Open a reader for the given consumer, positioned at the committed position of that consumer.
+     */
+    public QLogReader reader(String id) throws IOException;
+
     public AsyncFuture<Void> start();
 
     public AsyncFuture<Void> stop();
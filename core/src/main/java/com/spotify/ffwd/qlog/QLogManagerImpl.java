@@ -13,23 +13,31 @@
  **/
 package com.spotify.ffwd.qlog;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.charset.Charset;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import lombok.RequiredArgsConstructor;
 import lombok.ToString;
@@ -41,46 +49,117 @@ import com.google.inject.name.Named;
 
 import eu.toolchain.async.AsyncFramework;
 import eu.toolchain.async.AsyncFuture;
+import eu.toolchain.async.ResolvableFuture;
 
+/**
+ * On-disk log, see docs/on-disk-queue.md for the format.
+ *
+ * The tail segment is memory-mapped, so appending an entry is a write into the mapping and persisting it is left to
+ * the page cache. Heap usage is therefore independent of {@code maxLogSize}.
+ *
+ * Writers do not take a lock to append, see {@link Tail}. Rolling over to a new segment is the only step where writers
+ * are coordinated.
+ *
+ * If compression is enabled, segments are rewritten as a {@link CompressedSegment} in the background once they are no
+ * longer the tail.
+ *
+ * Retention limits are only enforced when {@link #retain()} is called, which is expected to happen periodically from
+ * outside of the write path.
+ */
 @Slf4j
 public class QLogManagerImpl implements QLogManager {
+    public static enum Durability {
+        /**
+         * Only force the log to disk when a segment is full, when stopping, or when requested through
+         * {@link QLogManager#sync(long)}.
+         */
+        NONE,
+        /**
+         * Force the log to disk at a regular interval.
+         */
+        INTERVAL,
+        /**
+         * Force the log to disk continuously, each force covering all entries written while the previous one was in
+         * progress.
+         */
+        GROUP
+    }
+
     private static final Charset UTF8 = Charset.forName("UTF-8");
     private static final int MINIMUM_MAX_LOG_SIZE = 10000;
-    private static final int DEFAULT_MAX_LOG_SIZE = 100000000;
+    public static final int DEFAULT_MAX_LOG_SIZE = 100000000;
     private static final String QLOG_FORMAT = "%016x";
     private static final String INDEX = "index";
+    private static final String COMPACT_SUFFIX = ".compact";
+    private static final String INDEX_TEMPORARY = "index.tmp";
 
     // 'FFLG'
     private static final byte[] MAGIC = new byte[] { 0x46, 0x46, 0x4c, 0x47 };
-    private static final int HEADER_BASE_SIZE = MAGIC.length + 8;
-    private static final int BUFFER_SIZE = 4096;
-    private static final int CURRENT_VERSION = 0;
+    private static final int CURRENT_VERSION = 2;
+    private static final long DEFAULT_SYNC_INTERVAL = 1000;
 
     private final Path path;
     private final AsyncFramework async;
     private final int maxLogSize;
+    private final Durability durability;
+    private final long syncInterval;
+    private final boolean compress;
+    private final QLogRetention retention;
 
     private final Object $lock = new Object();
     private volatile boolean setup = false;
 
-    // buffer to the tail log.
     private List<Header> headers;
     private Map<String, Long> offsets;
-    private long position;
-    private ByteBuffer tail;
+    private final ConcurrentMap<String, AtomicLong> lost = new ConcurrentHashMap<>();
+
+    /* offset of the first segment, read by readers without taking the lock */
+    private volatile long head;
+
+    private final Object $index = new Object();
+    /* number of changes to offsets, and the number covered by the last checkpoint */
+    private final AtomicLong changes = new AtomicLong();
+    private long checkpointed;
+
+    private final Object $sync = new Object();
+    private final List<SyncRequest> syncs = new ArrayList<>();
+    private long synced;
+    private long requested;
+    private Thread syncer;
+    private volatile boolean syncWaiting;
+
+    private volatile Tail tail;
 
     @Inject
-    public QLogManagerImpl(@Named("path") final Path path, final AsyncFramework async) {
+    public QLogManagerImpl(@Named("path") final Path path, final AsyncFramework async,
+            @Named("durability") final Durability durability, @Named("syncInterval") final long syncInterval,
+            @Named("compress") final boolean compress, final QLogRetention retention) {
+        this(path, async, DEFAULT_MAX_LOG_SIZE, durability, syncInterval, compress, retention);
+    }
+
+    public QLogManagerImpl(final Path path, final AsyncFramework async) {
         this(path, async, DEFAULT_MAX_LOG_SIZE);
     }
 
     public QLogManagerImpl(final Path path, final AsyncFramework async, int maxLogSize) {
+        this(path, async, maxLogSize, Durability.NONE, DEFAULT_SYNC_INTERVAL, false, QLogRetention.UNLIMITED);
+    }
+
+    public QLogManagerImpl(final Path path, final AsyncFramework async, int maxLogSize, Durability durability,
+            long syncInterval, boolean compress, QLogRetention retention) {
         if (maxLogSize < MINIMUM_MAX_LOG_SIZE)
             throw new IllegalArgumentException("maxLogSize");
 
+        if (syncInterval <= 0)
+            throw new IllegalArgumentException("syncInterval");
+
         this.path = path;
         this.async = async;
         this.maxLogSize = maxLogSize;
+        this.durability = durability;
+        this.syncInterval = syncInterval;
+        this.compress = compress;
+        this.retention = retention;
     }
 
     /**
@@ -110,17 +189,10 @@ public class QLogManagerImpl implements QLogManager {
                 current = next;
             }
 
-            for (final Header m : unlink) {
-                headers.remove(m);
+            for (final Header m : unlink)
+                unlink(m);
 
-                log.info("Unlinking {}", m);
-
-                try {
-                    Files.delete(m.path());
-                } catch (IOException e) {
-                    log.error("Failed to unlink {}", m, e);
-                }
-            }
+            head = headers.get(0).offset();
         }
     }
 
@@ -134,27 +206,125 @@ public class QLogManagerImpl implements QLogManager {
         }
     }
 
+    @Override
+    public void retain() {
+        if (!setup)
+            throw new IllegalStateException("not setup");
+
+        final long now = System.currentTimeMillis();
+
+        synchronized ($lock) {
+            final List<Long> sizes = new ArrayList<>(headers.size());
+            long total = 0;
+
+            try {
+                for (final Header h : headers) {
+                    final long size = segmentSize(h);
+                    sizes.add(size);
+                    total += size;
+                }
+            } catch (IOException e) {
+                log.error("Failed to determine size of log", e);
+                return;
+            }
+
+            final List<Header> unlink = Lists.newArrayList();
+
+            // the tail is never dropped.
+            for (int i = 0; i < headers.size() - 1; i++) {
+                final Header h = headers.get(i);
+
+                if (!exceedsRetention(h, headers.size() - i, total, now))
+                    break;
+
+                unlink.add(h);
+                total -= sizes.get(i);
+            }
+
+            if (unlink.isEmpty())
+                return;
+
+            for (final Header m : unlink)
+                unlink(m);
+
+            final long head = headers.get(0).offset();
+            this.head = head;
+
+            for (final Map.Entry<String, Long> e : offsets.entrySet()) {
+                final long position = e.getValue();
+
+                if (position >= head)
+                    continue;
+
+                log.warn("Retention dropped {} unconsumed entries of consumer {}", head - position, e.getKey());
+                lostCounter(e.getKey()).addAndGet(head - position);
+                offsets.put(e.getKey(), head);
+                changes.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public long lost(final String id) {
+        final AtomicLong counter = lost.get(id);
+
+        if (counter == null)
+            return 0;
+
+        return counter.get();
+    }
+
     @Override
     public void update(String id, long position) {
         if (!setup)
             throw new IllegalStateException("not setup");
 
+        // a consumer might acknowledge entries that have since been dropped by retention.
+        offsets.put(id, Math.max(position, head));
+        changes.incrementAndGet();
+    }
+
+    @Override
+    public void checkpoint() throws IOException {
+        if (!setup)
+            throw new IllegalStateException("not setup");
+
+        flushIndex();
+    }
+
+    @Override
+    public long committed(String id) {
+        if (!setup)
+            throw new IllegalStateException("not setup");
+
+        final Long position = offsets.get(id);
+
+        if (position != null)
+            return position;
+
         synchronized ($lock) {
-            offsets.put(id, position);
+            return headers.get(0).offset();
         }
     }
 
+    @Override
+    public QLogReader reader(final String id) throws IOException {
+        final Reader reader = new Reader(id);
+        reader.seek(committed(id));
+        return reader;
+    }
+
     /**
      * Return the current offset of the log.
      */
     @Override
     public long position() {
-        if (!setup)
+        final Tail tail = this.tail;
+
+        if (!setup || tail == null)
             throw new IllegalStateException("not setup");
 
-        synchronized ($lock) {
-            return position;
-        }
+        return tail.position();
     }
 
     /**
@@ -171,9 +341,34 @@ public class QLogManagerImpl implements QLogManager {
         if (!setup)
             throw new IllegalStateException("not setup");
 
-        synchronized ($lock) {
-            writeEntry(position++, input.asReadOnlyBuffer());
-            return position;
+        if (input.remaining() == 0)
+            throw new IllegalArgumentException("empty entries are not supported");
+
+        final long written = writeEntry(input.duplicate());
+
+        if (syncWaiting && durability == Durability.GROUP) {
+            synchronized ($sync) {
+                $sync.notifyAll();
+            }
+        }
+
+        return written;
+    }
+
+    @Override
+    public AsyncFuture<Void> sync(final long position) {
+        if (!setup)
+            throw new IllegalStateException("not setup");
+
+        synchronized ($sync) {
+            if (position <= synced)
+                return async.resolved(null);
+
+            final ResolvableFuture<Void> future = async.future();
+            syncs.add(new SyncRequest(position, future));
+            requested = Math.max(requested, position);
+            $sync.notifyAll();
+            return future;
         }
     }
 
@@ -188,14 +383,28 @@ public class QLogManagerImpl implements QLogManager {
         return async.call(new Callable<Void>() {
             @Override
             public Void call() throws Exception {
+                final List<FramedHeader> uncompressed = new ArrayList<>();
+
                 synchronized ($lock) {
                     if (setup)
                         return null;
 
                     start0();
+                    head = headers.get(0).offset();
                     setup = true;
+
+                    if (compress) {
+                        for (final Header h : headers) {
+                            if (h instanceof FramedHeader && h != tail())
+                                uncompressed.add((FramedHeader) h);
+                        }
+                    }
                 }
 
+                for (final FramedHeader h : uncompressed)
+                    scheduleCompaction(h);
+
+                startSyncer();
                 return null;
             }
         });
@@ -209,19 +418,83 @@ public class QLogManagerImpl implements QLogManager {
         return async.call(new Callable<Void>() {
             @Override
             public Void call() throws Exception {
+                // the syncer might be waiting for the lock.
+                stopSyncer();
+
+                final long position;
+
                 synchronized ($lock) {
                     if (!setup)
                         return null;
 
-                    stop0();
+                    position = stop0();
                     setup = false;
                 }
 
+                completeSyncs(position);
                 return null;
             }
         });
     }
 
+    private void unlink(final Header header) {
+        headers.remove(header);
+
+        log.info("Unlinking {}", header);
+
+        try {
+            Files.delete(header.path());
+            Files.deleteIfExists(SegmentIndex.pathFor(header.path()));
+        } catch (IOException e) {
+            log.error("Failed to unlink {}", header, e);
+        }
+    }
+
+    private long segmentSize(final Header header) throws IOException {
+        final Path index = SegmentIndex.pathFor(header.path());
+        long size = Files.size(header.path());
+
+        if (Files.exists(index))
+            size += Files.size(index);
+
+        return size;
+    }
+
+    /**
+     * Check if the given segment has to be dropped to satisfy the retention limits.
+     *
+     * @param segments Number of segments, starting with the given one.
+     * @param total Number of bytes used by segments, starting with the given one.
+     */
+    private boolean exceedsRetention(final Header header, final int segments, final long total, final long now) {
+        if (retention.getMaxSegments() > 0 && segments > retention.getMaxSegments())
+            return true;
+
+        if (retention.getMaxBytes() > 0 && total > retention.getMaxBytes())
+            return true;
+
+        if (retention.getMaxAge() <= 0)
+            return false;
+
+        try {
+            return now - Files.getLastModifiedTime(header.path()).toMillis() > retention.getMaxAge();
+        } catch (IOException e) {
+            log.error("Failed to determine age of {}", header, e);
+            return false;
+        }
+    }
+
+    private AtomicLong lostCounter(final String id) {
+        final AtomicLong counter = lost.get(id);
+
+        if (counter != null)
+            return counter;
+
+        final AtomicLong created = new AtomicLong();
+        final AtomicLong existing = lost.putIfAbsent(id, created);
+        return existing != null ? existing : created;
+    }
+
     private long maxOffset() {
         long offset = position();
 
@@ -231,42 +504,221 @@ public class QLogManagerImpl implements QLogManager {
         return offset;
     }
 
-    private void writeEntry(final long position, final ByteBuffer input) throws IOException {
-        final Header header = tail();
+    /**
+     * Reserve a region of the tail and copy the entry into it, rolling over to a new segment if it does not fit.
+     *
+     * @return The position after the written entry.
+     */
+    private long writeEntry(final ByteBuffer input) throws IOException {
+        while (true) {
+            final Tail tail = this.tail;
+
+            if (tail == null)
+                throw new IllegalStateException("not setup");
 
-        if (header == null)
-            throw new IllegalStateException("header");
+            final Header2 header = tail.header;
+            final int size = header.entrySize(input.remaining());
+
+            if (header.size() + size > maxLogSize)
+                throw new IOException("entry too large");
 
-        final Header writeTo;
+            final long reservation = tail.reserve(size);
 
-        // expand the log with another on-disk entry.
-        if (tail.position() + input.remaining() > tail.capacity()) {
-            flush(header);
-            tail.rewind();
+            if (reservation < 0) {
+                roll(tail);
+                continue;
+            }
 
-            writeTo = appendHeader(position);
+            final int entry = (int) (reservation >>> 32);
+            final int start = (int) reservation;
 
-            if (tail.position() + input.remaining() > tail.capacity())
-                throw new IOException("entry too large");
-        } else {
-            writeTo = header;
+            final ByteBuffer target = tail.buffer.duplicate();
+            target.position(start);
+
+            boolean written = false;
+
+            // the region has to be committed no matter what, since later writers wait for it.
+            try {
+                header.writeEntry(target, input);
+                written = true;
+            } finally {
+                try {
+                    if (!written)
+                        header.skipEntry(tail.buffer.duplicate(), start, size);
+                } finally {
+                    tail.commit(entry, start, start + size);
+                }
+            }
+
+            return header.offset() + entry + 1;
+        }
+    }
+
+    /**
+     * Seal the given tail and continue in a new segment, unless another writer already did.
+     */
+    private void roll(final Tail tail) throws IOException {
+        synchronized ($lock) {
+            if (this.tail != tail)
+                return;
+
+            final int entries = tail.seal();
+
+            // later syncs only cover the new tail.
+            tail.buffer.force();
+            tail.index.force();
+
+            appendHeader(tail.header.offset() + entries);
+        }
+
+        if (compress)
+            scheduleCompaction(tail.header);
+    }
+
+    private void scheduleCompaction(final FramedHeader header) {
+        async.call(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try {
+                    compact(header);
+                } catch (Exception e) {
+                    log.error("Failed to compress {}", header, e);
+                }
+
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Rewrite a segment which is no longer the tail as a compressed segment.
+     *
+     * The compressed segment is written next to the original, and atomically moved in place of it if the segment has
+     * not been trimmed in the meantime. Readers which have the original segment mapped continue to read it.
+     */
+    private void compact(final FramedHeader header) throws IOException {
+        final Path target = header.path().resolveSibling(header.path().getFileName() + COMPACT_SUFFIX);
+
+        final ByteBuffer source;
+
+        try (final FileChannel channel = FileChannel.open(header.path(), StandardOpenOption.READ)) {
+            source = channel.map(MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        source.position(header.size());
+
+        final ByteBuffer prefix = ByteBuffer.allocate(16);
+        prefix.put(MAGIC);
+        prefix.putInt(CompressedSegment.VERSION);
+        prefix.putLong(header.offset());
+        prefix.flip();
+
+        final long size;
+
+        try (final FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            final CompressedSegment.Writer writer = new CompressedSegment.Writer(channel, prefix);
+
+            ByteBuffer entry;
+
+            while ((entry = header.read(source)) != null)
+                writer.add(entry);
+
+            writer.finish();
+            channel.force(true);
+            size = channel.size();
+        }
+
+        synchronized ($lock) {
+            final int index = headers.indexOf(header);
+
+            if (index < 0) {
+                Files.delete(target);
+                return;
+            }
+
+            Files.move(target, header.path(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            Files.deleteIfExists(SegmentIndex.pathFor(header.path()));
+            headers.set(index, new Header3(header.path(), header.offset()));
         }
 
-        writeTo.writeEntry(tail, input);
+        log.info("Compressed {} from {} to {} bytes", header.path(), source.capacity(), size);
     }
 
-    private void stop0() throws IOException {
-        final Header header = tail();
+    /**
+     * @return The position of the log when it was stopped.
+     */
+    private long stop0() throws IOException {
+        final Tail tail = this.tail;
 
-        if (header == null)
+        if (tail == null)
             throw new IllegalStateException("header");
 
+        final int entries = tail.seal();
+
         flushIndex();
-        flush(header);
+
+        log.info("Saving: {}", tail.header.path());
+        tail.buffer.force();
+        tail.index.force();
+        this.tail = null;
+
+        return tail.header.offset() + entries;
+    }
+
+    private void startSyncer() {
+        final long position = position();
+
+        synchronized ($sync) {
+            synced = position;
+            requested = position;
+        }
+
+        final Thread syncer = new Thread(new Syncer(), "ffwd-qlog-sync");
+        syncer.setDaemon(true);
+        syncer.start();
+
+        this.syncer = syncer;
+    }
+
+    private void stopSyncer() throws InterruptedException {
+        final Thread syncer = this.syncer;
+
+        if (syncer == null)
+            return;
+
+        this.syncer = null;
+        syncer.interrupt();
+        syncer.join();
+    }
+
+    /**
+     * Resolve all sync requests up to the given position.
+     */
+    private void completeSyncs(final long position) {
+        final List<SyncRequest> completed = new ArrayList<>();
+
+        synchronized ($sync) {
+            synced = Math.max(synced, position);
+
+            final Iterator<SyncRequest> iter = syncs.iterator();
+
+            while (iter.hasNext()) {
+                final SyncRequest r = iter.next();
+
+                if (r.position <= synced) {
+                    completed.add(r);
+                    iter.remove();
+                }
+            }
+        }
+
+        for (final SyncRequest r : completed)
+            r.future.resolve(null);
     }
 
     private Map<String, Long> readIndex() throws IOException {
-        final Map<String, Long> offsets = new HashMap<>();
+        final Map<String, Long> offsets = new ConcurrentHashMap<>();
 
         final Path index = this.path.resolve(INDEX);
 
@@ -296,12 +748,25 @@ public class QLogManagerImpl implements QLogManager {
         return offsets;
     }
 
+    /**
+     * Write the positions of all consumers to the index, unless they have not changed since the last time.
+     *
+     * The index is written to a temporary file which is forced to disk and renamed over the previous index, so that a
+     * crash leaves either the previous or the new index in place.
+     */
     private void flushIndex() throws IOException {
-        final Path index = this.path.resolve(INDEX);
+        synchronized ($index) {
+            final long changes = this.changes.get();
 
-        final ByteBuffer writer = ByteBuffer.allocate(12);
+            if (changes == checkpointed)
+                return;
+
+            final Path index = this.path.resolve(INDEX);
+            final Path temporary = this.path.resolve(INDEX_TEMPORARY);
+
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            final ByteBuffer writer = ByteBuffer.allocate(12);
 
-        try (final OutputStream output = Files.newOutputStream(index)) {
             for (final Map.Entry<String, Long> e : offsets.entrySet()) {
                 writer.rewind();
 
@@ -312,26 +777,63 @@ public class QLogManagerImpl implements QLogManager {
                 output.write(writer.array(), 0, writer.remaining());
                 output.write(idBytes);
             }
+
+            try (final FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                final ByteBuffer buffer = ByteBuffer.wrap(output.toByteArray());
+
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+
+                channel.force(true);
+            }
+
+            Files.move(temporary, index, StandardCopyOption.ATOMIC_MOVE);
+            forceDirectory();
+
+            checkpointed = changes;
         }
     }
 
-    private void flush(final Header header) throws IOException {
-        final ByteBuffer source = tail.asReadOnlyBuffer();
-        source.flip();
+    /**
+     * Force the directory of the log to disk, which persists renames in it.
+     */
+    private void forceDirectory() {
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not supported on all platforms.
+            log.debug("Failed to force directory {}", path, e);
+        }
+    }
+
+    /**
+     * Find the segment containing the given position.
+     */
+    private Header find(final long position) {
+        Header found = headers.get(0);
+
+        for (final Header h : headers) {
+            if (h.offset() > position)
+                break;
 
-        log.info("Saving: {}", header.path());
+            found = h;
+        }
 
-        final byte[] buffer = new byte[BUFFER_SIZE];
+        return found;
+    }
 
-        final ByteBuffer segment = ByteBuffer.allocate(12);
+    /**
+     * Map the given segment for reading.
+     *
+     * The tail segment shares the mapping used for writing, other segments are mapped from their file.
+     */
+    private ByteBuffer mapForRead(final Header header) throws IOException {
+        if (header == tail())
+            return tail.buffer.asReadOnlyBuffer();
 
-        // copy tail buffer into file.
-        try (final OutputStream output = Files.newOutputStream(header.path())) {
-            while (source.remaining() > 0) {
-                int size = Math.min(BUFFER_SIZE, source.remaining());
-                source.get(buffer, 0, size);
-                output.write(buffer, 0, size);
-            }
+        try (final FileChannel channel = FileChannel.open(header.path(), StandardOpenOption.READ)) {
+            return channel.map(MapMode.READ_ONLY, 0, channel.size());
         }
     }
 
@@ -346,33 +848,56 @@ public class QLogManagerImpl implements QLogManager {
         final List<Header> headers = readAllHeaders();
 
         this.offsets = readIndex();
+        this.headers = headers;
+
+        synchronized ($index) {
+            checkpointed = changes.get();
+        }
 
         // initializing
         if (headers.isEmpty()) {
             log.info("initializing {}", path);
 
-            this.tail = ByteBuffer.allocate(maxLogSize);
-            this.position = 0;
-            this.headers = headers;
-
             appendHeader(0);
             return;
         }
 
         final Header header = headers.get(headers.size() - 1);
 
-        final ByteBuffer tail = readPath(header.path());
-        final ByteBuffer source = tail.asReadOnlyBuffer();
+        if (header.version() == CURRENT_VERSION) {
+            final Header2 current = (Header2) header;
+            final MappedByteBuffer tail = mapPath(current.path(), false);
+            final SegmentIndex index = SegmentIndex.open(SegmentIndex.pathFor(current.path()), tail.capacity());
+            final long entries = recover(current, tail, index);
+
+            // discard anything after the last complete entry, like a partially written one.
+            if (tail.remaining() >= 4)
+                tail.putInt(tail.position(), 0);
 
-        source.flip();
+            this.tail = new Tail(current, tail, index, (int) entries, tail.position());
+            return;
+        }
 
-        final long position = countEntries(header, source);
+        // older or compressed versions are only read, writing continues in a new segment.
+        final long entries;
 
-        tail.position(source.position());
+        try (final FileChannel channel = FileChannel.open(header.path(), StandardOpenOption.READ)) {
+            final ByteBuffer source = channel.map(MapMode.READ_ONLY, 0, channel.size());
 
-        this.tail = tail;
-        this.position = header.offset() + position;
-        this.headers = headers;
+            if (header instanceof FramedHeader)
+                entries = countEntries((FramedHeader) header, source);
+            else
+                entries = new CompressedSegment(source).entries();
+        }
+
+        // would otherwise collide with the new segment.
+        if (entries == 0) {
+            headers.remove(header);
+            Files.delete(header.path());
+        }
+
+        log.info("Converting tail {} (version {}) to version {}", header.path(), header.version(), CURRENT_VERSION);
+        appendHeader(header.offset() + entries);
     }
 
     private List<Header> readAllHeaders() throws IOException {
@@ -381,6 +906,16 @@ public class QLogManagerImpl implements QLogManager {
         try (final DirectoryStream<Path> files = Files.newDirectoryStream(path)) {
             for (final Path f : files) {
                 final String name = f.getFileName().toString();
+
+                if (INDEX.equals(name) || SegmentIndex.isIndex(f))
+                    continue;
+
+                // left behind by an interrupted compression or checkpoint.
+                if (name.endsWith(COMPACT_SUFFIX) || INDEX_TEMPORARY.equals(name)) {
+                    Files.delete(f);
+                    continue;
+                }
+
                 final Path abs = f.toAbsolutePath();
 
                 log.info("Loading metadata from: {}", abs);
@@ -398,74 +933,128 @@ public class QLogManagerImpl implements QLogManager {
         return headers;
     }
 
-    private long countEntries(final Header header, final ByteBuffer source) {
-        long offset = 0;
+    /**
+     * Recover the tail segment, using its index to only verify the entries after the last valid checkpoint.
+     *
+     * The position of the tail is left after the last valid entry, and checkpoints after it are discarded.
+     *
+     * @return The number of valid entries in the segment.
+     */
+    private long recover(final Header2 header, final ByteBuffer tail, final SegmentIndex index) {
+        int slot = index.slots() - 1;
 
-        // skip header
-        source.position(HEADER_BASE_SIZE + header.size());
+        while (slot >= 0 && !isValidCheckpoint(header, tail, index, slot))
+            slot--;
 
-        while (source.remaining() > 0) {
-            // break on corrupt entry.
-            if (header.read(source) == null)
+        index.truncate(slot + 1);
+
+        long entries = 0;
+        tail.position(header.size());
+
+        if (slot >= 0) {
+            tail.position(index.position(slot));
+            entries = index.count(slot);
+        }
+
+        log.info("Recovering {} from entry {} (position {})", header.path(), entries, tail.position());
+
+        while (tail.remaining() > 0) {
+            if (header.verify(tail) == null)
                 break;
 
-            offset += 1;
+            entries += 1;
         }
 
-        return offset;
+        return entries;
     }
 
-    private ByteBuffer readPath(final Path path) throws IOException {
-        final long logSize = Files.size(path);
-
-        if (logSize > Integer.MAX_VALUE)
-            throw new IllegalStateException("file too large: " + path);
+    private boolean isValidCheckpoint(final Header2 header, final ByteBuffer tail, final SegmentIndex index,
+            final int slot) {
+        if (!index.isValid(slot))
+            return false;
 
-        final int actual = Math.max((int) logSize, maxLogSize);
+        final int position = index.position(slot);
 
-        if (actual > maxLogSize)
-            log.warn("grew max to {} since tail file larger than maximum {}", actual, maxLogSize);
+        if (position < header.size() || position >= tail.capacity())
+            return false;
 
-        final ByteBuffer buffer = ByteBuffer.allocate(actual);
+        final ByteBuffer source = tail.duplicate();
+        source.position(position);
+        return header.verify(source) != null;
+    }
 
-        try (final InputStream input = Files.newInputStream(path)) {
-            final byte[] local = new byte[4096];
+    /**
+     * Count the number of complete entries in the given segment.
+     *
+     * The position of the source is left after the last complete entry.
+     */
+    private long countEntries(final FramedHeader header, final ByteBuffer source) {
+        long offset = 0;
 
-            while (true) {
-                final int read = input.read(local);
+        // skip header
+        source.position(header.size());
 
-                if (read <= 0)
-                    break;
+        while (source.remaining() > 0) {
+            // break on corrupt entry.
+            if (header.verify(source) == null)
+                break;
 
-                buffer.put(local, 0, read);
-            }
+            offset += 1;
         }
 
-        return buffer;
+        return offset;
+    }
+
+    /**
+     * Map a segment for writing.
+     *
+     * The mapping covers at least {@code maxLogSize} bytes, growing the file if necessary. Any newly allocated region
+     * of the file is zero-filled, which makes it read as the end of the segment.
+     */
+    private MappedByteBuffer mapPath(final Path path, final boolean create) throws IOException {
+        final StandardOpenOption mode = create ? StandardOpenOption.CREATE_NEW : StandardOpenOption.READ;
+
+        try (final FileChannel channel = FileChannel.open(path, mode, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            final long logSize = channel.size();
+
+            if (logSize > Integer.MAX_VALUE)
+                throw new IllegalStateException("file too large: " + path);
+
+            final int actual = Math.max((int) logSize, maxLogSize);
+
+            if (actual > maxLogSize)
+                log.warn("grew max to {} since tail file larger than maximum {}", actual, maxLogSize);
+
+            // the mapping stays valid after the channel has been closed.
+            return channel.map(MapMode.READ_WRITE, 0, actual);
+        }
     }
 
     private Header appendHeader(final long offset) throws IOException {
         final Path path = this.path.resolve(String.format(QLOG_FORMAT, offset)).toAbsolutePath();
 
-        if (tail.position() != 0)
-            throw new IllegalStateException("tail should be in position zero");
+        final Header2 header2 = new Header2(path, offset);
 
-        final Header0 header0 = new Header0(path, offset);
+        final MappedByteBuffer buffer = mapPath(path, true);
 
-        tail.put(MAGIC);
-        tail.putInt(CURRENT_VERSION);
-        header0.write(tail);
+        buffer.put(MAGIC);
+        buffer.putInt(CURRENT_VERSION);
+        header2.write(buffer);
 
-        headers.add(header0);
+        final SegmentIndex index = SegmentIndex.open(SegmentIndex.pathFor(path), buffer.capacity());
 
-        return header0;
+        headers.add(header2);
+        this.tail = new Tail(header2, buffer, index, 0, buffer.position());
+
+        return header2;
     }
 
     private Header readHeader(String name, Path path, InputStream source) throws IOException {
         try (final DataInputStream d = new DataInputStream(source)) {
             final byte[] magic = new byte[4];
 
-            d.read(magic);
+            d.readFully(magic);
 
             if (!Arrays.equals(MAGIC, magic))
                 throw new IllegalStateException("Magic bytes do not match");
@@ -475,6 +1064,15 @@ public class QLogManagerImpl implements QLogManager {
             if (version == 0)
                 return readHeader0(name, path, d);
 
+            if (version == 1)
+                return readHeader1(name, path, d);
+
+            if (version == 2)
+                return readHeader2(name, path, d);
+
+            if (version == CompressedSegment.VERSION)
+                return readHeader3(name, path, d);
+
             throw new IllegalStateException("Unsupported log version: " + version);
         }
     }
@@ -484,23 +1082,422 @@ public class QLogManagerImpl implements QLogManager {
         return new Header0(path, offset);
     }
 
+    private Header readHeader1(String name, Path path, DataInput source) throws IOException {
+        final long offset = source.readLong();
+        return new Header1(path, offset);
+    }
+
+    private Header readHeader2(String name, Path path, DataInput source) throws IOException {
+        final long offset = source.readLong();
+        return new Header2(path, offset);
+    }
+
+    private Header readHeader3(String name, Path path, DataInput source) throws IOException {
+        final long offset = source.readLong();
+        return new Header3(path, offset);
+    }
+
+    /**
+     * The segment being appended to.
+     *
+     * Writers reserve a region of the segment by moving the reservation forward with a CAS, and copy their entries
+     * into the mapping in parallel. Entries are then committed in the order they were reserved, which advances the
+     * committed watermark that readers and {@link #position()} are based on.
+     */
+    private static class Tail {
+        // set in the reservation when the segment no longer accepts entries.
+        private static final long SEALED = Long.MIN_VALUE;
+
+        private final Header2 header;
+        private final MappedByteBuffer buffer;
+        private final SegmentIndex index;
+
+        // number of reserved entries in the upper 32 bits, and reserved bytes in the lower.
+        private final AtomicLong reserved;
+
+        private volatile int committed;
+        private volatile int committedBytes;
+
+        public Tail(final Header2 header, final MappedByteBuffer buffer, final SegmentIndex index, final int entries,
+                final int bytes) {
+            this.header = header;
+            this.buffer = buffer;
+            this.index = index;
+            this.reserved = new AtomicLong(((long) entries << 32) | bytes);
+            this.committed = entries;
+            this.committedBytes = bytes;
+        }
+
+        public long position() {
+            return header.offset() + committed;
+        }
+
+        /**
+         * Reserve a region of the segment.
+         *
+         * @return The entry number in the upper 32 bits and the byte position in the lower, or {@code -1} if the
+         *         segment is sealed or the region does not fit.
+         */
+        public long reserve(final int size) {
+            while (true) {
+                final long current = reserved.get();
+
+                if ((current & SEALED) != 0)
+                    return -1;
+
+                final int entries = (int) (current >>> 32);
+                final int bytes = (int) current;
+
+                if (size > buffer.capacity() - bytes)
+                    return -1;
+
+                if (reserved.compareAndSet(current, ((long) (entries + 1) << 32) | (bytes + size)))
+                    return current;
+            }
+        }
+
+        /**
+         * Commit an entry once every entry reserved before it has been committed.
+         */
+        public void commit(final int entry, final int start, final int end) {
+            while (committed != entry)
+                Thread.yield();
+
+            index.add(entry, start);
+            committedBytes = end;
+            committed = entry + 1;
+        }
+
+        /**
+         * Stop accepting entries, and wait for writers which have already reserved a region to commit.
+         *
+         * @return The number of entries in the segment.
+         */
+        public int seal() {
+            long current;
+
+            do {
+                current = reserved.get();
+            } while ((current & SEALED) == 0 && !reserved.compareAndSet(current, current | SEALED));
+
+            final int entries = (int) ((current & ~SEALED) >>> 32);
+
+            while (committed != entries)
+                Thread.yield();
+
+            return entries;
+        }
+    }
+
+    @RequiredArgsConstructor
+    private static class SyncRequest {
+        private final long position;
+        private final ResolvableFuture<Void> future;
+    }
+
+    /**
+     * Forces the tail to disk according to the durability mode.
+     *
+     * Segments before the tail have already been forced when they were rolled over, so a force of the tail covers
+     * every entry written up until then.
+     *
+     * In group mode, writers only notify the syncer while it is waiting. The syncer marks itself as waiting before
+     * checking for new entries, so an entry is either seen by that check or followed by a notification.
+     */
+    private class Syncer implements Runnable {
+        private long deadline;
+
+        @Override
+        public void run() {
+            deadline = System.currentTimeMillis() + syncInterval;
+
+            while (true) {
+                try {
+                    synchronized ($sync) {
+                        while (true) {
+                            syncWaiting = true;
+
+                            if (due())
+                                break;
+
+                            waitFor();
+                        }
+
+                        syncWaiting = false;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                final Tail tail = QLogManagerImpl.this.tail;
+
+                if (tail == null)
+                    continue;
+
+                final long target = tail.position();
+                tail.buffer.force();
+
+                completeSyncs(target);
+                deadline = System.currentTimeMillis() + syncInterval;
+            }
+        }
+
+        private long position() {
+            final Tail tail = QLogManagerImpl.this.tail;
+            return tail == null ? synced : tail.position();
+        }
+
+        private boolean due() {
+            switch (durability) {
+            case GROUP:
+                return position() > synced;
+            case INTERVAL:
+                if (System.currentTimeMillis() < deadline)
+                    return false;
+
+                if (position() > synced)
+                    return true;
+
+                // nothing was written during this interval.
+                deadline = System.currentTimeMillis() + syncInterval;
+                return false;
+            default:
+                return requested > synced;
+            }
+        }
+
+        private void waitFor() throws InterruptedException {
+            if (durability != Durability.INTERVAL) {
+                $sync.wait();
+                return;
+            }
+
+            $sync.wait(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Reader keeping a segment mapped, positioned at the next entry to read.
+     *
+     * Entries are never modified once committed, so slices can be handed out without holding the lock. The lock is
+     * only taken to move to another segment.
+     */
+    private class Reader implements QLogReader {
+        private final String id;
+
+        private Header header;
+        private ByteBuffer source;
+        private long position;
+
+        /* state when reading a segment of framed entries */
+        private FramedHeader framed;
+
+        /* state when reading a compressed segment */
+        private CompressedSegment compressed;
+        private int nextBlock;
+        private ByteBuffer block;
+
+        public Reader(final String id) {
+            this.id = id;
+        }
+
+        @Override
+        public long position() {
+            return position;
+        }
+
+        @Override
+        public List<ByteBuffer> read(final int limit) throws IOException {
+            final List<ByteBuffer> entries = Lists.newArrayList();
+
+            // the current segment was dropped by retention.
+            if (position < head)
+                seek(head);
+
+            while (entries.size() < limit) {
+                final Tail tail = QLogManagerImpl.this.tail;
+
+                if (!setup || tail == null)
+                    throw new IllegalStateException("not setup");
+
+                final boolean isTail = header == tail.header;
+
+                if (compressed == null)
+                    source.limit(isTail ? tail.committedBytes : source.capacity());
+
+                while (entries.size() < limit) {
+                    final ByteBuffer entry = next();
+
+                    if (entry == null)
+                        break;
+
+                    // skipped entries only take up a position.
+                    if (entry.hasRemaining())
+                        entries.add(entry);
+
+                    position++;
+                }
+
+                // all written entries of the tail have been read.
+                if (isTail || entries.size() >= limit)
+                    break;
+
+                // the end of the segment was reached, continue with the next one.
+                final Header previous = header;
+
+                seek(position);
+
+                if (header == previous)
+                    throw new IOException("corrupt entry " + position + " in " + header.path());
+            }
+
+            return entries;
+        }
+
+        @Override
+        public void seek(final long requested) throws IOException {
+            final long position;
+
+            synchronized ($lock) {
+                if (!setup)
+                    throw new IllegalStateException("not setup");
+
+                // entries dropped by retention are skipped.
+                position = Math.max(requested, headers.get(0).offset());
+
+                // the limit read below must cover every entry up to the position.
+                if (position > QLogManagerImpl.this.position())
+                    throw new IllegalArgumentException("position " + position + " has not been written");
+
+                final Header header = find(position);
+
+                if (header != this.header || position < this.position) {
+                    this.source = mapForRead(header);
+                    this.source.position(header.size());
+                    this.header = header;
+                    this.position = header.offset();
+                    this.framed = null;
+                    this.compressed = null;
+
+                    if (header instanceof FramedHeader) {
+                        this.framed = (FramedHeader) header;
+                    } else {
+                        this.compressed = new CompressedSegment(source);
+                        this.nextBlock = 0;
+                        this.block = null;
+                    }
+                }
+
+                if (header == tail())
+                    source.limit(tail.committedBytes);
+
+                if (position > this.position && header.version() == 2)
+                    skipToCheckpoint(header, position);
+
+                if (position > this.position && compressed != null)
+                    skipToBlock(header, position);
+            }
+
+            // skip to the requested entry.
+            while (this.position < position) {
+                if (next() == null)
+                    throw new IOException("corrupt entry " + this.position + " in " + header.path());
+
+                this.position++;
+            }
+        }
+
+        private ByteBuffer next() throws IOException {
+            if (framed != null)
+                return framed.read(source);
+
+            while (block == null || !block.hasRemaining()) {
+                if (nextBlock >= compressed.blocks())
+                    return null;
+
+                block = compressed.inflate(nextBlock++);
+            }
+
+            return CompressedSegment.next(block);
+        }
+
+        /**
+         * Jump to the block containing the given position, if after the current position.
+         */
+        private void skipToBlock(final Header header, final long position) {
+            if (compressed.blocks() == 0)
+                return;
+
+            final int b = compressed.findBlock((int) (position - header.offset()));
+            final long start = header.offset() + compressed.entriesBefore(b);
+
+            if (start <= this.position)
+                return;
+
+            this.nextBlock = b;
+            this.block = null;
+            this.position = start;
+        }
+
+        /**
+         * Jump to the closest checkpoint before the given position, if closer than the current position.
+         */
+        private void skipToCheckpoint(final Header header, final long position) throws IOException {
+            final SegmentIndex index;
+
+            if (header == tail())
+                index = tail.index;
+            else
+                index = SegmentIndex.openReadOnly(SegmentIndex.pathFor(header.path()));
+
+            final int slot = index.find((int) (position - header.offset()));
+
+            if (slot < 0 || header.offset() + index.count(slot) <= this.position)
+                return;
+
+            source.position(index.position(slot));
+            this.position = header.offset() + index.count(slot);
+        }
+
+        @Override
+        public void commit(final long position) {
+            update(id, position);
+        }
+    }
+
     private static interface Header extends Comparable<Header> {
         public Path path();
 
         public long offset();
 
+        public int version();
+
+        /**
+         * Size of the segment header, which is where the first entry starts.
+         */
         public int size();
 
-        public ByteBuffer read(ByteBuffer source);
+        public void write(ByteBuffer target);
+    }
 
-        public void writeEntry(ByteBuffer buffer, ByteBuffer input);
+    /**
+     * Header of a segment which stores its entries one after another, each framed by its length.
+     */
+    private static interface FramedHeader extends Header {
+        public ByteBuffer read(ByteBuffer source);
 
-        public void write(ByteBuffer target);
+        /**
+         * Like {@link #read(ByteBuffer)}, but also verifies the integrity of the entry if supported by the format.
+         */
+        public ByteBuffer verify(ByteBuffer source);
     }
 
+    /**
+     * Length-prefixed entries, written as a whole when the segment is saved.
+     */
     @RequiredArgsConstructor
     @ToString(of = { "path", "offset" })
-    private static class Header0 implements Header {
+    private static class Header0 implements FramedHeader {
         private final Path path;
         private final long offset;
 
@@ -514,9 +1511,14 @@ public class QLogManagerImpl implements QLogManager {
             return offset;
         }
 
+        @Override
+        public int version() {
+            return 0;
+        }
+
         @Override
         public int size() {
-            return 4;
+            return 16;
         }
 
         @Override
@@ -524,7 +1526,7 @@ public class QLogManagerImpl implements QLogManager {
             final ByteBuffer slice = source.slice();
 
             // buffer to short.
-            if (slice.remaining() < size())
+            if (slice.remaining() < 4)
                 return null;
 
             // each entry prefixed with its length.
@@ -532,7 +1534,7 @@ public class QLogManagerImpl implements QLogManager {
 
             final ByteBuffer result = slice.slice();
 
-            if (result.remaining() < size)
+            if (size < 0 || result.remaining() < size)
                 return null;
 
             result.limit(size);
@@ -543,9 +1545,241 @@ public class QLogManagerImpl implements QLogManager {
         }
 
         @Override
+        public ByteBuffer verify(ByteBuffer source) {
+            return read(source);
+        }
+
+        @Override
+        public void write(ByteBuffer target) {
+            target.putLong(offset);
+        }
+
+        @Override
+        public int compareTo(Header o) {
+            return Long.compare(offset, o.offset());
+        }
+    }
+
+    /**
+     * Length-prefixed entries in a memory-mapped, zero-filled segment.
+     *
+     * A zero length marks the end of the segment, which is why empty entries are not permitted.
+     */
+    @RequiredArgsConstructor
+    @ToString(of = { "path", "offset" })
+    private static class Header1 implements FramedHeader {
+        private final Path path;
+        private final long offset;
+
+        @Override
+        public Path path() {
+            return path;
+        }
+
+        @Override
+        public long offset() {
+            return offset;
+        }
+
+        @Override
+        public int version() {
+            return 1;
+        }
+
+        @Override
+        public int size() {
+            return 16;
+        }
+
+        @Override
+        public ByteBuffer read(ByteBuffer source) {
+            final ByteBuffer slice = source.slice();
+
+            if (slice.remaining() < 4)
+                return null;
+
+            final int size = slice.getInt();
+
+            // end of segment.
+            if (size <= 0)
+                return null;
+
+            final ByteBuffer result = slice.slice();
+
+            if (result.remaining() < size)
+                return null;
+
+            result.limit(size);
+
+            source.position(source.position() + 4 + size);
+            return result;
+        }
+
+        @Override
+        public ByteBuffer verify(ByteBuffer source) {
+            return read(source);
+        }
+
+        @Override
+        public void write(ByteBuffer target) {
+            target.putLong(offset);
+        }
+
+        @Override
+        public int compareTo(Header o) {
+            return Long.compare(offset, o.offset());
+        }
+    }
+
+    /**
+     * Like version 1, but each entry also carries a CRC-32C checksum of its data, after the length. This is the only
+     * format that is written to, segments of other versions are only read.
+     *
+     * A negative length marks a skipped entry, which is a region that could not be written. It still takes up a
+     * position in the log, but is read as an empty entry.
+     */
+    @RequiredArgsConstructor
+    @ToString(of = { "path", "offset" })
+    private static class Header2 implements FramedHeader {
+        private final Path path;
+        private final long offset;
+
+        @Override
+        public Path path() {
+            return path;
+        }
+
+        @Override
+        public long offset() {
+            return offset;
+        }
+
+        @Override
+        public int version() {
+            return 2;
+        }
+
+        @Override
+        public int size() {
+            return 16;
+        }
+
+        /**
+         * Number of bytes an entry of the given size occupies in the segment.
+         */
+        public int entrySize(int size) {
+            return 8 + size;
+        }
+
+        @Override
+        public ByteBuffer read(ByteBuffer source) {
+            final ByteBuffer slice = source.slice();
+
+            if (slice.remaining() < 8)
+                return null;
+
+            final int length = slice.getInt();
+
+            // end of segment.
+            if (length == 0 || length == Integer.MIN_VALUE)
+                return null;
+
+            final int size = Math.abs(length);
+
+            // skip checksum.
+            slice.getInt();
+
+            final ByteBuffer result = slice.slice();
+
+            if (result.remaining() < size)
+                return null;
+
+            result.limit(length < 0 ? 0 : size);
+
+            source.position(source.position() + 8 + size);
+            return result;
+        }
+
+        @Override
+        public ByteBuffer verify(ByteBuffer source) {
+            final int start = source.position();
+            final ByteBuffer result = read(source);
+
+            if (result == null)
+                return null;
+
+            if (source.getInt(start + 4) != Crc32c.checksum(result)) {
+                source.position(start);
+                return null;
+            }
+
+            return result;
+        }
+
+        /**
+         * Write an entry at the position of the given buffer, into a region of {@link #entrySize(int)} bytes.
+         */
         public void writeEntry(final ByteBuffer buffer, final ByteBuffer input) {
-            buffer.putInt(input.remaining());
+            final int start = buffer.position();
+
+            buffer.putInt(start + 4, Crc32c.checksum(input));
+
+            // write the length last, so that a partially written entry reads as the end of the segment.
+            buffer.position(start + 8);
             buffer.put(input);
+            buffer.putInt(start, buffer.position() - start - 8);
+        }
+
+        /**
+         * Mark a reserved region as skipped, after writing an entry into it failed.
+         *
+         * @param start Start of the region.
+         * @param size Size of the region, as returned by {@link #entrySize(int)}.
+         */
+        public void skipEntry(final ByteBuffer buffer, final int start, final int size) {
+            // a skipped entry reads as empty, which makes this the checksum of its data.
+            buffer.putInt(start + 4, Crc32c.checksum(ByteBuffer.allocate(0)));
+            buffer.putInt(start, -(size - 8));
+        }
+
+        @Override
+        public void write(ByteBuffer target) {
+            target.putLong(offset);
+        }
+
+        @Override
+        public int compareTo(Header o) {
+            return Long.compare(offset, o.offset());
+        }
+    }
+
+    /**
+     * Compressed segment, see {@link CompressedSegment}. Entries are read by the reader directly from the blocks.
+     */
+    @RequiredArgsConstructor
+    @ToString(of = { "path", "offset" })
+    private static class Header3 implements Header {
+        private final Path path;
+        private final long offset;
+
+        @Override
+        public Path path() {
+            return path;
+        }
+
+        @Override
+        public long offset() {
+            return offset;
+        }
+
+        @Override
+        public int version() {
+            return CompressedSegment.VERSION;
+        }
+
+        @Override
+        public int size() {
+            return 16;
         }
 
         @Override
@@ -558,4 +1792,4 @@ public class QLogManagerImpl implements QLogManager {
             return Long.compare(offset, o.offset());
         }
     }
-}
\ No newline at end of file
+}
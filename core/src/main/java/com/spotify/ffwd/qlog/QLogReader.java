@@ -0,0 +1,59 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.qlog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Reads entries of the on-disk log on behalf of a single consumer.
+ *
+ * Entries are returned as read-only slices of the mapped segments, and stay valid after the segment has been trimmed.
+ * A reader is not thread-safe.
+ */
+public interface QLogReader {
+    /**
+     * Position of the next entry to read.
+     */
+    public long position();
+
+    /**
+     * Read the next batch of entries, following segment boundaries.
+     *
+     * Entries that failed to be written are skipped, but still count towards the position of the reader.
+     *
+     * @param limit Maximum number of entries to read.
+     * @return The entries read, which is empty if no more entries are available.
+     * @throws IOException If a segment could not be read.
+     */
+    public List<ByteBuffer> read(int limit) throws IOException;
+
+    /**
+     * Move the reader to the given position, like when a batch of entries has to be read again.
+     *
+     * If the position has been dropped by retention, the reader is moved to the head of the log instead.
+     *
+     * @param position Position to move to.
+     */
+    public void seek(long position) throws IOException;
+
+    /**
+     * Store the given position as the position of the consumer, see {@link QLogManager#update(String, long)}.
+     */
+    public void commit(long position);
+}
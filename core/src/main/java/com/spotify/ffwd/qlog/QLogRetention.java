@@ -0,0 +1,44 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.qlog;
+
+import lombok.Data;
+
+/**
+ * Limits on how much of the log is retained, regardless of the position of consumers.
+ *
+ * A limit of zero means no limit. The tail segment is never dropped.
+ */
+@Data
+public class QLogRetention {
+    public static final QLogRetention UNLIMITED = new QLogRetention(0, 0, 0);
+
+    /**
+     * Maximum number of bytes used by all segments.
+     */
+    private final long maxBytes;
+
+    /**
+     * Maximum age in milliseconds of a segment, since it was last written to.
+     */
+    private final long maxAge;
+
+    /**
+     * Maximum number of segments.
+     */
+    private final int maxSegments;
+}
@@ -0,0 +1,178 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.qlog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Sparse index of a segment, mapping byte positions in the segment to the number of entries before them.
+ *
+ * A checkpoint is added at most once every {@link #INTERVAL} bytes, so looking up an entry only requires scanning a
+ * small region of the segment. Each checkpoint is a slot of three 4-byte integers (count, position, and a checksum of
+ * the two), in a zero-filled file next to the segment. Slots are filled in order, and a position of zero marks the
+ * first unused slot.
+ */
+class SegmentIndex {
+    public static final int INTERVAL = 64 * 1024;
+
+    private static final String SUFFIX = ".idx";
+    private static final int SLOT_SIZE = 12;
+
+    private final ByteBuffer buffer;
+    private volatile int slots;
+    private int next;
+
+    private SegmentIndex(final ByteBuffer buffer) {
+        this.buffer = buffer;
+        truncate(countSlots(buffer));
+    }
+
+    public static Path pathFor(final Path segment) {
+        return segment.resolveSibling(segment.getFileName() + SUFFIX);
+    }
+
+    public static boolean isIndex(final Path path) {
+        return path.getFileName().toString().endsWith(SUFFIX);
+    }
+
+    /**
+     * Open the index of a segment for writing, creating it if it does not exist.
+     */
+    public static SegmentIndex open(final Path path, final int segmentSize) throws IOException {
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            final int capacity = (segmentSize / INTERVAL + 1) * SLOT_SIZE;
+            return new SegmentIndex(channel.map(MapMode.READ_WRITE, 0, Math.max(capacity, channel.size())));
+        }
+    }
+
+    /**
+     * Open the index of a segment for reading, an index without checkpoints is returned if it does not exist.
+     */
+    public static SegmentIndex openReadOnly(final Path path) throws IOException {
+        if (!Files.isReadable(path))
+            return new SegmentIndex(ByteBuffer.allocate(0));
+
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new SegmentIndex(channel.map(MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public int slots() {
+        return slots;
+    }
+
+    public int count(final int slot) {
+        return buffer.getInt(slot * SLOT_SIZE);
+    }
+
+    public int position(final int slot) {
+        return buffer.getInt(slot * SLOT_SIZE + 4);
+    }
+
+    /**
+     * Check that a slot has not been partially written.
+     */
+    public boolean isValid(final int slot) {
+        return buffer.getInt(slot * SLOT_SIZE + 8) == Crc32c.checksum(count(slot), position(slot));
+    }
+
+    /**
+     * Add a checkpoint, if far enough from the previous one.
+     *
+     * @param count Number of entries before the given position.
+     * @param position Byte position of a complete entry.
+     */
+    public void add(final int count, final int position) {
+        if (position < next || (slots + 1) * SLOT_SIZE > buffer.capacity())
+            return;
+
+        final int base = slots * SLOT_SIZE;
+        buffer.putInt(base, count);
+        buffer.putInt(base + 8, Crc32c.checksum(count, position));
+        buffer.putInt(base + 4, position);
+
+        slots++;
+        next = position + INTERVAL;
+    }
+
+    /**
+     * Find the last checkpoint with at most the given number of entries before it.
+     *
+     * @return The slot of the checkpoint, or {@code -1} if there is none.
+     */
+    public int find(final int count) {
+        int lo = 0;
+        int hi = slots - 1;
+        int found = -1;
+
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+
+            if (count(mid) <= count) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Discard all checkpoints from the given slot and onwards.
+     */
+    public void truncate(final int slots) {
+        for (int i = slots * SLOT_SIZE; i < this.slots * SLOT_SIZE; i++)
+            buffer.put(i, (byte) 0);
+
+        this.slots = slots;
+        this.next = slots > 0 ? position(slots - 1) + INTERVAL : 0;
+    }
+
+    public void force() {
+        if (buffer instanceof MappedByteBuffer)
+            ((MappedByteBuffer) buffer).force();
+    }
+
+    /**
+     * Binary search for the number of used slots.
+     */
+    private static int countSlots(final ByteBuffer buffer) {
+        int lo = 0;
+        int hi = buffer.capacity() / SLOT_SIZE;
+
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+
+            if (buffer.getInt(mid * SLOT_SIZE + 4) != 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        return lo;
+    }
+}
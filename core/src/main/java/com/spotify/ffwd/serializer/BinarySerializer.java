@@ -0,0 +1,99 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.serializer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.Collection;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonTypeName;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.spotify.ffwd.binary.BinaryFormat;
+import com.spotify.ffwd.model.Event;
+import com.spotify.ffwd.model.Metric;
+
+/**
+ * Serializes into the compact ffwd binary format, see docs/binary-format.md.
+ *
+ * Batches can optionally dictionary-encode attribute keys, single messages never do since they would not benefit from
+ * it.
+ */
+@JsonTypeName("ffwd-binary")
+public class BinarySerializer implements Serializer {
+    private static final boolean DEFAULT_DICTIONARY = true;
+    private static final int INITIAL_BUFFER_SIZE = 256;
+
+    private final boolean dictionary;
+
+    private final ThreadLocal<ByteBuf> scratch = new ThreadLocal<ByteBuf>() {
+        @Override
+        protected ByteBuf initialValue() {
+            return Unpooled.buffer(INITIAL_BUFFER_SIZE);
+        }
+    };
+
+    @JsonCreator
+    public BinarySerializer(@JsonProperty("dictionary") Boolean dictionary) {
+        this.dictionary = Optional.fromNullable(dictionary).or(DEFAULT_DICTIONARY);
+    }
+
+    @Override
+    public byte[] serialize(Event event) throws Exception {
+        final ByteBuf buffer = scratch.get();
+        buffer.clear();
+        serialize(event, buffer);
+        return toByteArray(buffer);
+    }
+
+    @Override
+    public byte[] serialize(Metric metric) throws Exception {
+        final ByteBuf buffer = scratch.get();
+        buffer.clear();
+        serialize(metric, buffer);
+        return toByteArray(buffer);
+    }
+
+    @Override
+    public void serialize(Event event, ByteBuf buffer) throws Exception {
+        BinaryFormat.writePayload(buffer, ImmutableList.of(event), false);
+    }
+
+    @Override
+    public void serialize(Metric metric, ByteBuf buffer) throws Exception {
+        BinaryFormat.writePayload(buffer, ImmutableList.of(metric), false);
+    }
+
+    @Override
+    public void serializeEvents(Collection<Event> events, ByteBuf buffer) throws Exception {
+        BinaryFormat.writePayload(buffer, events, dictionary);
+    }
+
+    @Override
+    public void serializeMetrics(Collection<Metric> metrics, ByteBuf buffer) throws Exception {
+        BinaryFormat.writePayload(buffer, metrics, dictionary);
+    }
+
+    private static byte[] toByteArray(final ByteBuf buffer) {
+        final byte[] bytes = new byte[buffer.readableBytes()];
+        buffer.readBytes(bytes);
+        return bytes;
+    }
+}
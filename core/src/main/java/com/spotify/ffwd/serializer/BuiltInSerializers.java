@@ -28,5 +28,6 @@ public class BuiltInSerializers implements FastForwardModule {
     public void setup() throws Exception {
         context.registerSerializer("spotify100", Spotify100Serializer.class);
         context.registerSerializer("to-string", ToStringSerializer.class);
+        context.registerSerializer("ffwd-binary", BinarySerializer.class);
     }
 }
@@ -16,46 +16,50 @@
  **/
 package com.spotify.ffwd.serializer;
 
-import java.io.ByteArrayOutputStream;
-import java.util.Map;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 
-import lombok.Data;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonTypeName;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import com.spotify.ffwd.model.Event;
 import com.spotify.ffwd.model.Metric;
 
+/**
+ * Serializes into the spotify 1.0.0 JSON schema.
+ *
+ * Each thread keeps a {@link JsonGenerator} which writes straight into the target buffer, so no intermediate objects
+ * or byte arrays are created per message. If serializing fails, the buffer is reset to where it was before.
+ */
 @JsonTypeName("spotify100")
 public class Spotify100Serializer implements Serializer {
     public static final String SCHEMA_VERSION = "1.0.0";
 
+    private static final int INITIAL_BUFFER_SIZE = 256;
+
     @Inject
     @Named("application/json")
     private ObjectMapper mapper;
 
-    @Data
-    public static class Spotify100Metric {
-        private final String version = SCHEMA_VERSION;
-        private final String key;
-        private final String host;
-        private final Long time;
-        private final Map<String, String> attributes;
-        private final Double value;
-    }
-
-    @Data
-    public static class Spotify100Event {
-        private final String version = SCHEMA_VERSION;
-        private final String key;
-        private final String host;
-        private final Long time;
-        private final Map<String, String> attributes;
-        private final Double value;
-    }
+    private final ThreadLocal<Writer> writers = new ThreadLocal<Writer>() {
+        @Override
+        protected Writer initialValue() {
+            try {
+                return new Writer(mapper);
+            } catch (final IOException e) {
+                throw new RuntimeException("Failed to setup json generator", e);
+            }
+        }
+    };
 
     @JsonCreator
     public Spotify100Serializer() {
@@ -63,19 +67,172 @@ public class Spotify100Serializer implements Serializer {
 
     @Override
     public byte[] serialize(Event source) throws Exception {
-        final Spotify100Event e = new Spotify100Event(source.getKey(), source.getHost(), source.getTime().getTime(),
-                source.getAttributes(), source.getValue());
-        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        mapper.writeValue(outputStream, e);
-        return outputStream.toByteArray();
+        final Writer w = writers.get();
+        w.scratch.clear();
+        serialize(source, w.scratch);
+        return toByteArray(w.scratch);
     }
 
     @Override
     public byte[] serialize(Metric source) throws Exception {
-        final Spotify100Metric m = new Spotify100Metric(source.getKey(), source.getHost(), source.getTime().getTime(),
-                source.getAttributes(), source.getValue());
-        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        mapper.writeValue(outputStream, m);
-        return outputStream.toByteArray();
+        final Writer w = writers.get();
+        w.scratch.clear();
+        serialize(source, w.scratch);
+        return toByteArray(w.scratch);
+    }
+
+    @Override
+    public void serialize(Event source, ByteBuf buffer) throws Exception {
+        final Writer w = writers.get();
+        final int writerIndex = buffer.writerIndex();
+        w.output.buffer = buffer;
+
+        try {
+            writeEvent(w.generator, source);
+            w.generator.flush();
+        } catch (final Exception e) {
+            // generator state is unknown, start over with a new one, and drop anything written to the buffer.
+            writers.remove();
+            buffer.writerIndex(writerIndex);
+            throw e;
+        } finally {
+            w.output.buffer = null;
+        }
+    }
+
+    @Override
+    public void serialize(Metric source, ByteBuf buffer) throws Exception {
+        final Writer w = writers.get();
+        final int writerIndex = buffer.writerIndex();
+        w.output.buffer = buffer;
+
+        try {
+            writeMetric(w.generator, source);
+            w.generator.flush();
+        } catch (final Exception e) {
+            writers.remove();
+            buffer.writerIndex(writerIndex);
+            throw e;
+        } finally {
+            w.output.buffer = null;
+        }
+    }
+
+    /**
+     * Events are serialized as a JSON array.
+     */
+    @Override
+    public void serializeEvents(Collection<Event> events, ByteBuf buffer) throws Exception {
+        final Writer w = writers.get();
+        final int writerIndex = buffer.writerIndex();
+        w.output.buffer = buffer;
+
+        try {
+            w.generator.writeStartArray();
+
+            for (final Event e : events)
+                writeEvent(w.generator, e);
+
+            w.generator.writeEndArray();
+            w.generator.flush();
+        } catch (final Exception e) {
+            writers.remove();
+            buffer.writerIndex(writerIndex);
+            throw e;
+        } finally {
+            w.output.buffer = null;
+        }
+    }
+
+    /**
+     * Metrics are serialized as a JSON array.
+     */
+    @Override
+    public void serializeMetrics(Collection<Metric> metrics, ByteBuf buffer) throws Exception {
+        final Writer w = writers.get();
+        final int writerIndex = buffer.writerIndex();
+        w.output.buffer = buffer;
+
+        try {
+            w.generator.writeStartArray();
+
+            for (final Metric m : metrics)
+                writeMetric(w.generator, m);
+
+            w.generator.writeEndArray();
+            w.generator.flush();
+        } catch (final Exception e) {
+            writers.remove();
+            buffer.writerIndex(writerIndex);
+            throw e;
+        } finally {
+            w.output.buffer = null;
+        }
+    }
+
+    private void writeEvent(final JsonGenerator g, final Event e) throws IOException {
+        writeCommon(g, e.getKey(), e.getHost(), e.getTime(), e.getAttributes(), e.getValue());
+    }
+
+    private void writeMetric(final JsonGenerator g, final Metric m) throws IOException {
+        writeCommon(g, m.getKey(), m.getHost(), m.getTime(), m.getAttributes(), m.getValue());
+    }
+
+    private void writeCommon(final JsonGenerator g, final String key, final String host, final Date time,
+            final Map<String, String> attributes, final double value) throws IOException {
+        g.writeStartObject();
+        g.writeStringField("version", SCHEMA_VERSION);
+        g.writeStringField("key", key);
+        g.writeStringField("host", host);
+        g.writeNumberField("time", time.getTime());
+
+        if (attributes == null) {
+            g.writeNullField("attributes");
+        } else {
+            g.writeObjectFieldStart("attributes");
+
+            for (final Map.Entry<String, String> a : attributes.entrySet())
+                g.writeStringField(a.getKey(), a.getValue());
+
+            g.writeEndObject();
+        }
+
+        g.writeNumberField("value", value);
+        g.writeEndObject();
+    }
+
+    private static byte[] toByteArray(final ByteBuf buffer) {
+        final byte[] bytes = new byte[buffer.readableBytes()];
+        buffer.readBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Per-thread generator, writing into whichever buffer is currently set on its output.
+     */
+    private static final class Writer {
+        private final BufferOutputStream output = new BufferOutputStream();
+        private final ByteBuf scratch = Unpooled.buffer(INITIAL_BUFFER_SIZE);
+        private final JsonGenerator generator;
+
+        private Writer(final ObjectMapper mapper) throws IOException {
+            this.generator = mapper.getFactory().createGenerator(output);
+            // messages are written back-to-back with the same generator, don't separate them.
+            this.generator.setRootValueSeparator(null);
+        }
+    }
+
+    private static final class BufferOutputStream extends OutputStream {
+        private ByteBuf buffer;
+
+        @Override
+        public void write(int b) throws IOException {
+            buffer.writeByte(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            buffer.writeBytes(b, off, len);
+        }
     }
-}
\ No newline at end of file
+}
@@ -16,6 +16,10 @@
  **/
 package com.spotify.ffwd.serializer;
 
+import io.netty.buffer.ByteBuf;
+
+import java.util.Collection;
+
 import lombok.extern.slf4j.Slf4j;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
@@ -40,6 +44,38 @@ public class ToStringSerializer implements Serializer {
         return metric.toString().getBytes();
     }
 
+    @Override
+    public void serialize(Event event, ByteBuf buffer) throws Exception {
+        buffer.writeBytes(serialize(event));
+    }
+
+    @Override
+    public void serialize(Metric metric, ByteBuf buffer) throws Exception {
+        buffer.writeBytes(serialize(metric));
+    }
+
+    /**
+     * One event per line.
+     */
+    @Override
+    public void serializeEvents(Collection<Event> events, ByteBuf buffer) throws Exception {
+        for (final Event event : events) {
+            serialize(event, buffer);
+            buffer.writeByte('\n');
+        }
+    }
+
+    /**
+     * One metric per line.
+     */
+    @Override
+    public void serializeMetrics(Collection<Metric> metrics, ByteBuf buffer) throws Exception {
+        for (final Metric metric : metrics) {
+            serialize(metric, buffer);
+            buffer.writeByte('\n');
+        }
+    }
+
     public static Supplier<Serializer> defaultSupplier() {
         return new Supplier<Serializer>() {
             @Override
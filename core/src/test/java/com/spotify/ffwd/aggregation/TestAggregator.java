@@ -0,0 +1,251 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.aggregation;
+
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.spotify.ffwd.model.Metric;
+
+public class TestAggregator {
+    private static final long WINDOW = 1000;
+    /* start of a window */
+    private static final long T = 1000000;
+
+    @Test
+    public void testNotAggregated() {
+        final Aggregator aggregator = aggregator();
+        final Collector emitted = start(aggregator);
+
+        Assert.assertFalse(aggregator.offer(metric("bar", "a", 1), T));
+        Assert.assertEquals(0, aggregator.size());
+
+        aggregator.stop();
+        Assert.assertFalse(aggregator.offer(metric("foo", "a", 1), T));
+        Assert.assertTrue(emitted.metrics.isEmpty());
+    }
+
+    @Test
+    public void testWindowAlignment() {
+        final Aggregator aggregator = aggregator();
+        final Collector emitted = start(aggregator);
+
+        Assert.assertTrue(aggregator.offer(metric("foo", "a", 1), T + 100));
+        Assert.assertTrue(aggregator.offer(metric("foo", "a", 4), T + 999));
+
+        // the window has not passed yet.
+        aggregator.flush(emitted, T);
+        Assert.assertTrue(emitted.metrics.isEmpty());
+
+        aggregator.flush(emitted, T + WINDOW);
+
+        final Map<String, Metric> stats = emitted.take();
+        Assert.assertEquals(6, stats.size());
+        Assert.assertEquals(5.0, stats.get("sum").getValue(), 0.0);
+        Assert.assertEquals(2.0, stats.get("count").getValue(), 0.0);
+        Assert.assertEquals(1.0, stats.get("min").getValue(), 0.0);
+        Assert.assertEquals(4.0, stats.get("max").getValue(), 0.0);
+        Assert.assertEquals(4.0, stats.get("last").getValue(), 0.0);
+        Assert.assertEquals(1.0, stats.get("p50").getValue(), 0.01);
+
+        for (final Metric m : stats.values()) {
+            Assert.assertEquals(new Date(T), m.getTime());
+            Assert.assertEquals("foo", m.getKey());
+            Assert.assertEquals("a", m.getHost());
+        }
+
+        // already emitted.
+        aggregator.flush(emitted, T + WINDOW);
+        Assert.assertTrue(emitted.metrics.isEmpty());
+    }
+
+    @Test
+    public void testStaleWindow() {
+        final Aggregator aggregator = aggregator();
+        final Collector emitted = start(aggregator);
+
+        aggregator.offer(metric("foo", "a", 1), T + 500);
+        Assert.assertTrue(emitted.metrics.isEmpty());
+
+        // the next sample of the series emits the window that has passed.
+        aggregator.offer(metric("foo", "a", 7), T + WINDOW + 500);
+
+        final Map<String, Metric> stale = emitted.take();
+        Assert.assertEquals(1.0, stale.get("sum").getValue(), 0.0);
+        Assert.assertEquals(new Date(T), stale.get("sum").getTime());
+
+        aggregator.flush(emitted, T + 2 * WINDOW);
+
+        final Map<String, Metric> current = emitted.take();
+        Assert.assertEquals(7.0, current.get("sum").getValue(), 0.0);
+        Assert.assertEquals(1.0, current.get("count").getValue(), 0.0);
+        Assert.assertEquals(new Date(T + WINDOW), current.get("sum").getTime());
+    }
+
+    @Test
+    public void testHosts() {
+        final Aggregator aggregator = aggregator();
+        final Collector emitted = start(aggregator);
+
+        aggregator.offer(metric("foo", "a", 1), T);
+        aggregator.offer(metric("foo", "b", 2), T);
+        aggregator.offer(metric("foo", "b", 3), T);
+        Assert.assertEquals(2, aggregator.size());
+
+        aggregator.flush(emitted, T + WINDOW);
+
+        final Map<String, Double> sums = new HashMap<>();
+
+        for (final Metric m : emitted.metrics) {
+            if ("sum".equals(m.getAttributes().get(Statistic.ATTRIBUTE)))
+                sums.put(m.getHost(), m.getValue());
+        }
+
+        Assert.assertEquals(ImmutableMap.of("a", 1.0, "b", 5.0), sums);
+    }
+
+    @Test
+    public void testIdleEviction() {
+        final Aggregator aggregator = aggregator();
+        final Collector emitted = start(aggregator);
+
+        aggregator.offer(metric("foo", "a", 1), T);
+
+        aggregator.flush(emitted, T + WINDOW);
+        Assert.assertEquals(1, aggregator.size());
+        emitted.take();
+
+        // idle for less than two windows.
+        aggregator.flush(emitted, T + 2 * WINDOW - 1);
+        Assert.assertEquals(1, aggregator.size());
+
+        aggregator.flush(emitted, T + 2 * WINDOW);
+        Assert.assertEquals(0, aggregator.size());
+        Assert.assertTrue(emitted.metrics.isEmpty());
+
+        // a new sample creates a new cell.
+        aggregator.offer(metric("foo", "a", 2), T + 3 * WINDOW);
+        Assert.assertEquals(1, aggregator.size());
+
+        aggregator.flush(emitted, T + 4 * WINDOW);
+        Assert.assertEquals(2.0, emitted.take().get("sum").getValue(), 0.0);
+    }
+
+    @Test
+    public void testFlushOnStop() {
+        final Aggregator aggregator = aggregator();
+        final Collector emitted = start(aggregator);
+
+        final long now = System.currentTimeMillis();
+
+        aggregator.offer(metric("foo", "a", 1), now);
+        aggregator.offer(metric("foo", "a", 2), now);
+
+        // the current window is emitted, even though it has not passed.
+        aggregator.stop();
+
+        final Map<String, Metric> stats = emitted.take();
+        Assert.assertEquals(3.0, stats.get("sum").getValue(), 0.0);
+        Assert.assertEquals(new Date(now - now % WINDOW), stats.get("sum").getTime());
+
+        aggregator.stop();
+        Assert.assertTrue(emitted.metrics.isEmpty());
+    }
+
+    private static Aggregator aggregator() {
+        final AggregationRule rule = new AggregationRule("foo", null, null, null, ImmutableList.of(0.5), null);
+        final AggregationConfig config = new AggregationConfig(WINDOW, ImmutableList.of(rule));
+
+        // the periodic flush is never scheduled, flushes are triggered by the tests.
+        final Timer timer = new Timer() {
+            @Override
+            public Timeout newTimeout(TimerTask task, long delay, TimeUnit unit) {
+                return null;
+            }
+
+            @Override
+            public Set<Timeout> stop() {
+                return Collections.emptySet();
+            }
+        };
+
+        return Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(AggregationConfig.class).toInstance(config);
+                bind(Timer.class).toInstance(timer);
+                bind(ExecutorService.class).toInstance(MoreExecutors.sameThreadExecutor());
+            }
+        }).getInstance(Aggregator.class);
+    }
+
+    private static Collector start(final Aggregator aggregator) {
+        final Collector emitted = new Collector();
+        aggregator.start(emitted);
+        return emitted;
+    }
+
+    private static Metric metric(final String key, final String host, final double value) {
+        return new Metric(key, value, null, host, ImmutableSet.<String> of(), ImmutableMap.of("what", "latency"),
+                null);
+    }
+
+    private static final class Collector implements Aggregator.Emitter {
+        private final List<Metric> metrics = new ArrayList<>();
+
+        @Override
+        public void emit(Metric metric) {
+            metrics.add(metric);
+        }
+
+        /**
+         * Take all emitted metrics, by statistic.
+         */
+        private Map<String, Metric> take() {
+        final Aggregator aggregator = aggregator();
+        final Collector emitted = start(aggregator);
+
+            final Map<String, Metric> stats = new HashMap<>();
+
+            for (final Metric m : metrics)
+                Assert.assertNull(stats.put(m.getAttributes().get(Statistic.ATTRIBUTE), m));
+
+            metrics.clear();
+            return stats;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.aggregation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestQuantileSketch {
+    private static final double[] QUANTILES = { 0.0, 0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99, 0.999, 1.0 };
+
+    @Test
+    public void testEmpty() {
+        final QuantileSketch sketch = new QuantileSketch();
+
+        Assert.assertEquals(0, sketch.count());
+        Assert.assertTrue(Double.isNaN(sketch.quantile(0.5)));
+
+        sketch.add(Double.NaN);
+        Assert.assertEquals(0, sketch.count());
+    }
+
+    @Test
+    public void testNonFinite() {
+        // enough buckets to cover all finite magnitudes without collapsing.
+        final QuantileSketch sketch = new QuantileSketch(QuantileSketch.DEFAULT_ACCURACY, 1 << 16);
+
+        sketch.add(Double.POSITIVE_INFINITY);
+        sketch.add(Double.NEGATIVE_INFINITY);
+        sketch.add(Double.NaN);
+        Assert.assertEquals(0, sketch.count());
+
+        sketch.add(10);
+        sketch.add(Double.POSITIVE_INFINITY);
+        sketch.add(Double.MAX_VALUE);
+        sketch.add(-Double.MAX_VALUE);
+        Assert.assertEquals(3, sketch.count());
+
+        Assert.assertEquals(-Double.MAX_VALUE, sketch.quantile(0), Double.MAX_VALUE * 0.01);
+        Assert.assertEquals(10, sketch.quantile(0.5), 10 * 0.01);
+        Assert.assertEquals(Double.MAX_VALUE, sketch.quantile(1), Double.MAX_VALUE * 0.01);
+    }
+
+    @Test
+    public void testRelativeAccuracy() {
+        final Random random = new Random(0);
+        final List<Double> values = new ArrayList<>();
+
+        // log-normal values, spanning several orders of magnitude.
+        for (int i = 0; i < 100000; i++)
+            values.add(Math.exp(random.nextGaussian() * 3));
+
+        assertAccurate(QuantileSketch.DEFAULT_ACCURACY, values);
+        assertAccurate(0.05, values);
+    }
+
+    @Test
+    public void testMixedSigns() {
+        final List<Double> values = new ArrayList<>();
+
+        for (int i = -5000; i <= 5000; i++)
+            values.add((double) i);
+
+        Collections.shuffle(values, new Random(0));
+        assertAccurate(QuantileSketch.DEFAULT_ACCURACY, values);
+    }
+
+    @Test
+    public void testMerge() {
+        final Random random = new Random(0);
+
+        final QuantileSketch a = new QuantileSketch();
+        final QuantileSketch b = new QuantileSketch();
+        final QuantileSketch all = new QuantileSketch();
+
+        for (int i = 0; i < 10000; i++) {
+            final double value = random.nextDouble() * 1000;
+            (i % 2 == 0 ? a : b).add(value);
+            all.add(value);
+        }
+
+        a.merge(b);
+
+        Assert.assertEquals(all.count(), a.count());
+
+        for (final double q : QUANTILES)
+            Assert.assertEquals(all.quantile(q), a.quantile(q), 0.0);
+
+        try {
+            a.merge(new QuantileSketch(0.05, QuantileSketch.DEFAULT_MAX_BUCKETS));
+            Assert.fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void testClear() {
+        final QuantileSketch sketch = new QuantileSketch();
+
+        for (int i = 1; i <= 1000; i++)
+            sketch.add(i);
+
+        sketch.clear();
+
+        Assert.assertEquals(0, sketch.count());
+        Assert.assertTrue(Double.isNaN(sketch.quantile(0.5)));
+
+        // buckets are reused for values of a different range.
+        final List<Double> values = new ArrayList<>();
+
+        for (int i = 1; i <= 1000; i++)
+            values.add(i * 1e6);
+
+        assertAccurate(QuantileSketch.DEFAULT_ACCURACY, sketch, values);
+    }
+
+    @Test
+    public void testCollapse() {
+        final QuantileSketch sketch = new QuantileSketch(QuantileSketch.DEFAULT_ACCURACY, 64);
+        final List<Double> values = new ArrayList<>();
+
+        // 20 orders of magnitude need far more than 64 buckets.
+        for (int i = 0; i < 10000; i++)
+            values.add(Math.pow(10, i / 500.0));
+
+        for (final double v : values)
+            sketch.add(v);
+
+        Collections.sort(values);
+
+        // the highest quantiles are still accurate, only the lowest are affected.
+        for (final double q : new double[] { 0.999, 1.0 }) {
+            final double actual = values.get((int) (q * (values.size() - 1)));
+            Assert.assertEquals(actual, sketch.quantile(q), actual * QuantileSketch.DEFAULT_ACCURACY);
+        }
+
+        Assert.assertTrue(sketch.quantile(0.0) >= values.get(0));
+    }
+
+    @Test
+    public void testInvalidArguments() {
+        try {
+            new QuantileSketch(0, QuantileSketch.DEFAULT_MAX_BUCKETS);
+            Assert.fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+
+        try {
+            new QuantileSketch(QuantileSketch.DEFAULT_ACCURACY, 0);
+            Assert.fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+
+        try {
+            new QuantileSketch().quantile(1.5);
+            Assert.fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    private void assertAccurate(final double accuracy, final List<Double> values) {
+        assertAccurate(accuracy, new QuantileSketch(accuracy, QuantileSketch.DEFAULT_MAX_BUCKETS), values);
+    }
+
+    /**
+     * Add the values to the sketch, and check that every quantile is within the relative accuracy of the sketch.
+     */
+    private void assertAccurate(final double accuracy, final QuantileSketch sketch, final List<Double> values) {
+        for (final double v : values)
+            sketch.add(v);
+
+        final List<Double> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+
+        Assert.assertEquals(sorted.size(), sketch.count());
+
+        for (final double q : QUANTILES) {
+            final double actual = sorted.get((int) (q * (sorted.size() - 1)));
+            Assert.assertEquals("quantile " + q, actual, sketch.quantile(q), Math.abs(actual) * accuracy);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.aggregation;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestRateTable {
+    private static final long IDLE = 60000;
+
+    @Test
+    public void testRate() {
+        final RateTable table = new RateTable();
+
+        // the first sample only initializes the series.
+        Assert.assertTrue(Double.isNaN(table.update(1, 100, 0, 0, IDLE)));
+        Assert.assertEquals(1, table.size());
+
+        Assert.assertEquals(30.0, table.update(1, 160, 2000, 2000, IDLE), 0.0);
+        Assert.assertEquals(0.0, table.update(1, 160, 3000, 3000, IDLE), 0.0);
+        Assert.assertEquals(1, table.size());
+    }
+
+    @Test
+    public void testReset() {
+        final RateTable table = new RateTable();
+
+        table.update(1, 1000, 0, 0, IDLE);
+
+        // a counter that decreased has been reset to zero in between.
+        Assert.assertEquals(40.0, table.update(1, 40, 1000, 1000, IDLE), 0.0);
+        Assert.assertEquals(10.0, table.update(1, 50, 2000, 2000, IDLE), 0.0);
+    }
+
+    @Test
+    public void testOutOfOrder() {
+        final RateTable table = new RateTable();
+
+        table.update(1, 110, 1000, 1000, IDLE);
+        Assert.assertTrue(Double.isNaN(table.update(1, 120, 500, 1200, IDLE)));
+
+        // the rate is derived from the last sample in order.
+        Assert.assertEquals(60.0, table.update(1, 140, 1500, 1500, IDLE), 0.0);
+    }
+
+    @Test
+    public void testDuplicate() {
+        final RateTable table = new RateTable();
+
+        table.update(1, 100, 1000, 1000, IDLE);
+        Assert.assertTrue(Double.isNaN(table.update(1, 110, 1000, 1100, IDLE)));
+
+        // the first of two samples with the same time is kept.
+        Assert.assertEquals(80.0, table.update(1, 140, 1500, 1500, IDLE), 0.0);
+    }
+
+    @Test
+    public void testIdle() {
+        final RateTable table = new RateTable();
+
+        table.update(1, 100, 0, 0, IDLE);
+
+        // the previous sample is too old to derive a rate from.
+        Assert.assertTrue(Double.isNaN(table.update(1, 200, IDLE + 1, IDLE + 1, IDLE)));
+        Assert.assertEquals(100.0, table.update(1, 300, IDLE + 1001, IDLE + 1001, IDLE), 0.0);
+    }
+
+    @Test
+    public void testEvict() {
+        final RateTable table = new RateTable();
+
+        for (long key = 1; key <= 100; key++)
+            table.update(key, 0, 0, key <= 50 ? 0 : 1000, IDLE);
+
+        Assert.assertEquals(100, table.size());
+        Assert.assertEquals(0, table.evict(0));
+        Assert.assertEquals(50, table.evict(1000));
+        Assert.assertEquals(50, table.size());
+
+        // kept series continue, evicted series start over.
+        for (long key = 1; key <= 100; key++) {
+            final double rate = table.update(key, 10, 1000, 1000, IDLE);
+
+            if (key <= 50)
+                Assert.assertTrue(Double.isNaN(rate));
+            else
+                Assert.assertEquals(10.0, rate, 0.0);
+        }
+
+        Assert.assertEquals(100, table.size());
+    }
+
+    @Test
+    public void testGrow() {
+        final RateTable table = new RateTable();
+        final int series = 10000;
+
+        for (int i = 0; i < series; i++)
+            table.update(Series.fingerprint("series-" + i), i, 0, 0, IDLE);
+
+        Assert.assertEquals(series, table.size());
+
+        for (int i = 0; i < series; i++)
+            Assert.assertEquals(i, table.update(Series.fingerprint("series-" + i), 2 * i, 1000, 1000, IDLE), 0.0);
+
+        Assert.assertEquals(series, table.size());
+    }
+}
@@ -0,0 +1,216 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.binary;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.spotify.ffwd.model.Event;
+import com.spotify.ffwd.model.Metric;
+
+public class TestBinaryFormat {
+    private static final Map<String, String> ATTRIBUTES = ImmutableMap.of("site", "lon", "what", "cpu");
+
+    private final Metric metric = new Metric("metric", 42.5, new Date(1000), "host", ImmutableSet.of("a", "b"),
+            ATTRIBUTES, "proc");
+    private final Event event = new Event("event", -1.0, new Date(2000), 300L, "ok", "description", "host",
+            ImmutableSet.of("c"), ATTRIBUTES);
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        roundTrip(false);
+        roundTrip(true);
+    }
+
+    @Test
+    public void testNullFields() throws IOException {
+        final Metric empty = new Metric(null, 0.0, null, null, ImmutableSet.<String> of(),
+                ImmutableMap.<String, String> of(), null);
+
+        final List<Object> out = read(write(ImmutableList.<Object> of(empty), false));
+
+        Assert.assertEquals(1, out.size());
+        assertMetric(empty, (Metric) out.get(0));
+    }
+
+    @Test
+    public void testUnsupportedMessage() {
+        final ByteBuf buffer = Unpooled.buffer();
+        buffer.writeByte(0x77);
+
+        try {
+            BinaryFormat.writePayload(buffer, ImmutableList.of(metric, "unsupported"), true);
+            Assert.fail("expected IllegalArgumentException");
+        } catch (final IllegalArgumentException e) {
+        }
+
+        Assert.assertEquals(1, buffer.writerIndex());
+    }
+
+    @Test
+    public void testUnsupportedVersion() {
+        assertMalformed(payload(2, 0));
+    }
+
+    @Test
+    public void testTruncated() {
+        final ByteBuf buffer = write(ImmutableList.<Object> of(metric, event), true);
+
+        for (int length = 0; length < buffer.readableBytes(); length++)
+            assertMalformed(buffer.copy(0, length));
+    }
+
+    @Test
+    public void testHugeDictionary() {
+        final ByteBuf buffer = payload(BinaryFormat.VERSION, BinaryFormat.FLAG_DICTIONARY);
+        writeVarint(buffer, Integer.MAX_VALUE);
+        assertMalformed(buffer);
+    }
+
+    @Test
+    public void testHugeRecordCount() {
+        final ByteBuf buffer = payload(BinaryFormat.VERSION, 0);
+        writeVarint(buffer, Integer.MAX_VALUE);
+        assertMalformed(buffer);
+    }
+
+    @Test
+    public void testHugeTagCount() {
+        assertMalformed(record(Integer.MAX_VALUE, 0));
+    }
+
+    @Test
+    public void testHugeAttributeCount() {
+        assertMalformed(record(0, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testLengthOutOfRange() {
+        final ByteBuf buffer = payload(BinaryFormat.VERSION, 0);
+        writeVarint(buffer, Long.MAX_VALUE);
+        assertMalformed(buffer);
+    }
+
+    @Test
+    public void testUnknownRecordType() throws IOException {
+        final ByteBuf buffer = payload(BinaryFormat.VERSION, 0);
+        writeVarint(buffer, 1);
+        buffer.writeByte(0x7f);
+        buffer.writeInt(3);
+        buffer.writeBytes(new byte[] { 1, 2, 3 });
+
+        Assert.assertTrue(read(buffer).isEmpty());
+    }
+
+    private void roundTrip(final boolean dictionary) throws IOException {
+        final List<Object> out = read(write(ImmutableList.<Object> of(metric, event), dictionary));
+
+        Assert.assertEquals(2, out.size());
+        assertMetric(metric, (Metric) out.get(0));
+
+        final Event e = (Event) out.get(1);
+        Assert.assertEquals(event.getKey(), e.getKey());
+        Assert.assertEquals(event.getValue(), e.getValue(), 0.0);
+        Assert.assertEquals(event.getTime(), e.getTime());
+        Assert.assertEquals(event.getTtl(), e.getTtl());
+        Assert.assertEquals(event.getState(), e.getState());
+        Assert.assertEquals(event.getDescription(), e.getDescription());
+        Assert.assertEquals(event.getHost(), e.getHost());
+        Assert.assertEquals(event.getTags(), e.getTags());
+        Assert.assertEquals(event.getAttributes(), e.getAttributes());
+    }
+
+    private void assertMetric(final Metric expected, final Metric actual) {
+        Assert.assertEquals(expected.getKey(), actual.getKey());
+        Assert.assertEquals(expected.getValue(), actual.getValue(), 0.0);
+        Assert.assertEquals(expected.getTime(), actual.getTime());
+        Assert.assertEquals(expected.getHost(), actual.getHost());
+        Assert.assertEquals(expected.getTags(), actual.getTags());
+        Assert.assertEquals(expected.getAttributes(), actual.getAttributes());
+        Assert.assertEquals(expected.getProc(), actual.getProc());
+    }
+
+    /**
+     * A payload with a single metric record, with the given number of tags and attributes but none of their data.
+     */
+    private ByteBuf record(final long tags, final long attributes) {
+        final ByteBuf body = Unpooled.buffer();
+        body.writeByte(0);
+        writeVarint(body, 0);
+        body.writeLong(0);
+        writeVarint(body, 0);
+        writeVarint(body, tags);
+
+        if (tags == 0)
+            writeVarint(body, attributes);
+
+        final ByteBuf buffer = payload(BinaryFormat.VERSION, 0);
+        writeVarint(buffer, 1);
+        buffer.writeByte(BinaryFormat.TYPE_METRIC);
+        buffer.writeInt(body.readableBytes());
+        buffer.writeBytes(body);
+        return buffer;
+    }
+
+    private ByteBuf payload(final int version, final int flags) {
+        final ByteBuf buffer = Unpooled.buffer();
+        buffer.writeByte(version);
+        buffer.writeByte(flags);
+        return buffer;
+    }
+
+    private ByteBuf write(final List<Object> messages, final boolean dictionary) {
+        final ByteBuf buffer = Unpooled.buffer();
+        BinaryFormat.writePayload(buffer, messages, dictionary);
+        return buffer;
+    }
+
+    private List<Object> read(final ByteBuf buffer) throws IOException {
+        final List<Object> out = new ArrayList<>();
+        BinaryFormat.readPayload(buffer, out);
+        return out;
+    }
+
+    private void assertMalformed(final ByteBuf buffer) {
+        try {
+            read(buffer);
+            Assert.fail("expected IOException");
+        } catch (final IOException e) {
+        }
+    }
+
+    private static void writeVarint(final ByteBuf out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+
+        out.writeByte((int) value);
+    }
+}
@@ -0,0 +1,160 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.cardinality;
+
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.spotify.ffwd.model.Metric;
+
+public class TestCardinalityLimiter {
+    private static final long WINDOW = 1000;
+
+    @Test
+    public void testWithinBudget() {
+        final CardinalityLimiter limiter = limiter(3, "drop");
+
+        for (int n = 0; n < 2; n++) {
+            for (int i = 0; i < 3; i++) {
+                final Metric m = metric("foo", i, "a");
+                Assert.assertSame(m, limiter.apply(m, 0));
+            }
+        }
+
+        Assert.assertEquals(0, limiter.getDropped());
+        Assert.assertEquals(0, limiter.getCollapsed());
+    }
+
+    @Test
+    public void testDrop() {
+        final CardinalityLimiter limiter = limiter(2, "drop");
+
+        Assert.assertNotNull(limiter.apply(metric("foo", 0, "a"), 0));
+        Assert.assertNotNull(limiter.apply(metric("foo", 1, "a"), 0));
+
+        Assert.assertNull(limiter.apply(metric("foo", 2, "a"), 0));
+        Assert.assertNull(limiter.apply(metric("foo", 2, "a"), 0));
+
+        // series that were let through keep passing, and every key has its own budget.
+        Assert.assertNotNull(limiter.apply(metric("foo", 0, "a"), 0));
+        Assert.assertNotNull(limiter.apply(metric("bar", 2, "a"), 0));
+
+        Assert.assertEquals(2, limiter.getDropped());
+        Assert.assertEquals(0, limiter.getCollapsed());
+    }
+
+    @Test
+    public void testCollapse() {
+        final CardinalityLimiter limiter = limiter(2, "collapse");
+
+        Assert.assertEquals("0", limiter.apply(metric("foo", 0, "a"), 0).getAttributes().get("id"));
+        Assert.assertEquals("1", limiter.apply(metric("foo", 1, "a"), 0).getAttributes().get("id"));
+
+        // id has the most distinct values, and is collapsed for this and every following metric of the key.
+        final Metric collapsed = limiter.apply(metric("foo", 2, "a"), 0);
+        Assert.assertEquals(ImmutableMap.of("id", CardinalityLimiter.COLLAPSED, "what", "a"),
+                collapsed.getAttributes());
+        Assert.assertEquals(2.0, collapsed.getValue(), 0.0);
+
+        Assert.assertEquals(CardinalityLimiter.COLLAPSED,
+                limiter.apply(metric("foo", 0, "a"), 0).getAttributes().get("id"));
+
+        // collapsed series count towards the budget again.
+        Assert.assertEquals(ImmutableMap.of("id", CardinalityLimiter.COLLAPSED, "what", "b"),
+                limiter.apply(metric("foo", 3, "b"), 0).getAttributes());
+
+        Assert.assertEquals(0, limiter.getDropped());
+        Assert.assertEquals(3, limiter.getCollapsed());
+    }
+
+    @Test
+    public void testCollapseNothingLeft() {
+        final CardinalityLimiter limiter = limiter(2, "collapse");
+
+        // series only differing by tags have no attribute to collapse.
+        Assert.assertNotNull(limiter.apply(tagged("a"), 0));
+        Assert.assertNotNull(limiter.apply(tagged("b"), 0));
+        Assert.assertNull(limiter.apply(tagged("c"), 0));
+
+        Assert.assertEquals(1, limiter.getDropped());
+        Assert.assertEquals(0, limiter.getCollapsed());
+    }
+
+    @Test
+    public void testWindow() {
+        final CardinalityLimiter limiter = limiter(1, "drop");
+
+        Assert.assertNotNull(limiter.apply(metric("foo", 0, "a"), 0));
+        Assert.assertNull(limiter.apply(metric("foo", 1, "a"), WINDOW - 1));
+
+        // the budget starts over in the next window.
+        Assert.assertNotNull(limiter.apply(metric("foo", 1, "a"), WINDOW));
+        Assert.assertNull(limiter.apply(metric("foo", 0, "a"), WINDOW));
+
+        Assert.assertEquals(2, limiter.getDropped());
+    }
+
+    private static CardinalityLimiter limiter(final long budget, final String action) {
+        final CardinalityConfig config = new CardinalityConfig(budget, null, WINDOW, action);
+
+        // idle keys are never evicted.
+        final Timer timer = new Timer() {
+            @Override
+            public Timeout newTimeout(TimerTask task, long delay, TimeUnit unit) {
+                return null;
+            }
+
+            @Override
+            public Set<Timeout> stop() {
+                return Collections.emptySet();
+            }
+        };
+
+        return Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(CardinalityConfig.class).toInstance(config);
+                bind(Timer.class).toInstance(timer);
+                bind(ExecutorService.class).toInstance(MoreExecutors.sameThreadExecutor());
+            }
+        }).getInstance(CardinalityLimiter.class);
+    }
+
+    private static Metric metric(final String key, final int id, final String what) {
+        final Map<String, String> attributes = ImmutableMap.of("id", Integer.toString(id), "what", what);
+        return new Metric(key, id, null, "host", ImmutableSet.<String> of(), attributes, null);
+    }
+
+    private static Metric tagged(final String tag) {
+        return new Metric("foo", 0, null, "host", ImmutableSet.of(tag), ImmutableMap.of("what", "a"), null);
+    }
+}
@@ -0,0 +1,77 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.cardinality;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.spotify.ffwd.aggregation.Series;
+
+public class TestDistinctCounter {
+    private static final int LIMIT = 1000;
+
+    @Test
+    public void testExact() {
+        final DistinctCounter counter = new DistinctCounter(LIMIT);
+
+        for (int i = 0; i < LIMIT; i++)
+            Assert.assertTrue(counter.add(hash(i)));
+
+        for (int i = 0; i < LIMIT; i++) {
+            Assert.assertTrue(counter.contains(hash(i)));
+            Assert.assertFalse(counter.add(hash(i)));
+        }
+
+        Assert.assertFalse(counter.contains(hash(LIMIT)));
+        Assert.assertTrue(counter.isExact());
+        Assert.assertEquals(LIMIT, counter.count());
+    }
+
+    @Test
+    public void testEstimate() {
+        final DistinctCounter counter = new DistinctCounter(LIMIT);
+
+        for (int i = 0; i < LIMIT; i++)
+            counter.add(hash(i));
+
+        // a known hash does not switch to estimating.
+        counter.add(hash(0));
+        Assert.assertTrue(counter.isExact());
+
+        Assert.assertTrue(counter.add(hash(LIMIT)));
+        Assert.assertFalse(counter.isExact());
+
+        // hashes counted exactly are carried over into the estimate.
+        Assert.assertEquals(LIMIT + 1, counter.count(), (LIMIT + 1) * 0.065);
+
+        for (int i = 0; i <= LIMIT; i++) {
+            Assert.assertTrue(counter.contains(hash(i)));
+            Assert.assertFalse(counter.add(hash(i)));
+        }
+
+        final int n = 100000;
+
+        for (int i = LIMIT + 1; i < n; i++)
+            counter.add(hash(i));
+
+        Assert.assertEquals(n, counter.count(), n * 0.065);
+    }
+
+    private static long hash(final int i) {
+        return Series.fingerprint("series-" + i);
+    }
+}
@@ -0,0 +1,68 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.cardinality;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.spotify.ffwd.aggregation.Series;
+
+public class TestHyperLogLog {
+    @Test
+    public void testAccuracy() {
+        // about four times the standard error of the default precision.
+        final double error = 0.065;
+
+        for (final int n : new int[] { 10, 1000, 10000, 100000, 1000000 }) {
+            final HyperLogLog sketch = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+
+            for (int i = 0; i < n; i++)
+                sketch.add(Series.fingerprint("value-" + n + "-" + i));
+
+            Assert.assertEquals("estimate of " + n, n, sketch.estimate(), n * error);
+        }
+    }
+
+    @Test
+    public void testDuplicates() {
+        final HyperLogLog sketch = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+
+        for (int i = 0; i < 10000; i++)
+            sketch.add(Series.fingerprint("value-" + i));
+
+        final long estimate = sketch.estimate();
+
+        for (int i = 0; i < 10000; i++) {
+            final long hash = Series.fingerprint("value-" + i);
+            Assert.assertFalse(sketch.changes(hash));
+            Assert.assertFalse(sketch.add(hash));
+        }
+
+        Assert.assertEquals(estimate, sketch.estimate());
+    }
+
+    @Test
+    public void testInvalidPrecision() {
+        for (final int precision : new int[] { 3, 17 }) {
+            try {
+                new HyperLogLog(precision);
+                Assert.fail("expected IllegalArgumentException");
+            } catch (IllegalArgumentException e) {
+            }
+        }
+    }
+}
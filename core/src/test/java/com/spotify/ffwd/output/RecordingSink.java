@@ -0,0 +1,142 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.output;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Assert;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.spotify.ffwd.model.Event;
+import com.spotify.ffwd.model.Metric;
+
+import eu.toolchain.async.AsyncFramework;
+import eu.toolchain.async.AsyncFuture;
+import eu.toolchain.async.ResolvableFuture;
+
+/**
+ * Sink for tests, which records every batch, fails the first {@code fail} of them, and counts down once for every
+ * delivered metric.
+ */
+class RecordingSink implements BatchedPluginSink {
+    static final long TIMEOUT = 10000;
+
+    final AsyncFramework async;
+    final CountDownLatch sent;
+
+    final List<List<Double>> attempts = new ArrayList<>();
+    final List<Double> delivered = new ArrayList<>();
+
+    volatile int fail;
+    volatile boolean ready = true;
+    /* returned for every delivered batch instead of a resolved future, if set */
+    volatile ResolvableFuture<Void> pending;
+
+    RecordingSink(final AsyncFramework async, final int expected) {
+        this.async = async;
+        this.sent = new CountDownLatch(expected);
+    }
+
+    @Override
+    public synchronized AsyncFuture<Void> sendMetrics(Collection<Metric> metrics) {
+        final List<Double> values = new ArrayList<>();
+
+        for (final Metric m : metrics)
+            values.add(m.getValue());
+
+        attempts.add(values);
+
+        if (fail > 0) {
+            fail--;
+            return async.failed(new IOException("connection lost"));
+        }
+
+        delivered.addAll(values);
+
+        for (int i = 0; i < values.size(); i++)
+            sent.countDown();
+
+        return pending != null ? pending : async.<Void> resolved(null);
+    }
+
+    @Override
+    public AsyncFuture<Void> sendEvents(Collection<Event> events) {
+        return async.resolved(null);
+    }
+
+    @Override
+    public void sendMetric(Metric metric) {
+        throw new IllegalStateException("expected a batch");
+    }
+
+    @Override
+    public void sendEvent(Event event) {
+        throw new IllegalStateException("expected a batch");
+    }
+
+    @Override
+    public AsyncFuture<Void> start() {
+        return async.resolved(null);
+    }
+
+    @Override
+    public AsyncFuture<Void> stop() {
+        return async.resolved(null);
+    }
+
+    @Override
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Wait until at least the given number of metrics have been delivered.
+     */
+    void awaitDelivered(final int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (this) {
+                if (delivered.size() >= count)
+                    return;
+            }
+
+            Thread.sleep(10);
+        }
+
+        Assert.fail("timed out waiting for " + count + " delivered metric(s)");
+    }
+
+    static Metric metric(final int value) {
+        return new Metric("foo", value, null, "host", ImmutableSet.<String> of(), ImmutableMap.<String, String> of(),
+                null);
+    }
+
+    static List<Double> values(final int from, final int to) {
+        final List<Double> values = new ArrayList<>();
+
+        for (int i = from; i < to; i++)
+            values.add((double) i);
+
+        return values;
+    }
+}
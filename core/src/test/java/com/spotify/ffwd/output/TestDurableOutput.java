@@ -0,0 +1,151 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.output;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timer;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.TypeLiteral;
+import com.google.inject.name.Names;
+import com.spotify.ffwd.qlog.QLogManager;
+import com.spotify.ffwd.qlog.QLogManagerImpl;
+
+import eu.toolchain.async.AsyncFramework;
+import eu.toolchain.async.TinyAsync;
+
+public class TestDurableOutput {
+    private static final String ID = "test";
+
+    @Test
+    public void testRetry() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        final AsyncFramework async = TinyAsync.builder().executor(executor).build();
+        final Timer timer = new HashedWheelTimer();
+        final Path path = Files.createTempDirectory("durabletest");
+        final QLogManager qlog = new QLogManagerImpl(path, async);
+
+        final RecordingSink sink = new RecordingSink(async, 5);
+        sink.fail = 1;
+
+        final DurableOutput output = output(path, qlog, sink, async, executor, timer);
+        output.start().get();
+
+        for (int i = 0; i < 5; i++)
+            output.write(RecordingSink.metric(i));
+
+        Assert.assertTrue(sink.sent.await(RecordingSink.TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // the failed batch is sent again from the same position, and nothing is sent twice.
+        Assert.assertEquals(RecordingSink.values(0, 5), sink.delivered);
+        Assert.assertTrue(sink.attempts.size() >= 2);
+        Assert.assertEquals(0.0, sink.attempts.get(0).get(0), 0.0);
+        Assert.assertEquals(0.0, sink.attempts.get(1).get(0), 0.0);
+        Assert.assertTrue(sink.attempts.get(1).containsAll(sink.attempts.get(0)));
+
+        awaitCommitted(qlog, qlog.position());
+
+        output.stop().get();
+        timer.stop();
+        executor.shutdown();
+    }
+
+    @Test
+    public void testCommitWhenResolved() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        final AsyncFramework async = TinyAsync.builder().executor(executor).build();
+        final Timer timer = new HashedWheelTimer();
+        final Path path = Files.createTempDirectory("durabletest");
+        final QLogManager qlog = new QLogManagerImpl(path, async);
+
+        final RecordingSink sink = new RecordingSink(async, 1);
+        sink.pending = async.future();
+
+        // sinks are usually behind a flushing sink, which has to pass on the future of the batch.
+        final FlushingPluginSink flushing = new FlushingPluginSink(1000);
+
+        Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(AsyncFramework.class).toInstance(async);
+                bind(BatchedPluginSink.class).toInstance(sink);
+            }
+        }).injectMembers(flushing);
+
+        flushing.start().get();
+
+        final DurableOutput output = output(path, qlog, flushing, async, executor, timer);
+        output.start().get();
+
+        final long start = qlog.committed(ID);
+
+        output.write(RecordingSink.metric(0));
+        Assert.assertTrue(sink.sent.await(RecordingSink.TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // handed over, but not sent yet.
+        Assert.assertEquals(start, qlog.committed(ID));
+
+        sink.pending.resolve(null);
+        awaitCommitted(qlog, qlog.position());
+
+        output.stop().get();
+        flushing.stop().get();
+        timer.stop();
+        executor.shutdown();
+    }
+
+    private static DurableOutput output(final Path path, final QLogManager qlog, final PluginSink sink,
+            final AsyncFramework async, final ExecutorService executor, final Timer timer) {
+        final DurableConfig config = new DurableConfig(null, 100, null, null, null, null, null, null, null, null,
+                null);
+
+        return Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(QLogManager.class).toInstance(qlog);
+                bind(Path.class).annotatedWith(Names.named("path")).toInstance(path);
+                bind(new TypeLiteral<Map<String, PluginSink>>() {
+                }).toInstance(ImmutableMap.of(ID, sink));
+                bind(AsyncFramework.class).toInstance(async);
+                bind(ExecutorService.class).toInstance(executor);
+                bind(Timer.class).toInstance(timer);
+                bind(DurableConfig.class).toInstance(config);
+            }
+        }).getInstance(DurableOutput.class);
+    }
+
+    private static void awaitCommitted(final QLogManager qlog, final long position) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + RecordingSink.TIMEOUT;
+
+        while (qlog.committed(ID) != position && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        Assert.assertEquals(position, qlog.committed(ID));
+    }
+}
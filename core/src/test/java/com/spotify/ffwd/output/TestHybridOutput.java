@@ -0,0 +1,143 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.output;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timer;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.TypeLiteral;
+import com.google.inject.name.Names;
+
+import eu.toolchain.async.AsyncFramework;
+import eu.toolchain.async.TinyAsync;
+
+public class TestHybridOutput {
+    private static final String ID = "test";
+
+    @Test
+    public void testSpill() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        final AsyncFramework async = TinyAsync.builder().executor(executor).build();
+        final Timer timer = new HashedWheelTimer();
+        final Path path = Files.createTempDirectory("hybridtest");
+
+        final RecordingSink sink = new RecordingSink(async, 0);
+        sink.ready = false;
+
+        final HybridOutput output = output(path, sink, async, executor, timer);
+        output.start().get();
+
+        Assert.assertTrue(Files.isDirectory(path.resolve("spill-" + ID)));
+
+        for (int i = 0; i < 5; i++)
+            output.write(RecordingSink.metric(i));
+
+        // written while the spilled messages are being delivered, and spilled after them to keep them in order.
+        sink.ready = true;
+
+        for (int i = 5; i < 10; i++)
+            output.write(RecordingSink.metric(i));
+
+        sink.awaitDelivered(10);
+
+        // caught up, the next batch is taken from memory and retried in place when it fails.
+        sink.fail = 1;
+
+        for (int i = 10; i < 15; i++)
+            output.write(RecordingSink.metric(i));
+
+        sink.awaitDelivered(15);
+
+        synchronized (sink) {
+            Assert.assertEquals(RecordingSink.values(0, 15), sink.delivered);
+        }
+
+        output.stop().get();
+        timer.stop();
+        executor.shutdown();
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        final AsyncFramework async = TinyAsync.builder().executor(executor).build();
+        final Timer timer = new HashedWheelTimer();
+        final Path path = Files.createTempDirectory("hybridtest");
+
+        final RecordingSink down = new RecordingSink(async, 0);
+        down.ready = false;
+
+        final HybridOutput first = output(path, down, async, executor, timer);
+        first.start().get();
+
+        for (int i = 0; i < 5; i++)
+            first.write(RecordingSink.metric(i));
+
+        first.stop().get();
+        Assert.assertTrue(down.attempts.isEmpty());
+
+        // spilled messages are delivered after a restart, before any new message.
+        final RecordingSink up = new RecordingSink(async, 0);
+
+        final HybridOutput second = output(path, up, async, executor, timer);
+        second.start().get();
+
+        for (int i = 5; i < 10; i++)
+            second.write(RecordingSink.metric(i));
+
+        up.awaitDelivered(10);
+
+        synchronized (up) {
+            Assert.assertEquals(RecordingSink.values(0, 10), up.delivered);
+        }
+
+        second.stop().get();
+        timer.stop();
+        executor.shutdown();
+    }
+
+    private static HybridOutput output(final Path path, final PluginSink sink, final AsyncFramework async,
+            final ExecutorService executor, final Timer timer) {
+        final DurableConfig config = new DurableConfig("hybrid", 3, 100, null, null, null, null, null, null, null,
+                null);
+
+        return Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(Path.class).annotatedWith(Names.named("path")).toInstance(path);
+                bind(new TypeLiteral<Map<String, PluginSink>>() {
+                }).toInstance(ImmutableMap.of(ID, sink));
+                bind(AsyncFramework.class).toInstance(async);
+                bind(ExecutorService.class).toInstance(executor);
+                bind(Timer.class).toInstance(timer);
+                bind(DurableConfig.class).toInstance(config);
+            }
+        }).getInstance(HybridOutput.class);
+    }
+}
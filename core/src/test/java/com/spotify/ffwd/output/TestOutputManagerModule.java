@@ -0,0 +1,57 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.output;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.spotify.ffwd.noop.NoopOutputPlugin;
+
+public class TestOutputManagerModule {
+    private static final DurableConfig DURABLE = new DurableConfig(null, null, null, null, null, null, null, null,
+            null, null, null);
+
+    @Test
+    public void testIds() {
+        new OutputManagerModule(plugins("a", "b"), DURABLE, null, null, null);
+
+        // ids are only required by the durable stage.
+        new OutputManagerModule(plugins(null, null), null, null, null, null);
+    }
+
+    @Test
+    public void testInvalidIds() {
+        assertInvalid(plugins("a", null));
+        assertInvalid(plugins("a", "a"));
+        assertInvalid(plugins("a", "../b"));
+    }
+
+    private static void assertInvalid(final List<OutputPlugin> plugins) {
+        try {
+            new OutputManagerModule(plugins, DURABLE, null, null, null);
+            Assert.fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    private static List<OutputPlugin> plugins(final String a, final String b) {
+        return ImmutableList.<OutputPlugin> of(new NoopOutputPlugin(a, null), new NoopOutputPlugin(b, null));
+    }
+}
@@ -18,11 +18,20 @@ package com.spotify.ffwd.qlog;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.file.Paths;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+import org.junit.Assert;
 import org.junit.Test;
 
 import eu.toolchain.async.AsyncFramework;
@@ -34,7 +43,7 @@ public class TestQLogManager {
         final ExecutorService executor = Executors.newFixedThreadPool(1);
         final AsyncFramework async = TinyAsync.builder().executor(executor).build();
 
-        final QLogManager log = new QLogManagerImpl(Paths.get("./qlogtest"), async, 1024 * 10);
+        final QLogManager log = new QLogManagerImpl(Files.createTempDirectory("qlogtest"), async, 1024 * 10);
 
         log.start().get();
 
@@ -58,4 +67,315 @@ public class TestQLogManager {
 
         executor.shutdown();
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testRecovery() throws InterruptedException, ExecutionException, IOException {
+        final ExecutorService executor = Executors.newFixedThreadPool(1);
+        final AsyncFramework async = TinyAsync.builder().executor(executor).build();
+
+        final Path path = Files.createTempDirectory("qlogtest");
+
+        final ByteBuffer buf = ByteBuffer.allocate(1000);
+
+        while (buf.remaining() > 0)
+            buf.put((byte) 0x77);
+
+        buf.flip();
+
+        final QLogManager first = new QLogManagerImpl(path, async, 1024 * 10);
+
+        first.start().get();
+
+        for (int i = 0; i < 25; i++)
+            first.write(buf.asReadOnlyBuffer());
+
+        first.stop().get();
+
+        final QLogManager second = new QLogManagerImpl(path, async, 1024 * 10);
+
+        second.start().get();
+        Assert.assertEquals(25, second.position());
+
+        second.write(buf.asReadOnlyBuffer());
+        Assert.assertEquals(26, second.position());
+
+        second.stop().get();
+
+        // corrupt the last entry of the tail segment, which holds entries 20 through 25.
+        final Path tail = path.resolve(String.format("%016x", 20));
+
+        try (final FileChannel channel = FileChannel.open(tail, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] { 0x00 }), 16 + 5 * 1008 + 8);
+        }
+
+        final QLogManager third = new QLogManagerImpl(path, async, 1024 * 10);
+
+        third.start().get();
+        Assert.assertEquals(25, third.position());
+        third.stop().get();
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void testRead() throws InterruptedException, ExecutionException, IOException {
+        final ExecutorService executor = Executors.newFixedThreadPool(1);
+        final AsyncFramework async = TinyAsync.builder().executor(executor).build();
+
+        final QLogManager log = new QLogManagerImpl(Files.createTempDirectory("qlogtest"), async, 1024 * 10);
+
+        log.start().get();
+
+        for (int i = 0; i < 25; i++) {
+            final ByteBuffer buf = ByteBuffer.allocate(1000);
+            buf.put(0, (byte) i);
+            log.write(buf);
+        }
+
+        final QLogReader reader = log.reader("foo");
+
+        long position = 0;
+
+        while (position < log.position()) {
+            final List<ByteBuffer> entries = reader.read(4);
+
+            Assert.assertFalse(entries.isEmpty());
+
+            for (final ByteBuffer entry : entries) {
+                Assert.assertTrue(entry.isReadOnly());
+                Assert.assertEquals(1000, entry.remaining());
+                Assert.assertEquals((byte) position++, entry.get(0));
+            }
+        }
+
+        Assert.assertEquals(position, reader.position());
+        Assert.assertTrue(reader.read(4).isEmpty());
+
+        // entries crossing segments are returned in a single batch.
+        reader.seek(5);
+        Assert.assertEquals(10, reader.read(10).size());
+        Assert.assertEquals(15, reader.position());
+
+        reader.commit(15);
+        Assert.assertEquals(15, log.committed("foo"));
+
+        log.stop().get();
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void testSync() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(1);
+        final AsyncFramework async = TinyAsync.builder().executor(executor).build();
+
+        for (final QLogManagerImpl.Durability durability : QLogManagerImpl.Durability.values()) {
+            final QLogManager log = new QLogManagerImpl(Files.createTempDirectory("qlogtest"), async, 1024 * 10,
+                    durability, 10, false, QLogRetention.UNLIMITED);
+
+            log.start().get();
+
+            long position = 0;
+
+            for (int i = 0; i < 25; i++)
+                position = log.write(ByteBuffer.allocate(1000));
+
+            log.sync(position).get(1, TimeUnit.SECONDS);
+
+            log.stop().get();
+        }
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void testRetention() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(1);
+        final AsyncFramework async = TinyAsync.builder().executor(executor).build();
+
+        final QLogManager log = new QLogManagerImpl(Files.createTempDirectory("qlogtest"), async, 1024 * 10,
+                QLogManagerImpl.Durability.NONE, 1000, false, new QLogRetention(0, 0, 2));
+
+        log.start().get();
+
+        final QLogReader reader = log.reader("foo");
+        reader.commit(0);
+
+        for (int i = 0; i < 25; i++) {
+            final ByteBuffer buf = ByteBuffer.allocate(1000);
+            buf.put(0, (byte) i);
+            log.write(buf);
+        }
+
+        log.retain();
+
+        // the first of three segments is dropped, and the consumer moved past it.
+        final long head = log.committed("foo");
+        Assert.assertTrue("head moved: " + head, head > 0);
+        Assert.assertEquals(head, log.lost("foo"));
+
+        final List<ByteBuffer> entries = reader.read(1);
+        Assert.assertEquals(1, entries.size());
+        Assert.assertEquals((byte) head, entries.get(0).get(0));
+        Assert.assertEquals(head + 1, reader.position());
+
+        // dropped positions move the reader to the head.
+        reader.seek(0);
+        Assert.assertEquals(head, reader.position());
+
+        log.stop().get();
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void testCheckpoint() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(1);
+        final AsyncFramework async = TinyAsync.builder().executor(executor).build();
+
+        final Path path = Files.createTempDirectory("qlogtest");
+
+        final QLogManager first = new QLogManagerImpl(path, async, 1024 * 10);
+
+        first.start().get();
+
+        for (int i = 0; i < 25; i++)
+            first.write(ByteBuffer.allocate(1000));
+
+        first.update("foo", 17);
+        first.checkpoint();
+        first.update("foo", 20);
+
+        // simulate a crash by opening the log again without stopping the first instance.
+        final QLogManager second = new QLogManagerImpl(path, async, 1024 * 10);
+
+        second.start().get();
+        Assert.assertEquals(17, second.committed("foo"));
+        Assert.assertFalse(Files.exists(path.resolve("index.tmp")));
+        second.stop().get();
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void testConcurrentWrites() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final AsyncFramework async = TinyAsync.builder().executor(executor).build();
+
+        final QLogManager log = new QLogManagerImpl(Files.createTempDirectory("qlogtest"), async, 1024 * 10);
+
+        log.start().get();
+
+        final int writers = 4;
+        final int count = 500;
+
+        final List<Future<Void>> futures = new ArrayList<>();
+
+        for (int w = 0; w < writers; w++) {
+            final int writer = w;
+
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < count; i++) {
+                        final ByteBuffer buf = ByteBuffer.allocate(100 + i % 300);
+                        buf.putInt(0, writer);
+                        buf.putInt(4, i);
+                        log.write(buf);
+                    }
+
+                    return null;
+                }
+            }));
+        }
+
+        for (final Future<Void> f : futures)
+            f.get();
+
+        Assert.assertEquals(writers * count, log.position());
+
+        // every writer's entries are complete, and in the order they were written.
+        final int[] next = new int[writers];
+        final QLogReader reader = log.reader("foo");
+
+        while (true) {
+            final List<ByteBuffer> entries = reader.read(100);
+
+            if (entries.isEmpty())
+                break;
+
+            for (final ByteBuffer entry : entries) {
+                final int writer = entry.getInt(0);
+                final int i = entry.getInt(4);
+                Assert.assertEquals(next[writer]++, i);
+                Assert.assertEquals(100 + i % 300, entry.remaining());
+            }
+        }
+
+        for (int w = 0; w < writers; w++)
+            Assert.assertEquals(count, next[w]);
+
+        log.stop().get();
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(1);
+        final AsyncFramework async = TinyAsync.builder().executor(executor).build();
+
+        final Path path = Files.createTempDirectory("qlogtest");
+
+        final QLogManager first = new QLogManagerImpl(path, async, 1024 * 10, QLogManagerImpl.Durability.NONE,
+                1000, true, QLogRetention.UNLIMITED);
+
+        first.start().get();
+
+        for (int i = 0; i < 100; i++) {
+            final ByteBuffer buf = ByteBuffer.allocate(1000);
+            buf.putInt(0, i);
+            first.write(buf);
+        }
+
+        first.stop().get();
+
+        // wait for compression of all but the tail segment to complete.
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+
+        final long compressed = Files.size(path.resolve(String.format("%016x", 0)));
+        Assert.assertTrue("segment is compressed: " + compressed, compressed < 1000);
+
+        final ExecutorService executor2 = Executors.newFixedThreadPool(1);
+        final AsyncFramework async2 = TinyAsync.builder().executor(executor2).build();
+
+        final QLogManager second = new QLogManagerImpl(path, async2, 1024 * 10);
+
+        second.start().get();
+        Assert.assertEquals(100, second.position());
+
+        final QLogReader reader = second.reader("foo");
+
+        reader.seek(37);
+
+        int expected = 37;
+
+        while (true) {
+            final List<ByteBuffer> entries = reader.read(7);
+
+            if (entries.isEmpty())
+                break;
+
+            for (final ByteBuffer entry : entries) {
+                Assert.assertEquals(1000, entry.remaining());
+                Assert.assertEquals(expected++, entry.getInt(0));
+            }
+        }
+
+        Assert.assertEquals(100, expected);
+
+        second.stop().get();
+        executor2.shutdown();
+    }
+}
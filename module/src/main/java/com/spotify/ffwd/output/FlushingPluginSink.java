@@ -17,6 +17,7 @@
 package com.spotify.ffwd.output;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executors;
@@ -42,11 +43,14 @@ import eu.toolchain.async.Transform;
  * Facade implementation of a plugin sink that receives metrics and events, puts them on a buffer, then flushes them at
  * regular intervals.
  *
+ * Batches are passed straight through to the underlying sink, so that callers which need to know when a batch has been
+ * sent, like the durable output, get its future.
+ *
  * @author udoprog
  */
 @Slf4j
 @RequiredArgsConstructor
-public class FlushingPluginSink implements PluginSink {
+public class FlushingPluginSink implements BatchedPluginSink {
     @Inject
     private AsyncFramework async;
 
@@ -83,6 +87,16 @@ public class FlushingPluginSink implements PluginSink {
         }
     }
 
+    @Override
+    public AsyncFuture<Void> sendEvents(Collection<Event> events) {
+        return sink.sendEvents(events);
+    }
+
+    @Override
+    public AsyncFuture<Void> sendMetrics(Collection<Metric> metrics) {
+        return sink.sendMetrics(metrics);
+    }
+
     @Override
     public AsyncFuture<Void> start() {
         next.set(new Batch(async.<Void> future()));
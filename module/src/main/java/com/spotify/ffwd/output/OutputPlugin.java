@@ -20,5 +20,12 @@ import com.google.inject.Key;
 import com.google.inject.Module;
 
 public interface OutputPlugin {
+    /**
+     * Stable identifier of the plugin, which keys state that outlives the agent, like its position in the durable log.
+     *
+     * @return The configured id, or {@code null} if none is configured.
+     */
+    public String id();
+
     public Module module(Key<PluginSink> key);
 }
@@ -0,0 +1,109 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.protocol;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.spotify.ffwd.util.Hashing;
+
+/**
+ * A consistent hash ring mapping 64-bit hashes to a set of nodes.
+ *
+ * Each node is placed on the ring a number of times (virtual nodes), at points derived only from the identity of that
+ * node. Adding or removing a node therefore only moves the hashes which fall on the arcs owned by that node.
+ *
+ * The ring is immutable, node health is instead evaluated on lookup, where unhealthy nodes are skipped by walking the
+ * ring clockwise to the next healthy node. Points and lookups are hashed with {@link Hashing}.
+ */
+public class ConsistentHashRing<T> {
+    private final long[] points;
+    private final List<T> owners;
+    private final List<T> nodes;
+
+    /**
+     * Build a new ring.
+     *
+     * @param nodes Nodes to place on the ring, keyed by a stable identity (like {@code host:port}).
+     * @param virtualNodes Number of points on the ring for each node.
+     */
+    public ConsistentHashRing(final Map<String, T> nodes, final int virtualNodes) {
+        if (virtualNodes <= 0)
+            throw new IllegalArgumentException("virtualNodes must be positive");
+
+        final TreeMap<Long, T> ring = new TreeMap<>();
+
+        for (final Map.Entry<String, T> e : nodes.entrySet()) {
+            for (int i = 0; i < virtualNodes; i++) {
+                final long point = Hashing.hash(e.getKey() + "-" + i);
+
+                // on (very unlikely) collisions, the first node to claim a point keeps it.
+                if (!ring.containsKey(point))
+                    ring.put(point, e.getValue());
+            }
+        }
+
+        this.points = new long[ring.size()];
+
+        final ImmutableList.Builder<T> owners = ImmutableList.builder();
+
+        int i = 0;
+
+        for (final Map.Entry<Long, T> e : ring.entrySet()) {
+            points[i++] = e.getKey();
+            owners.add(e.getValue());
+        }
+
+        this.owners = owners.build();
+        this.nodes = ImmutableList.copyOf(nodes.values());
+    }
+
+    /**
+     * Find the node that owns the given hash, skipping nodes which are not healthy.
+     *
+     * @param hash Hash to lookup.
+     * @param healthy Predicate deciding if a node is eligible.
+     * @return The owning node, or {@code null} if no node is healthy.
+     */
+    public T lookup(final long hash, final Predicate<? super T> healthy) {
+        if (points.length == 0)
+            return null;
+
+        int start = Arrays.binarySearch(points, hash);
+
+        // not an exact hit, binarySearch returns (-(insertion point) - 1).
+        if (start < 0)
+            start = -start - 1;
+
+        for (int i = 0; i < points.length; i++) {
+            final T node = owners.get((start + i) % points.length);
+
+            if (healthy.apply(node))
+                return node;
+        }
+
+        return null;
+    }
+
+    public List<T> nodes() {
+        return nodes;
+    }
+}
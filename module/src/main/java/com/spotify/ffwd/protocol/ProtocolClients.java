@@ -21,6 +21,11 @@ import org.slf4j.Logger;
 import eu.toolchain.async.AsyncFuture;
 
 public interface ProtocolClients {
+    public static final int DEFAULT_MAX_RESENDS = 3;
+
+    /**
+     * @param maxResends Number of times a batch is re-sent after being lost with a connection, before it fails.
+     */
     public AsyncFuture<ProtocolConnection> connect(Logger log, Protocol protocol, ProtocolClient client,
-            RetryPolicy policy);
+            RetryPolicy policy, int maxResends);
 }
@@ -22,6 +22,7 @@ import java.util.concurrent.atomic.AtomicReference;
 import org.slf4j.Logger;
 
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
 import com.spotify.ffwd.model.Event;
 import com.spotify.ffwd.model.Metric;
 import com.spotify.ffwd.output.BatchedPluginSink;
@@ -46,6 +47,10 @@ public class ProtocolPluginSink implements BatchedPluginSink {
     @Inject
     private RetryPolicy retry;
 
+    @Inject
+    @Named("maxResends")
+    private int maxResends;
+
     @Inject
     private Logger log;
 
@@ -93,7 +98,9 @@ public class ProtocolPluginSink implements BatchedPluginSink {
 
     @Override
     public AsyncFuture<Void> start() {
-        return clients.connect(log, protocol, client, retry).transform(new LazyTransform<ProtocolConnection, Void>() {
+        final AsyncFuture<ProtocolConnection> connect = clients.connect(log, protocol, client, retry, maxResends);
+
+        return connect.transform(new LazyTransform<ProtocolConnection, Void>() {
             @Override
             public AsyncFuture<Void> transform(ProtocolConnection result) throws Exception {
                 if (!connection.compareAndSet(null, result))
@@ -0,0 +1,247 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.protocol;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+
+import com.google.common.base.Predicate;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.spotify.ffwd.model.Event;
+import com.spotify.ffwd.model.Metric;
+import com.spotify.ffwd.output.BatchedPluginSink;
+import com.spotify.ffwd.util.Hashing;
+
+import eu.toolchain.async.AsyncFramework;
+import eu.toolchain.async.AsyncFuture;
+import eu.toolchain.async.LazyTransform;
+
+/**
+ * Plugin sink that spreads messages over a set of downstream servers.
+ *
+ * Each series (key and attributes) is assigned to a server through a {@link ConsistentHashRing}. Servers which are
+ * not currently connected are skipped, which moves their series to the next server on the ring until they recover.
+ */
+public class ShardedProtocolPluginSink implements BatchedPluginSink {
+    private static final Predicate<ProtocolConnection> CONNECTED = new Predicate<ProtocolConnection>() {
+        @Override
+        public boolean apply(ProtocolConnection c) {
+            return c.isConnected();
+        }
+    };
+
+    @Inject
+    private AsyncFramework async;
+
+    @Inject
+    private ProtocolClients clients;
+
+    @Inject
+    private List<Protocol> protocols;
+
+    @Inject
+    private ProtocolClient client;
+
+    @Inject
+    private RetryPolicy retry;
+
+    @Inject
+    @Named("maxResends")
+    private int maxResends;
+
+    @Inject
+    private Logger log;
+
+    @Inject
+    @Named("virtualNodes")
+    private int virtualNodes;
+
+    private final AtomicReference<ConsistentHashRing<ProtocolConnection>> ring = new AtomicReference<>();
+
+    @Override
+    public void sendEvent(Event event) {
+        final ProtocolConnection c = lookup(event.getKey(), event.getAttributes());
+
+        if (c == null)
+            return;
+
+        c.send(event);
+    }
+
+    @Override
+    public void sendMetric(Metric metric) {
+        final ProtocolConnection c = lookup(metric.getKey(), metric.getAttributes());
+
+        if (c == null)
+            return;
+
+        c.send(metric);
+    }
+
+    @Override
+    public AsyncFuture<Void> sendEvents(Collection<Event> events) {
+        final Map<ProtocolConnection, List<Object>> shards = new IdentityHashMap<>();
+        int unroutable = 0;
+
+        for (final Event e : events) {
+            final ProtocolConnection c = lookup(e.getKey(), e.getAttributes());
+
+            if (c == null) {
+                unroutable++;
+                continue;
+            }
+
+            shardFor(shards, c).add(e);
+        }
+
+        return sendShards(shards, unroutable);
+    }
+
+    @Override
+    public AsyncFuture<Void> sendMetrics(Collection<Metric> metrics) {
+        final Map<ProtocolConnection, List<Object>> shards = new IdentityHashMap<>();
+        int unroutable = 0;
+
+        for (final Metric m : metrics) {
+            final ProtocolConnection c = lookup(m.getKey(), m.getAttributes());
+
+            if (c == null) {
+                unroutable++;
+                continue;
+            }
+
+            shardFor(shards, c).add(m);
+        }
+
+        return sendShards(shards, unroutable);
+    }
+
+    @Override
+    public AsyncFuture<Void> start() {
+        final List<AsyncFuture<ProtocolConnection>> connections = new ArrayList<>();
+
+        for (final Protocol p : protocols)
+            connections.add(clients.connect(log, p, client, retry, maxResends));
+
+        return async.collect(connections).transform(new LazyTransform<Collection<ProtocolConnection>, Void>() {
+            @Override
+            public AsyncFuture<Void> transform(Collection<ProtocolConnection> result) throws Exception {
+                // ring points are derived from the address of each shard, keep configuration order.
+                final Map<String, ProtocolConnection> nodes = new LinkedHashMap<>();
+
+                for (int i = 0; i < protocols.size(); i++)
+                    nodes.put(identity(protocols.get(i)), connections.get(i).get());
+
+                final ConsistentHashRing<ProtocolConnection> r = new ConsistentHashRing<>(nodes, virtualNodes);
+
+                if (!ring.compareAndSet(null, r))
+                    return stopAll(r.nodes());
+
+                return async.resolved(null);
+            }
+        });
+    }
+
+    @Override
+    public AsyncFuture<Void> stop() {
+        final ConsistentHashRing<ProtocolConnection> r = ring.getAndSet(null);
+
+        if (r == null)
+            return async.resolved(null);
+
+        return stopAll(r.nodes());
+    }
+
+    @Override
+    public boolean isReady() {
+        final ConsistentHashRing<ProtocolConnection> r = ring.get();
+
+        if (r == null)
+            return false;
+
+        for (final ProtocolConnection c : r.nodes()) {
+            if (c.isConnected())
+                return true;
+        }
+
+        return false;
+    }
+
+    private ProtocolConnection lookup(final String key, final Map<String, String> attributes) {
+        final ConsistentHashRing<ProtocolConnection> r = ring.get();
+
+        if (r == null)
+            return null;
+
+        return r.lookup(Hashing.hash(key, attributes), CONNECTED);
+    }
+
+    /**
+     * Send every shard of a batch.
+     *
+     * Messages without a connected shard are skipped, the batch only fails if none of its messages could be routed,
+     * so that it can be retried once a shard is available again.
+     */
+    private AsyncFuture<Void> sendShards(final Map<ProtocolConnection, List<Object>> shards, final int unroutable) {
+        if (unroutable > 0) {
+            if (shards.isEmpty())
+                return async.failed(new IllegalStateException("no shard available in " + protocols));
+
+            log.warn("Dropping {} message(s) without a connected shard", unroutable);
+        }
+
+        final List<AsyncFuture<Void>> futures = new ArrayList<>(shards.size());
+
+        for (final Map.Entry<ProtocolConnection, List<Object>> e : shards.entrySet())
+            futures.add(e.getKey().sendAll(e.getValue()));
+
+        return async.collectAndDiscard(futures);
+    }
+
+    private AsyncFuture<Void> stopAll(final List<ProtocolConnection> connections) {
+        final List<AsyncFuture<Void>> futures = new ArrayList<>(connections.size());
+
+        for (final ProtocolConnection c : connections)
+            futures.add(c.stop());
+
+        return async.collectAndDiscard(futures);
+    }
+
+    private static List<Object> shardFor(final Map<ProtocolConnection, List<Object>> shards,
+            final ProtocolConnection c) {
+        final List<Object> shard = shards.get(c);
+
+        if (shard != null)
+            return shard;
+
+        final List<Object> created = new ArrayList<>();
+        shards.put(c, created);
+        return created;
+    }
+
+    private static String identity(final Protocol protocol) {
+        return protocol.getAddress().getHostString() + ":" + protocol.getAddress().getPort();
+    }
+}
@@ -16,6 +16,10 @@
  **/
 package com.spotify.ffwd.serializer;
 
+import io.netty.buffer.ByteBuf;
+
+import java.util.Collection;
+
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
 import com.spotify.ffwd.model.Event;
 import com.spotify.ffwd.model.Metric;
@@ -25,4 +29,24 @@ public interface Serializer {
     byte[] serialize(Event event) throws Exception;
 
     byte[] serialize(Metric metric) throws Exception;
+
+    /**
+     * Serialize the given event into the provided buffer, starting at its current writer index.
+     */
+    void serialize(Event event, ByteBuf buffer) throws Exception;
+
+    /**
+     * Serialize the given metric into the provided buffer, starting at its current writer index.
+     */
+    void serialize(Metric metric, ByteBuf buffer) throws Exception;
+
+    /**
+     * Serialize a collection of events as a single payload into the provided buffer.
+     */
+    void serializeEvents(Collection<Event> events, ByteBuf buffer) throws Exception;
+
+    /**
+     * Serialize a collection of metrics as a single payload into the provided buffer.
+     */
+    void serializeMetrics(Collection<Metric> metrics, ByteBuf buffer) throws Exception;
 }
\ No newline at end of file
@@ -0,0 +1,85 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.util;
+
+import java.util.Map;
+
+/**
+ * Fast, non-cryptographic 64-bit hashing of strings and series, shared by routing and aggregation so that they agree
+ * on how a series is identified.
+ *
+ * Strings are hashed with 64-bit FNV-1a over their characters, and hashes are spread with the MurmurHash3 finalizer.
+ */
+public final class Hashing {
+    private Hashing() {
+    }
+
+    /**
+     * Hash the identity of a series, its key and attributes.
+     *
+     * Attributes are combined in an order-independent manner, so that equal maps always hash the same regardless of
+     * their iteration order.
+     */
+    public static long hash(final String key, final Map<String, String> attributes) {
+        long a = 0;
+
+        for (final Map.Entry<String, String> e : attributes.entrySet())
+            a += mix(fnv(e.getKey()) * 31 + fnv(e.getValue()));
+
+        return mix(fnv(key) ^ a);
+    }
+
+    /**
+     * Hash a string into a well distributed 64-bit value.
+     *
+     * Hashes the characters of the string without encoding it, which is the same as hashing the bytes of ASCII strings
+     * like {@code host:port}.
+     */
+    public static long hash(final String value) {
+        return mix(fnv(value));
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the characters of a string, {@code 0} for {@code null}. Not well distributed in the low
+     * bits, see {@link #mix(long)}.
+     */
+    public static long fnv(final String value) {
+        if (value == null)
+            return 0;
+
+        long h = 0xcbf29ce484222325L;
+
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+
+        return h;
+    }
+
+    /**
+     * Finalization step from MurmurHash3, spreads the bits of the given value over the entire 64-bit space.
+     */
+    public static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
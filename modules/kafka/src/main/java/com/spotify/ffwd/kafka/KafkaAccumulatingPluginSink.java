@@ -0,0 +1,468 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.kafka;
+
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import kafka.javaapi.producer.Producer;
+import kafka.producer.KeyedMessage;
+import lombok.extern.slf4j.Slf4j;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.spotify.ffwd.model.Event;
+import com.spotify.ffwd.model.Metric;
+import com.spotify.ffwd.output.BatchedPluginSink;
+import com.spotify.ffwd.serializer.Serializer;
+
+import eu.toolchain.async.AsyncFramework;
+import eu.toolchain.async.AsyncFuture;
+import eu.toolchain.async.FutureDone;
+import eu.toolchain.async.LazyTransform;
+import eu.toolchain.async.ResolvableFuture;
+
+/**
+ * Kafka sink that accumulates messages per topic and partition key before sending them.
+ *
+ * An accumulator is sent when it reaches {@code batchSize} messages or {@code batchBytes} bytes of payload, or when
+ * {@code linger} milliseconds have passed since its first message. Each send hands the producer a set of messages for
+ * a single partition, which lets it compress them together with the configured compression codec.
+ *
+ * At most {@code maxInFlight} sends are in progress at a time, further accumulators are queued until a send completes.
+ * Sending never blocks the calling thread. Instead, the sink reports that it is not ready while {@code maxWaiting}
+ * accumulators are queued, and rejects messages until the queue has room again. Rejected messages are counted, and
+ * logged at most once every {@code REPORT_INTERVAL}.
+ *
+ * When stopping, open accumulators are sent and the sink waits for every queued and in-flight send to complete before
+ * closing the producer.
+ */
+@Slf4j
+public class KafkaAccumulatingPluginSink implements BatchedPluginSink {
+    private static final long REPORT_INTERVAL = 10000;
+
+    @Inject
+    private AsyncFramework async;
+
+    @Inject
+    private Producer<byte[], byte[]> producer;
+
+    @Inject
+    private KafkaRoutingTable routing;
+
+    @Inject
+    private Serializer serializer;
+
+    @Inject
+    private Timer timer;
+
+    @Inject
+    @Named("batchSize")
+    private int batchSize;
+
+    @Inject
+    @Named("batchBytes")
+    private long batchBytes;
+
+    @Inject
+    @Named("linger")
+    private long linger;
+
+    @Inject
+    @Named("maxInFlight")
+    private int maxInFlight;
+
+    @Inject
+    @Named("maxWaiting")
+    private int maxWaiting;
+
+    private final ConcurrentMap<KafkaRoute, Accumulator> accumulators = new ConcurrentHashMap<>();
+
+    /* accumulators waiting for a send slot, and their number */
+    private final Queue<Accumulator> waiting = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger waitingCount = new AtomicInteger();
+
+    /* accumulators which are waiting or being sent */
+    private final Set<Accumulator> sending = Collections.newSetFromMap(new ConcurrentHashMap<Accumulator, Boolean>());
+
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong nextReport = new AtomicLong();
+
+    private volatile Semaphore inFlight;
+    private volatile boolean stopped = true;
+
+    @Override
+    public void sendEvent(final Event event) {
+        if (full()) {
+            reject(1);
+            return;
+        }
+
+        try {
+            append(routing.route(event), serializer.serialize(event));
+        } catch (final Exception e) {
+            log.error("Failed to send event", e);
+        }
+    }
+
+    @Override
+    public void sendMetric(final Metric metric) {
+        if (full()) {
+            reject(1);
+            return;
+        }
+
+        try {
+            append(routing.route(metric), serializer.serialize(metric));
+        } catch (final Exception e) {
+            log.error("Failed to send metric", e);
+        }
+    }
+
+    @Override
+    public AsyncFuture<Void> sendEvents(final Collection<Event> events) {
+        if (full())
+            return reject(events.size());
+
+        final Set<Accumulator> pending = Collections.newSetFromMap(new IdentityHashMap<Accumulator, Boolean>());
+
+        try {
+            for (final Event event : events)
+                pending.add(append(routing.route(event), serializer.serialize(event)));
+        } catch (final Exception e) {
+            return async.failed(e);
+        }
+
+        return futures(pending);
+    }
+
+    @Override
+    public AsyncFuture<Void> sendMetrics(final Collection<Metric> metrics) {
+        if (full())
+            return reject(metrics.size());
+
+        final Set<Accumulator> pending = Collections.newSetFromMap(new IdentityHashMap<Accumulator, Boolean>());
+
+        try {
+            for (final Metric metric : metrics)
+                pending.add(append(routing.route(metric), serializer.serialize(metric)));
+        } catch (final Exception e) {
+            return async.failed(e);
+        }
+
+        return futures(pending);
+    }
+
+    @Override
+    public AsyncFuture<Void> start() {
+        inFlight = new Semaphore(maxInFlight);
+        stopped = false;
+        return async.resolved(null);
+    }
+
+    @Override
+    public AsyncFuture<Void> stop() {
+        stopped = true;
+
+        for (final Accumulator a : accumulators.values()) {
+            if (close(a))
+                send(a);
+        }
+
+        final List<AsyncFuture<Void>> futures = new ArrayList<>();
+
+        // wait for every queued and in-flight send, regardless of whether it succeeds.
+        for (final Accumulator a : sending)
+            futures.add(settled(a.future));
+
+        if (rejected.get() > 0)
+            log.info("Stopping, {} message(s) rejected while too many batches were waiting", rejected.get());
+
+        return async.collectAndDiscard(futures).transform(new LazyTransform<Void, Void>() {
+            @Override
+            public AsyncFuture<Void> transform(Void result) throws Exception {
+                return async.call(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        producer.close();
+                        return null;
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public boolean isReady() {
+        return !full();
+    }
+
+    /**
+     * Number of messages rejected because too many accumulators were waiting to be sent.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    private boolean full() {
+        return stopped || waitingCount.get() >= maxWaiting;
+    }
+
+    private AsyncFuture<Void> reject(final int count) {
+        rejected.addAndGet(count);
+
+        final long now = System.currentTimeMillis();
+        final long next = nextReport.get();
+
+        if (now >= next && nextReport.compareAndSet(next, now + REPORT_INTERVAL)) {
+            log.warn("{} accumulator(s) waiting to be sent, rejected {} message(s) so far", waitingCount.get(),
+                    rejected.get());
+        }
+
+        return async.failed(new IllegalStateException("too many batches waiting to be sent"));
+    }
+
+    /**
+     * A future which is resolved when the given future completes in any way.
+     */
+    private AsyncFuture<Void> settled(final AsyncFuture<Void> future) {
+        final ResolvableFuture<Void> settled = async.future();
+
+        future.on(new FutureDone<Void>() {
+            @Override
+            public void failed(Throwable cause) throws Exception {
+                settled.resolve(null);
+            }
+
+            @Override
+            public void resolved(Void result) throws Exception {
+                settled.resolve(null);
+            }
+
+            @Override
+            public void cancelled() throws Exception {
+                settled.resolve(null);
+            }
+        });
+
+        return settled;
+    }
+
+    /**
+     * Add a message to the accumulator of its route, sending the accumulator if it is full.
+     *
+     * @return The accumulator that the message was added to.
+     */
+    private Accumulator append(final KafkaRoute route, final byte[] payload) {
+        final KeyedMessage<byte[], byte[]> message = new KeyedMessage<>(route.getTopic(), route.getKey(), payload);
+
+        while (true) {
+            final Accumulator a = accumulatorFor(route);
+
+            final boolean first;
+            final boolean full;
+            final Timeout linger;
+
+            synchronized (a) {
+                // accumulator was sent after we looked it up.
+                if (a.closed)
+                    continue;
+
+                first = a.messages.isEmpty();
+                a.messages.add(message);
+                a.bytes += payload.length;
+                full = a.messages.size() >= batchSize || a.bytes >= batchBytes;
+
+                if (full)
+                    a.closed = true;
+
+                linger = a.linger;
+            }
+
+            if (full) {
+                if (linger != null)
+                    linger.cancel();
+
+                accumulators.remove(route, a);
+                send(a);
+                return a;
+            }
+
+            if (first)
+                scheduleLinger(a);
+
+            return a;
+        }
+    }
+
+    private Accumulator accumulatorFor(final KafkaRoute route) {
+        final Accumulator a = accumulators.get(route);
+
+        if (a != null)
+            return a;
+
+        final Accumulator created = new Accumulator(route, async.<Void> future());
+        final Accumulator existing = accumulators.putIfAbsent(route, created);
+        return existing != null ? existing : created;
+    }
+
+    private void scheduleLinger(final Accumulator a) {
+        final Timeout timeout = timer.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                if (!close(a))
+                    return;
+
+                send(a);
+            }
+        }, linger, TimeUnit.MILLISECONDS);
+
+        synchronized (a) {
+            a.linger = timeout;
+        }
+    }
+
+    /**
+     * Close the given accumulator for further messages, removing it from the set of active accumulators.
+     *
+     * @return {@code true} if the accumulator was closed by this call, and should be sent by the caller.
+     */
+    private boolean close(final Accumulator a) {
+        synchronized (a) {
+            if (a.closed)
+                return false;
+
+            a.closed = true;
+        }
+
+        accumulators.remove(a.route, a);
+        return true;
+    }
+
+    /**
+     * Queue a closed accumulator to be sent as soon as a send slot is available.
+     *
+     * Accumulators closed by their linger timeout are queued even if {@code maxWaiting} is reached, so the queue is
+     * bounded by {@code maxWaiting} plus the number of open accumulators.
+     */
+    private void send(final Accumulator a) {
+        sending.add(a);
+        waitingCount.incrementAndGet();
+        waiting.add(a);
+        drain();
+    }
+
+    /**
+     * Send queued accumulators while there are send slots available.
+     *
+     * Accumulators are queued before taking a slot, and slots are released before draining, so a queued accumulator
+     * is always picked up either by the thread that queued it, or by the next send to complete.
+     */
+    private void drain() {
+        final Semaphore permits = inFlight;
+
+        while (!waiting.isEmpty()) {
+            if (!permits.tryAcquire())
+                return;
+
+            final Accumulator a = waiting.poll();
+
+            if (a == null) {
+                permits.release();
+                continue;
+            }
+
+            waitingCount.decrementAndGet();
+            sendAcquired(a, permits);
+        }
+    }
+
+    private void sendAcquired(final Accumulator a, final Semaphore permits) {
+        async.call(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                producer.send(a.messages);
+                return null;
+            }
+        }).on(new FutureDone<Void>() {
+            @Override
+            public void failed(Throwable cause) throws Exception {
+                sent(a, permits);
+                a.future.fail(cause);
+            }
+
+            @Override
+            public void resolved(Void result) throws Exception {
+                sent(a, permits);
+                a.future.resolve(null);
+            }
+
+            @Override
+            public void cancelled() throws Exception {
+                sent(a, permits);
+                a.future.cancel();
+            }
+        });
+    }
+
+    private void sent(final Accumulator a, final Semaphore permits) {
+        sending.remove(a);
+        permits.release();
+        drain();
+    }
+
+    private AsyncFuture<Void> futures(final Collection<Accumulator> pending) {
+        final List<AsyncFuture<Void>> futures = new ArrayList<>(pending.size());
+
+        for (final Accumulator a : pending)
+            futures.add(a.future);
+
+        return async.collectAndDiscard(futures);
+    }
+
+    private static final class Accumulator {
+        private final KafkaRoute route;
+        private final List<KeyedMessage<byte[], byte[]>> messages = new ArrayList<>();
+        private final ResolvableFuture<Void> future;
+
+        private long bytes = 0;
+        private boolean closed = false;
+        private Timeout linger;
+
+        private Accumulator(final KafkaRoute route, final ResolvableFuture<Void> future) {
+            this.route = route;
+            this.future = future;
+        }
+    }
+}
@@ -30,6 +30,7 @@ import com.google.inject.Key;
 import com.google.inject.Module;
 import com.google.inject.PrivateModule;
 import com.google.inject.Provides;
+import com.google.inject.Scopes;
 import com.google.inject.name.Names;
 import com.spotify.ffwd.output.BatchedPluginSink;
 import com.spotify.ffwd.output.FlushingPluginSink;
@@ -38,21 +39,84 @@ import com.spotify.ffwd.output.PluginSink;
 import com.spotify.ffwd.serializer.Serializer;
 
 public class KafkaOutputPlugin implements OutputPlugin {
+    private static final long DEFAULT_MAX_ROUTES = 100000;
+    private static final long DEFAULT_BATCH_BYTES = 1024 * 1024;
+    private static final long DEFAULT_LINGER = 100;
+    private static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    private static final int DEFAULT_MAX_WAITING = 64;
+    private static final int DEFAULT_MAX_PENDING = 10000;
+    private static final long DEFAULT_MAX_PENDING_BYTES = 64 * 1024 * 1024;
+    private static final KafkaPluginSink.Overflow DEFAULT_OVERFLOW = KafkaPluginSink.Overflow.SPILL;
+    private static final int DEFAULT_MAX_SPILL = 100000;
+    /* below the default message.max.bytes of the broker (1000012), leaving room for overhead */
+    private static final long DEFAULT_MAX_PAYLOAD_BYTES = 900 * 1024;
+
     private final KafkaRouter router;
     private final KafkaPartitioner partitioner;
     private final Map<String, String> properties;
     private final Long flushInterval;
     private final Serializer serializer;
+    private final long maxRoutes;
+    private final Integer batchSize;
+    private final long batchBytes;
+    private final long linger;
+    private final int maxInFlight;
+    private final int maxWaiting;
+    private final String compression;
+    private final int maxPending;
+    private final long maxPendingBytes;
+    private final KafkaPluginSink.Overflow overflow;
+    private final int maxSpill;
+    private final boolean batchPayload;
+    private final long maxPayloadBytes;
+    private final String id;
 
     @JsonCreator
     public KafkaOutputPlugin(@JsonProperty("producer") Map<String, String> properties,
             @JsonProperty("flushInterval") Long flushInterval, @JsonProperty("router") KafkaRouter router,
-            @JsonProperty("partitioner") KafkaPartitioner partitioner, @JsonProperty("serializer") Serializer serializer) {
+            @JsonProperty("partitioner") KafkaPartitioner partitioner, @JsonProperty("serializer") Serializer serializer,
+            @JsonProperty("maxRoutes") Long maxRoutes, @JsonProperty("batchSize") Integer batchSize,
+            @JsonProperty("batchBytes") Long batchBytes, @JsonProperty("linger") Long linger,
+            @JsonProperty("maxInFlight") Integer maxInFlight, @JsonProperty("compression") String compression,
+            @JsonProperty("maxPending") Integer maxPending, @JsonProperty("maxPendingBytes") Long maxPendingBytes,
+            @JsonProperty("overflow") String overflow, @JsonProperty("maxSpill") Integer maxSpill,
+            @JsonProperty("batchPayload") Boolean batchPayload, @JsonProperty("maxPayloadBytes") Long maxPayloadBytes,
+            @JsonProperty("maxWaiting") Integer maxWaiting, @JsonProperty("id") String id) {
+        this.id = id;
         this.router = Optional.fromNullable(router).or(KafkaRouter.Attribute.supplier());
         this.partitioner = Optional.fromNullable(partitioner).or(KafkaPartitioner.Host.supplier());
         this.flushInterval = Optional.fromNullable(flushInterval).orNull();
         this.properties = Optional.fromNullable(properties).or(new HashMap<String, String>());
         this.serializer = Optional.fromNullable(serializer).orNull();
+        this.maxRoutes = Optional.fromNullable(maxRoutes).or(DEFAULT_MAX_ROUTES);
+        this.batchSize = Optional.fromNullable(batchSize).orNull();
+        this.batchBytes = Optional.fromNullable(batchBytes).or(DEFAULT_BATCH_BYTES);
+        this.linger = Optional.fromNullable(linger).or(DEFAULT_LINGER);
+        this.maxInFlight = Optional.fromNullable(maxInFlight).or(DEFAULT_MAX_IN_FLIGHT);
+        this.maxWaiting = Optional.fromNullable(maxWaiting).or(DEFAULT_MAX_WAITING);
+        this.compression = Optional.fromNullable(compression).orNull();
+        this.maxPending = Optional.fromNullable(maxPending).or(DEFAULT_MAX_PENDING);
+        this.maxPendingBytes = Optional.fromNullable(maxPendingBytes).or(DEFAULT_MAX_PENDING_BYTES);
+        this.overflow = parseOverflow(overflow);
+        this.maxSpill = Optional.fromNullable(maxSpill).or(DEFAULT_MAX_SPILL);
+        this.batchPayload = Optional.fromNullable(batchPayload).or(false);
+        this.maxPayloadBytes = Optional.fromNullable(maxPayloadBytes).or(DEFAULT_MAX_PAYLOAD_BYTES);
+    }
+
+    @Override
+    public String id() {
+        return id;
+    }
+
+    private KafkaPluginSink.Overflow parseOverflow(String overflow) {
+        if (overflow == null)
+            return DEFAULT_OVERFLOW;
+
+        try {
+            return KafkaPluginSink.Overflow.valueOf(overflow.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unsupported overflow policy: " + overflow, e);
+        }
     }
 
     @Override
@@ -62,6 +126,10 @@ public class KafkaOutputPlugin implements OutputPlugin {
             public Producer<byte[], byte[]> producer() {
                 final Properties props = new Properties();
                 props.putAll(properties);
+
+                if (compression != null)
+                    props.put("compression.codec", compression);
+
                 final ProducerConfig config = new ProducerConfig(props);
                 return new Producer<byte[], byte[]>(config);
             }
@@ -70,6 +138,7 @@ public class KafkaOutputPlugin implements OutputPlugin {
             protected void configure() {
                 bind(KafkaRouter.class).toInstance(router);
                 bind(KafkaPartitioner.class).toInstance(partitioner);
+                bind(KafkaRoutingTable.class).toInstance(new KafkaRoutingTable(router, partitioner, maxRoutes));
 
                 if (serializer == null) {
                     // bind to default implementation, provided by core.
@@ -78,11 +147,31 @@ public class KafkaOutputPlugin implements OutputPlugin {
                     bind(Serializer.class).toInstance(serializer);
                 }
 
+                final Class<? extends BatchedPluginSink> sink;
+
+                if (batchSize != null) {
+                    // accumulate messages per partition.
+                    bindConstant().annotatedWith(Names.named("batchSize")).to(batchSize);
+                    bindConstant().annotatedWith(Names.named("batchBytes")).to(batchBytes);
+                    bindConstant().annotatedWith(Names.named("linger")).to(linger);
+                    bindConstant().annotatedWith(Names.named("maxInFlight")).to(maxInFlight);
+                    bindConstant().annotatedWith(Names.named("maxWaiting")).to(maxWaiting);
+                    sink = KafkaAccumulatingPluginSink.class;
+                } else {
+                    bindConstant().annotatedWith(Names.named("maxPending")).to(maxPending);
+                    bindConstant().annotatedWith(Names.named("maxPendingBytes")).to(maxPendingBytes);
+                    bindConstant().annotatedWith(Names.named("overflow")).to(overflow);
+                    bindConstant().annotatedWith(Names.named("maxSpill")).to(maxSpill);
+                    bindConstant().annotatedWith(Names.named("batchPayload")).to(batchPayload);
+                    bindConstant().annotatedWith(Names.named("maxPayloadBytes")).to(maxPayloadBytes);
+                    sink = KafkaPluginSink.class;
+                }
+
                 if (flushInterval != null) {
-                    bind(BatchedPluginSink.class).to(KafkaPluginSink.class);
+                    bind(BatchedPluginSink.class).to(sink);
                     bind(key).toInstance(new FlushingPluginSink(flushInterval));
                 } else {
-                    bind(key).to(KafkaPluginSink.class);
+                    bind(key).to(sink).in(Scopes.SINGLETON);
                 }
 
                 expose(key);
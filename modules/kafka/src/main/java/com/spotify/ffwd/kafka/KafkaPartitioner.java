@@ -16,6 +16,8 @@
  **/
 package com.spotify.ffwd.kafka;
 
+import java.nio.charset.Charset;
+
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonSubTypes;
@@ -24,31 +26,56 @@ import com.google.common.base.Optional;
 import com.google.common.base.Supplier;
 import com.spotify.ffwd.model.Event;
 import com.spotify.ffwd.model.Metric;
+import com.spotify.ffwd.util.Hashing;
 
+/**
+ * Decides the partition key of messages.
+ *
+ * Keys are encoded by {@link KafkaRoutingTable} once for every value returned by {@code select}, so selecting has to be
+ * cheap, and the key must only depend on the selected value.
+ */
 @JsonTypeInfo(use = JsonTypeInfo.Id.NAME, include = JsonTypeInfo.As.PROPERTY, property = "type")
 @JsonSubTypes({ @JsonSubTypes.Type(value = KafkaPartitioner.Attribute.class, name = "attribute"),
     @JsonSubTypes.Type(value = KafkaPartitioner.Hashed.class, name = "static"),
     @JsonSubTypes.Type(value = KafkaPartitioner.Host.class, name = "host")})
 public interface KafkaPartitioner {
-    public String partition(final Event event);
+    public static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Select the value that decides the partition key of the given event.
+     */
+    public String select(final Event event);
+
+    /**
+     * Select the value that decides the partition key of the given metric.
+     */
+    public String select(final Metric metric);
+
+    /**
+     * Encode the partition key for a selected value.
+     */
+    public byte[] key(final String selected);
 
-    public String partition(final Metric metric);
-    
     public static class Host implements KafkaPartitioner {
         @JsonCreator
         public Host() {
         }
 
         @Override
-        public String partition(final Event event) {
+        public String select(final Event event) {
             return event.getHost();
         }
 
         @Override
-        public String partition(final Metric metric) {
+        public String select(final Metric metric) {
             return metric.getHost();
         }
 
+        @Override
+        public byte[] key(final String selected) {
+            return selected.getBytes(UTF8);
+        }
+
         public static Supplier<KafkaPartitioner> supplier() {
             return new Supplier<KafkaPartitioner>() {
                 @Override
@@ -70,7 +97,7 @@ public interface KafkaPartitioner {
         }
 
         @Override
-        public String partition(final Event event) {
+        public String select(final Event event) {
             final String attr = event.getAttributes().get(attribute);
 
             if (attr != null)
@@ -80,7 +107,7 @@ public interface KafkaPartitioner {
         }
 
         @Override
-        public String partition(final Metric metric) {
+        public String select(final Metric metric) {
             final String attr = metric.getAttributes().get(attribute);
 
             if (attr != null)
@@ -89,6 +116,11 @@ public interface KafkaPartitioner {
             throw new IllegalArgumentException(String.format("missing attribute '%s' for metric %s", attribute, metric));
         }
 
+        @Override
+        public byte[] key(final String selected) {
+            return selected.getBytes(UTF8);
+        }
+
         public static Supplier<KafkaPartitioner> supplier() {
             return new Supplier<KafkaPartitioner>() {
                 @Override
@@ -99,19 +131,51 @@ public interface KafkaPartitioner {
         }
     }
 
+    /**
+     * Partitions by the series (key and attributes) of a message.
+     *
+     * Every series has its own key, so keys are not cached but encoded straight from a single hash of the series by
+     * {@link #key(Event)} and {@link #key(Metric)}.
+     */
     public static class Hashed implements KafkaPartitioner {
+        private static final byte[] HEX = "0123456789abcdef".getBytes(UTF8);
+
         @JsonCreator
         public Hashed() {
         }
 
         @Override
-        public String partition(final Event event) {
-            return Integer.toHexString(event.hashCode());
+        public String select(final Event event) {
+            return new String(key(event), UTF8);
+        }
+
+        @Override
+        public String select(final Metric metric) {
+            return new String(key(metric), UTF8);
         }
 
         @Override
-        public String partition(final Metric metric) {
-            return Integer.toHexString(metric.hashCode());
+        public byte[] key(final String selected) {
+            return selected.getBytes(UTF8);
+        }
+
+        public byte[] key(final Event event) {
+            return hex(Hashing.hash(event.getKey(), event.getAttributes()));
+        }
+
+        public byte[] key(final Metric metric) {
+            return hex(Hashing.hash(metric.getKey(), metric.getAttributes()));
+        }
+
+        private static byte[] hex(long hash) {
+            final byte[] key = new byte[16];
+
+            for (int i = key.length - 1; i >= 0; i--) {
+                key[i] = HEX[(int) (hash & 0xf)];
+                hash >>>= 4;
+            }
+
+            return key;
         }
 
         public static Supplier<KafkaPartitioner> supplier() {
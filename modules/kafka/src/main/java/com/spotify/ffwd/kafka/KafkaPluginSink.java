@@ -16,16 +16,25 @@
  **/
 package com.spotify.ffwd.kafka;
 
-import java.nio.charset.Charset;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
 
 import kafka.javaapi.producer.Producer;
 import kafka.producer.KeyedMessage;
+import lombok.extern.slf4j.Slf4j;
 
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
 import com.spotify.ffwd.model.Event;
 import com.spotify.ffwd.model.Metric;
 import com.spotify.ffwd.output.BatchedPluginSink;
@@ -33,9 +42,41 @@ import com.spotify.ffwd.serializer.Serializer;
 
 import eu.toolchain.async.AsyncFramework;
 import eu.toolchain.async.AsyncFuture;
+import eu.toolchain.async.FutureDone;
 
+/**
+ * Kafka sink sending each message, or each batch of messages, with a single producer call.
+ *
+ * Messages sent one at a time are limited to {@code maxPending} messages and {@code maxPendingBytes} bytes of payload
+ * waiting to be sent. When saturated, the configured {@link Overflow} policy decides what happens to additional
+ * messages, so the sink stays ready until it is stopped and every message it does not send is counted. Saturation is
+ * logged at most once every {@code REPORT_INTERVAL}, together with the number of blocked, dropped and spilled
+ * messages. Spilled messages are still sent when the sink is stopped.
+ *
+ * If {@code batchPayload} is enabled, batches are sent as one message per topic and partition key, containing all
+ * messages for that route serialized as a single batch payload by the configured serializer. Payloads larger than
+ * {@code maxPayloadBytes} are split into several messages, so that they are accepted by the broker.
+ */
+@Slf4j
 public class KafkaPluginSink implements BatchedPluginSink {
-    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long REPORT_INTERVAL = 10000;
+
+    public static enum Overflow {
+        /**
+         * Block the sending thread until there is room. This blocks the I/O threads of inputs sending to the sink, and
+         * should only be used when those can be held up.
+         */
+        BLOCK,
+        /**
+         * Drop the message.
+         */
+        DROP,
+        /**
+         * Put the message on a bounded spill queue, which is drained as pending sends complete. Messages are dropped
+         * when the spill queue is full.
+         */
+        SPILL
+    }
 
     @Inject
     private AsyncFramework async;
@@ -44,34 +85,98 @@ public class KafkaPluginSink implements BatchedPluginSink {
     private Producer<byte[], byte[]> producer;
 
     @Inject
-    private KafkaRouter router;
+    private KafkaRoutingTable routing;
 
     @Inject
-    private KafkaPartitioner partitioner;
+    private Serializer serializer;
 
     @Inject
-    private Serializer serializer;
+    @Named("maxPending")
+    private int maxPending;
+
+    @Inject
+    @Named("maxPendingBytes")
+    private long maxPendingBytes;
+
+    @Inject
+    @Named("overflow")
+    private Overflow overflow;
+
+    @Inject
+    @Named("maxSpill")
+    private int maxSpill;
+
+    @Inject
+    @Named("batchPayload")
+    private boolean batchPayload;
+
+    @Inject
+    @Named("maxPayloadBytes")
+    private long maxPayloadBytes;
+
+    private final Batch<Metric> METRICS = new Batch<Metric>() {
+        @Override
+        public KafkaRoute route(final Metric metric) {
+            return routing.route(metric);
+        }
+
+        @Override
+        public void serialize(final List<Metric> metrics, final ByteBuf buffer) throws Exception {
+            serializer.serializeMetrics(metrics, buffer);
+        }
+    };
+
+    private final Batch<Event> EVENTS = new Batch<Event>() {
+        @Override
+        public KafkaRoute route(final Event event) {
+            return routing.route(event);
+        }
+
+        @Override
+        public void serialize(final List<Event> events, final ByteBuf buffer) throws Exception {
+            serializer.serializeEvents(events, buffer);
+        }
+    };
+
+    private final Object $lock = new Object();
+
+    // guarded by $lock.
+    private int pending = 0;
+    private long pendingBytes = 0;
+    private final Deque<KeyedMessage<byte[], byte[]>> spill = new ArrayDeque<>();
+    private boolean stopped = false;
+    private long nextReport = 0;
+
+    private final AtomicLong blocked = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
 
     @Override
     public void sendEvent(final Event event) {
-        async.call(new Callable<Void>() {
-            @Override
-            public Void call() throws Exception {
-                producer.send(messageFor(event));
-                return null;
-            }
-        });
+        final KeyedMessage<byte[], byte[]> message;
+
+        try {
+            message = messageFor(event);
+        } catch (final Exception e) {
+            log.error("Failed to serialize event", e);
+            return;
+        }
+
+        submit(message);
     }
 
     @Override
     public void sendMetric(final Metric metric) {
-        async.call(new Callable<Void>() {
-            @Override
-            public Void call() throws Exception {
-                producer.send(messageFor(metric));
-                return null;
-            }
-        });
+        final KeyedMessage<byte[], byte[]> message;
+
+        try {
+            message = messageFor(metric);
+        } catch (final Exception e) {
+            log.error("Failed to serialize metric", e);
+            return;
+        }
+
+        submit(message);
     }
 
     @Override
@@ -103,10 +208,28 @@ public class KafkaPluginSink implements BatchedPluginSink {
 
     @Override
     public AsyncFuture<Void> stop() {
+        log.info("Stopping, {} message(s) blocked, {} dropped and {} spilled while saturated", blocked.get(),
+                dropped.get(), spilled.get());
+
+        final List<KeyedMessage<byte[], byte[]>> remaining;
+
+        synchronized ($lock) {
+            stopped = true;
+            remaining = new ArrayList<>(spill);
+            spill.clear();
+            $lock.notifyAll();
+        }
+
         return async.call(new Callable<Void>() {
             @Override
             public Void call() throws Exception {
-                producer.close();
+                try {
+                    if (!remaining.isEmpty())
+                        producer.send(remaining);
+                } finally {
+                    producer.close();
+                }
+
                 return null;
             }
         });
@@ -114,12 +237,162 @@ public class KafkaPluginSink implements BatchedPluginSink {
 
     @Override
     public boolean isReady() {
-        // TODO: how to check that producer is ready?
-        return true;
+        synchronized ($lock) {
+            return !stopped;
+        }
+    }
+
+    /**
+     * Number of times a thread was blocked because the sink was saturated.
+     */
+    public long getBlocked() {
+        return blocked.get();
+    }
+
+    /**
+     * Number of messages dropped because the sink was saturated.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Number of messages put on the spill queue because the sink was saturated.
+     */
+    public long getSpilled() {
+        return spilled.get();
     }
 
-    private <T> List<KeyedMessage<byte[], byte[]>> messagesForMetrics(final Collection<Metric> metrics)
+    /**
+     * Send a single message, applying the overflow policy if there are too many pending messages.
+     */
+    private void submit(final KeyedMessage<byte[], byte[]> message) {
+        synchronized ($lock) {
+            if (stopped) {
+                dropped.incrementAndGet();
+                return;
+            }
+
+            if (saturated()) {
+                report();
+
+                switch (overflow) {
+                case DROP:
+                    dropped.incrementAndGet();
+                    return;
+                case SPILL:
+                    if (spill.size() >= maxSpill) {
+                        dropped.incrementAndGet();
+                        return;
+                    }
+
+                    spill.add(message);
+                    spilled.incrementAndGet();
+                    return;
+                default:
+                    blocked.incrementAndGet();
+
+                    try {
+                        while (saturated() && !stopped)
+                            $lock.wait();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        dropped.incrementAndGet();
+                        return;
+                    }
+
+                    if (stopped) {
+                        dropped.incrementAndGet();
+                        return;
+                    }
+
+                    break;
+                }
+            }
+
+            pending += 1;
+            pendingBytes += message.message().length;
+        }
+
+        dispatch(message);
+    }
+
+    private void dispatch(final KeyedMessage<byte[], byte[]> message) {
+        async.call(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                producer.send(message);
+                return null;
+            }
+        }).on(new FutureDone<Void>() {
+            @Override
+            public void failed(Throwable cause) throws Exception {
+                log.error("Failed to send message", cause);
+                complete(message);
+            }
+
+            @Override
+            public void resolved(Void result) throws Exception {
+                complete(message);
+            }
+
+            @Override
+            public void cancelled() throws Exception {
+                complete(message);
+            }
+        });
+    }
+
+    /**
+     * Return the credits of a completed message, and dispatch as many spilled messages as there is room for.
+     */
+    private void complete(final KeyedMessage<byte[], byte[]> message) {
+        final List<KeyedMessage<byte[], byte[]>> next = new ArrayList<>();
+
+        synchronized ($lock) {
+            pending -= 1;
+            pendingBytes -= message.message().length;
+
+            while (!spill.isEmpty() && !saturated()) {
+                final KeyedMessage<byte[], byte[]> m = spill.poll();
+                pending += 1;
+                pendingBytes += m.message().length;
+                next.add(m);
+            }
+
+            $lock.notifyAll();
+        }
+
+        for (final KeyedMessage<byte[], byte[]> m : next)
+            dispatch(m);
+    }
+
+    /**
+     * Log that the sink is saturated, at most once every {@code REPORT_INTERVAL}. Must hold {@code $lock}.
+     */
+    private void report() {
+        final long now = System.currentTimeMillis();
+
+        if (now < nextReport)
+            return;
+
+        nextReport = now + REPORT_INTERVAL;
+        log.warn("Saturated with {} pending message(s) ({} bytes), {} blocked, {} dropped and {} spilled so far",
+                pending, pendingBytes, blocked.get(), dropped.get(), spilled.get());
+    }
+
+    /**
+     * A single message is always allowed, even if it is larger than the byte limit.
+     */
+    private boolean saturated() {
+        return pending > 0 && (pending >= maxPending || pendingBytes >= maxPendingBytes);
+    }
+
+    private List<KeyedMessage<byte[], byte[]>> messagesForMetrics(final Collection<Metric> metrics)
             throws Exception {
+        if (batchPayload)
+            return batchedMessages(metrics, METRICS);
+
         final List<KeyedMessage<byte[], byte[]>> messages = new ArrayList<>(metrics.size());
 
         for (final Metric metric : metrics)
@@ -128,7 +401,10 @@ public class KafkaPluginSink implements BatchedPluginSink {
         return messages;
     }
 
-    private <T> List<KeyedMessage<byte[], byte[]>> messagesForEvents(final Collection<Event> events) throws Exception {
+    private List<KeyedMessage<byte[], byte[]>> messagesForEvents(final Collection<Event> events) throws Exception {
+        if (batchPayload)
+            return batchedMessages(events, EVENTS);
+
         final List<KeyedMessage<byte[], byte[]>> messages = new ArrayList<>(events.size());
 
         for (final Event event : events)
@@ -137,17 +413,77 @@ public class KafkaPluginSink implements BatchedPluginSink {
         return messages;
     }
 
+    /**
+     * Build one message per route, containing all messages for that route as a single batch payload.
+     */
+    private <T> List<KeyedMessage<byte[], byte[]>> batchedMessages(final Collection<T> messages, final Batch<T> batch)
+            throws Exception {
+        final Map<KafkaRoute, List<T>> routes = new LinkedHashMap<>();
+
+        for (final T message : messages) {
+            final KafkaRoute route = batch.route(message);
+            List<T> group = routes.get(route);
+
+            if (group == null) {
+                group = new ArrayList<>();
+                routes.put(route, group);
+            }
+
+            group.add(message);
+        }
+
+        final List<KeyedMessage<byte[], byte[]>> result = new ArrayList<>(routes.size());
+        final ByteBuf buffer = Unpooled.buffer();
+
+        for (final Map.Entry<KafkaRoute, List<T>> e : routes.entrySet())
+            addPayloads(result, e.getKey(), e.getValue(), batch, buffer);
+
+        return result;
+    }
+
+    /**
+     * Serialize a group of messages as a single payload, splitting the group in halves while its payload is larger
+     * than {@code maxPayloadBytes}. A single message is always sent as-is.
+     */
+    private <T> void addPayloads(final List<KeyedMessage<byte[], byte[]>> result, final KafkaRoute route,
+            final List<T> group, final Batch<T> batch, final ByteBuf buffer) throws Exception {
+        buffer.clear();
+        batch.serialize(group, buffer);
+
+        if (buffer.readableBytes() <= maxPayloadBytes || group.size() == 1) {
+            result.add(new KeyedMessage<>(route.getTopic(), route.getKey(), toByteArray(buffer)));
+            return;
+        }
+
+        final int half = group.size() / 2;
+        addPayloads(result, route, group.subList(0, half), batch, buffer);
+        addPayloads(result, route, group.subList(half, group.size()), batch, buffer);
+    }
+
+    private static byte[] toByteArray(final ByteBuf buffer) {
+        final byte[] bytes = new byte[buffer.readableBytes()];
+        buffer.readBytes(bytes);
+        return bytes;
+    }
+
     private KeyedMessage<byte[], byte[]> messageFor(final Metric metric) throws Exception {
-        final String topic = router.route(metric);
-        final String partition = partitioner.partition(metric);
+        final KafkaRoute route = routing.route(metric);
         final byte[] payload = serializer.serialize(metric);
-        return new KeyedMessage<>(topic, partition.getBytes(), payload);
+        return new KeyedMessage<>(route.getTopic(), route.getKey(), payload);
     }
 
     private KeyedMessage<byte[], byte[]> messageFor(final Event event) throws Exception {
-        final String topic = router.route(event);
-        final String partition = partitioner.partition(event);
+        final KafkaRoute route = routing.route(event);
         final byte[] payload = serializer.serialize(event);
-        return new KeyedMessage<byte[], byte[]>(topic, partition.getBytes(UTF8), payload);
+        return new KeyedMessage<>(route.getTopic(), route.getKey(), payload);
+    }
+
+    /**
+     * How to route and serialize a batch of a single type of message.
+     */
+    private interface Batch<T> {
+        KafkaRoute route(T message);
+
+        void serialize(List<T> messages, ByteBuf buffer) throws Exception;
     }
-}
\ No newline at end of file
+}
@@ -25,13 +25,29 @@ import com.google.common.base.Supplier;
 import com.spotify.ffwd.model.Event;
 import com.spotify.ffwd.model.Metric;
 
+/**
+ * Decides the topic of messages.
+ *
+ * Topics are built by {@link KafkaRoutingTable} once for every value returned by {@code select}, so selecting has to
+ * be cheap, and the topic must only depend on the selected value.
+ */
 @JsonTypeInfo(use = JsonTypeInfo.Id.NAME, include = JsonTypeInfo.As.PROPERTY, property = "type")
 @JsonSubTypes({ @JsonSubTypes.Type(value = KafkaRouter.Attribute.class, name = "attribute"),
         @JsonSubTypes.Type(value = KafkaRouter.Static.class, name = "static") })
 public interface KafkaRouter {
-    public String route(final Event event);
+    /**
+     * Select the value that decides the topic of the given event, or {@code null}.
+     */
+    public String select(final Event event);
+
+    /**
+     * Select the value that decides the topic of the given metric, or {@code null}.
+     */
+    public String select(final Metric metric);
+
+    public String eventTopic(final String selected);
 
-    public String route(final Metric metric);
+    public String metricTopic(final String selected);
 
     public static class Attribute implements KafkaRouter {
         private static final String DEFAULT = "default";
@@ -52,23 +68,23 @@ public interface KafkaRouter {
         }
 
         @Override
-        public String route(final Event event) {
-            final String attr = event.getAttributes().get(attribute);
-
-            if (attr != null)
-                return String.format(events, attr);
-
-            return String.format(events, DEFAULT);
+        public String select(final Event event) {
+            return event.getAttributes().get(attribute);
         }
 
         @Override
-        public String route(final Metric metric) {
-            final String attr = metric.getAttributes().get(attribute);
+        public String select(final Metric metric) {
+            return metric.getAttributes().get(attribute);
+        }
 
-            if (attr != null)
-                return String.format(metrics, attr);
+        @Override
+        public String eventTopic(final String selected) {
+            return String.format(events, Optional.fromNullable(selected).or(DEFAULT));
+        }
 
-            return String.format(metrics, DEFAULT);
+        @Override
+        public String metricTopic(final String selected) {
+            return String.format(metrics, Optional.fromNullable(selected).or(DEFAULT));
         }
 
         public static Supplier<KafkaRouter> supplier() {
@@ -95,12 +111,22 @@ public interface KafkaRouter {
         }
 
         @Override
-        public String route(final Event event) {
+        public String select(final Event event) {
+            return null;
+        }
+
+        @Override
+        public String select(final Metric metric) {
+            return null;
+        }
+
+        @Override
+        public String eventTopic(final String selected) {
             return events;
         }
 
         @Override
-        public String route(final Metric metric) {
+        public String metricTopic(final String selected) {
             return metrics;
         }
 
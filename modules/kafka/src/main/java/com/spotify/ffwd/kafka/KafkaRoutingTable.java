@@ -0,0 +1,90 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.kafka;
+
+import java.util.concurrent.ConcurrentMap;
+
+import lombok.Data;
+
+import com.google.common.cache.CacheBuilder;
+import com.spotify.ffwd.model.Event;
+import com.spotify.ffwd.model.Metric;
+
+/**
+ * Resolves the topic and partition key of messages in a single lookup.
+ *
+ * The router and the partitioner each select a value from a message (like an attribute), and routes are cached by the
+ * pair of selected values, so the topic is only formatted and the key only encoded the first time a pair is seen. The
+ * number of cached routes is bounded.
+ *
+ * The hashed partitioner gives every series its own key, which would only churn the cache. Its key is encoded from a
+ * single hash of the series instead, and only the topic is cached.
+ */
+public class KafkaRoutingTable {
+    private final KafkaRouter router;
+    private final KafkaPartitioner partitioner;
+    private final KafkaPartitioner.Hashed hashed;
+
+    private final ConcurrentMap<RouteKey, KafkaRoute> eventRoutes;
+    private final ConcurrentMap<RouteKey, KafkaRoute> metricRoutes;
+
+    public KafkaRoutingTable(final KafkaRouter router, final KafkaPartitioner partitioner, final long maxRoutes) {
+        this.router = router;
+        this.partitioner = partitioner;
+        this.hashed = partitioner instanceof KafkaPartitioner.Hashed ? (KafkaPartitioner.Hashed) partitioner : null;
+        this.eventRoutes = CacheBuilder.newBuilder().maximumSize(maxRoutes).<RouteKey, KafkaRoute> build().asMap();
+        this.metricRoutes = CacheBuilder.newBuilder().maximumSize(maxRoutes).<RouteKey, KafkaRoute> build().asMap();
+    }
+
+    public KafkaRoute route(final Event event) {
+        final String topic = router.select(event);
+
+        if (hashed != null)
+            return new KafkaRoute(route(eventRoutes, topic, null, true).getTopic(), hashed.key(event));
+
+        return route(eventRoutes, topic, partitioner.select(event), true);
+    }
+
+    public KafkaRoute route(final Metric metric) {
+        final String topic = router.select(metric);
+
+        if (hashed != null)
+            return new KafkaRoute(route(metricRoutes, topic, null, false).getTopic(), hashed.key(metric));
+
+        return route(metricRoutes, topic, partitioner.select(metric), false);
+    }
+
+    private KafkaRoute route(final ConcurrentMap<RouteKey, KafkaRoute> routes, final String topic,
+            final String partition, final boolean event) {
+        final RouteKey key = new RouteKey(topic, partition);
+        final KafkaRoute route = routes.get(key);
+
+        if (route != null)
+            return route;
+
+        final String t = event ? router.eventTopic(topic) : router.metricTopic(topic);
+        final KafkaRoute created = new KafkaRoute(t, partition != null ? partitioner.key(partition) : null);
+        final KafkaRoute existing = routes.putIfAbsent(key, created);
+        return existing != null ? existing : created;
+    }
+
+    @Data
+    private static final class RouteKey {
+        private final String topic;
+        private final String partition;
+    }
+}
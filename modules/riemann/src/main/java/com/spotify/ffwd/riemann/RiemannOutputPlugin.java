@@ -16,6 +16,9 @@
  **/
 package com.spotify.ffwd.riemann;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import lombok.extern.slf4j.Slf4j;
 
 import org.slf4j.Logger;
@@ -27,43 +30,98 @@ import com.google.inject.Key;
 import com.google.inject.Module;
 import com.google.inject.PrivateModule;
 import com.google.inject.Scopes;
+import com.google.inject.TypeLiteral;
+import com.google.inject.name.Names;
 import com.spotify.ffwd.output.BatchedPluginSink;
 import com.spotify.ffwd.output.FlushingPluginSink;
 import com.spotify.ffwd.output.OutputPlugin;
 import com.spotify.ffwd.output.PluginSink;
 import com.spotify.ffwd.protocol.Protocol;
 import com.spotify.ffwd.protocol.ProtocolClient;
+import com.spotify.ffwd.protocol.ProtocolClients;
 import com.spotify.ffwd.protocol.ProtocolFactory;
 import com.spotify.ffwd.protocol.ProtocolPluginSink;
 import com.spotify.ffwd.protocol.ProtocolType;
 import com.spotify.ffwd.protocol.RetryPolicy;
+import com.spotify.ffwd.protocol.ShardedProtocolPluginSink;
 
 @Slf4j
 public class RiemannOutputPlugin implements OutputPlugin {
     private static final ProtocolType DEFAULT_PROTOCOL = ProtocolType.TCP;
     private static final int DEFAULT_PORT = 5555;
     private static final long DEFAULT_FLUSH_INTERVAL = 0; // TimeUnit.MILLISECONDS.convert(10, TimeUnit.SECONDS);
+    private static final int DEFAULT_VIRTUAL_NODES = 160;
+    private static final int DEFAULT_WINDOW = 1000;
+    private static final int DEFAULT_BACKLOG = 10000;
+    // same as the default max-size of the riemann udp server.
+    private static final int DEFAULT_MAX_DATAGRAM_SIZE = 16384;
+    private static final int DEFAULT_MAX_RESENDS = ProtocolClients.DEFAULT_MAX_RESENDS;
 
+    private final String id;
     private final Long flushInterval;
     private final Protocol protocol;
+    private final List<Protocol> shards;
+    private final int virtualNodes;
+    private final int window;
+    private final int backlog;
+    private final int maxDatagramSize;
     private final Class<? extends ProtocolClient> protocolClient;
     private final RetryPolicy retry;
+    private final int maxResends;
 
     @JsonCreator
-    public RiemannOutputPlugin(@JsonProperty("flushInterval") Long flushInterval,
-            @JsonProperty("protocol") ProtocolFactory protocol, @JsonProperty("retry") RetryPolicy retry) {
+    public RiemannOutputPlugin(@JsonProperty("id") String id, @JsonProperty("flushInterval") Long flushInterval,
+            @JsonProperty("protocol") ProtocolFactory protocol, @JsonProperty("shards") List<ProtocolFactory> shards,
+            @JsonProperty("virtualNodes") Integer virtualNodes, @JsonProperty("window") Integer window,
+            @JsonProperty("backlog") Integer backlog, @JsonProperty("maxDatagramSize") Integer maxDatagramSize,
+            @JsonProperty("retry") RetryPolicy retry, @JsonProperty("maxResends") Integer maxResends) {
+        this.id = id;
         this.flushInterval = Optional.fromNullable(flushInterval).or(DEFAULT_FLUSH_INTERVAL);
         this.protocol = Optional.fromNullable(protocol).or(ProtocolFactory.defaultFor())
                 .protocol(DEFAULT_PROTOCOL, DEFAULT_PORT);
+        this.shards = parseShards(shards);
+        this.virtualNodes = Optional.fromNullable(virtualNodes).or(DEFAULT_VIRTUAL_NODES);
+        this.window = Optional.fromNullable(window).or(DEFAULT_WINDOW);
+        this.backlog = Optional.fromNullable(backlog).or(DEFAULT_BACKLOG);
+        this.maxDatagramSize = Optional.fromNullable(maxDatagramSize).or(DEFAULT_MAX_DATAGRAM_SIZE);
         this.protocolClient = parseProtocolClient();
         this.retry = Optional.fromNullable(retry).or(new RetryPolicy.Exponential());
+        this.maxResends = Optional.fromNullable(maxResends).or(DEFAULT_MAX_RESENDS);
+    }
+
+    @Override
+    public String id() {
+        return id;
+    }
+
+    private List<Protocol> parseShards(List<ProtocolFactory> shards) {
+        if (shards == null || shards.isEmpty())
+            return null;
+
+        final List<Protocol> protocols = new ArrayList<>();
+
+        for (final ProtocolFactory f : shards) {
+            final Protocol p = f.protocol(DEFAULT_PROTOCOL, DEFAULT_PORT);
+
+            if (!protocols.isEmpty() && p.getType() != protocols.get(0).getType())
+                throw new IllegalArgumentException("All shards must use the same protocol type: " + shards);
+
+            protocols.add(p);
+        }
+
+        return protocols;
     }
 
     private Class<? extends ProtocolClient> parseProtocolClient() {
-        if (protocol.getType() == ProtocolType.TCP)
+        final ProtocolType type = shards != null ? shards.get(0).getType() : protocol.getType();
+
+        if (type == ProtocolType.TCP)
             return RiemannTCPProtocolClient.class;
 
-        throw new IllegalArgumentException("Protocol not supported: " + protocol.getType());
+        if (type == ProtocolType.UDP)
+            return RiemannUDPProtocolClient.class;
+
+        throw new IllegalArgumentException("Protocol not supported: " + type);
     }
 
     @Override
@@ -76,12 +134,27 @@ public class RiemannOutputPlugin implements OutputPlugin {
                 bind(ProtocolClient.class).to(protocolClient).in(Scopes.SINGLETON);
                 bind(RetryPolicy.class).toInstance(retry);
                 bind(Logger.class).toInstance(log);
+                bindConstant().annotatedWith(Names.named("window")).to(window);
+                bindConstant().annotatedWith(Names.named("backlog")).to(backlog);
+                bindConstant().annotatedWith(Names.named("maxDatagramSize")).to(maxDatagramSize);
+                bindConstant().annotatedWith(Names.named("maxResends")).to(maxResends);
+
+                final Class<? extends BatchedPluginSink> sink;
+
+                if (shards != null) {
+                    bind(new TypeLiteral<List<Protocol>>() {
+                    }).toInstance(shards);
+                    bindConstant().annotatedWith(Names.named("virtualNodes")).to(virtualNodes);
+                    sink = ShardedProtocolPluginSink.class;
+                } else {
+                    sink = ProtocolPluginSink.class;
+                }
 
                 if (flushInterval != null && flushInterval > 0) {
-                    bind(BatchedPluginSink.class).to(ProtocolPluginSink.class).in(Scopes.SINGLETON);
+                    bind(BatchedPluginSink.class).to(sink).in(Scopes.SINGLETON);
                     bind(key).toInstance(new FlushingPluginSink(flushInterval));
                 } else {
-                    bind(key).to(ProtocolPluginSink.class).in(Scopes.SINGLETON);
+                    bind(key).to(sink).in(Scopes.SINGLETON);
                 }
 
                 expose(key);
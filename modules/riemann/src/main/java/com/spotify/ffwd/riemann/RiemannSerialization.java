@@ -17,9 +17,8 @@
 package com.spotify.ffwd.riemann;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.ByteBufInputStream;
-import io.netty.buffer.ByteBufOutputStream;
-import io.netty.buffer.Unpooled;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -36,9 +35,25 @@ import com.aphyr.riemann.Proto;
 import com.google.common.collect.ImmutableList;
 import com.spotify.ffwd.model.Event;
 import com.spotify.ffwd.model.Metric;
+import com.spotify.ffwd.protobuf250.CodedOutputStream;
 import com.spotify.ffwd.protobuf250.InvalidProtocolBufferException;
+import com.spotify.ffwd.protobuf250.WireFormat;
 
 public class RiemannSerialization {
+    // field numbers, see proto/riemann.proto
+    private static final int MSG_EVENTS = 6;
+    private static final int EVENT_TIME = 1;
+    private static final int EVENT_STATE = 2;
+    private static final int EVENT_SERVICE = 3;
+    private static final int EVENT_HOST = 4;
+    private static final int EVENT_DESCRIPTION = 5;
+    private static final int EVENT_TAGS = 7;
+    private static final int EVENT_TTL = 8;
+    private static final int EVENT_ATTRIBUTES = 9;
+    private static final int EVENT_METRIC_D = 14;
+    private static final int ATTRIBUTE_KEY = 1;
+    private static final int ATTRIBUTE_VALUE = 2;
+
     public Proto.Msg parse0(ByteBuf buffer) throws IOException {
         final InputStream inputStream = new ByteBufInputStream(buffer);
 
@@ -63,94 +78,321 @@ public class RiemannSerialization {
         return events;
     }
 
-    public ByteBuf encode0(Object msg) throws IOException {
-        return encodeAll0(ImmutableList.of(msg));
+    public ByteBuf encode0(ByteBufAllocator alloc, Object msg) throws IOException {
+        return encodeAll0(alloc, ImmutableList.of(msg));
     }
 
-    public ByteBuf encodeAll0(Collection<Object> messages) throws IOException {
-        final Proto.Msg.Builder builder = Proto.Msg.newBuilder();
+    /**
+     * Encode a collection of messages into a single length-prefixed Proto.Msg frame.
+     *
+     * The size of the frame is calculated up front, which allows the entire frame to be written into a single (pooled)
+     * direct buffer without any intermediate builders or copies.
+     *
+     * @return A buffer containing the frame, or {@code null} if none of the messages could be encoded.
+     */
+    public ByteBuf encodeAll0(ByteBufAllocator alloc, Collection<Object> messages) throws IOException {
+        final Object[] source = messages.toArray();
+        final int[] sizes = eventSizes0(source);
+
+        int size = 0;
+
+        for (final int s : sizes) {
+            if (s >= 0)
+                size += embeddedSize0(s);
+        }
 
-        int valid = 0;
+        if (size <= 0)
+            return null;
+
+        return writeMsg0(alloc, source, sizes, 0, source.length, size, true);
+    }
+
+    /**
+     * Encode a collection of messages into Proto.Msg datagrams (without length prefix), each no larger than
+     * {@code maxSize} bytes.
+     *
+     * Messages are never split, a single message which is larger than {@code maxSize} is put in a datagram of its own.
+     *
+     * @return A list of buffers, one for each datagram.
+     */
+    public List<ByteBuf> encodeDatagrams0(ByteBufAllocator alloc, Collection<Object> messages, int maxSize) {
+        final Object[] source = messages.toArray();
+        final int[] sizes = eventSizes0(source);
+
+        final List<ByteBuf> datagrams = new ArrayList<>();
+
+        try {
+            int start = 0;
+            int size = 0;
 
-        for (final Object d : messages) {
-            if (d instanceof Metric) {
-                builder.addEvents(encodeMetric0((Metric) d));
-                ++valid;
-            } else if (d instanceof Event) {
-                builder.addEvents(encodeEvent0((Event) d));
-                ++valid;
+            for (int i = 0; i < source.length; i++) {
+                if (sizes[i] < 0)
+                    continue;
+
+                final int s = embeddedSize0(sizes[i]);
+
+                if (size > 0 && size + s > maxSize) {
+                    datagrams.add(writeMsg0(alloc, source, sizes, start, i, size, false));
+                    start = i;
+                    size = 0;
+                }
+
+                size += s;
             }
+
+            if (size > 0)
+                datagrams.add(writeMsg0(alloc, source, sizes, start, source.length, size, false));
+        } catch (final RuntimeException e) {
+            for (final ByteBuf b : datagrams)
+                b.release();
+
+            throw e;
         }
 
-        if (valid <= 0)
-            return null;
+        return datagrams;
+    }
+
+    private int[] eventSizes0(final Object[] source) {
+        final int[] sizes = new int[source.length];
 
-        final Proto.Msg m = builder.build();
+        for (int i = 0; i < source.length; i++)
+            sizes[i] = eventSize0(source[i]);
 
-        final ByteBuf work = Unpooled.buffer();
+        return sizes;
+    }
 
-        try (final ByteBufOutputStream output = new ByteBufOutputStream(work)) {
-            m.writeTo(output);
+    /**
+     * Write the messages in the range {@code [from, to)} as a single Proto.Msg of the given (pre-calculated) size.
+     */
+    private ByteBuf writeMsg0(final ByteBufAllocator alloc, final Object[] source, final int[] sizes, final int from,
+            final int to, final int size, final boolean lengthPrefix) {
+        final ByteBuf buffer = alloc.directBuffer(lengthPrefix ? 4 + size : size);
 
-            final ByteBuf result = Unpooled.buffer();
+        try {
+            if (lengthPrefix)
+                buffer.writeInt(size);
 
-            result.writeInt(work.writerIndex());
-            result.writeBytes(work);
+            for (int i = from; i < to; i++) {
+                if (sizes[i] < 0)
+                    continue;
 
-            return result;
-        } finally {
-            work.release();
+                writeTag(buffer, MSG_EVENTS, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                writeVarint(buffer, sizes[i]);
+                writeEvent0(buffer, source[i]);
+            }
+        } catch (final RuntimeException e) {
+            buffer.release();
+            throw e;
         }
+
+        return buffer;
     }
 
-    private Proto.Event.Builder encodeMetric0(final Metric d) {
-        final Proto.Event.Builder b = Proto.Event.newBuilder();
+    /**
+     * Size of a Proto.Msg field containing an embedded message of the given size.
+     */
+    private int embeddedSize0(final int size) {
+        return 1 + CodedOutputStream.computeRawVarint32Size(size) + size;
+    }
 
-        if (d.getKey() != null)
-            b.setService(d.getKey());
+    /**
+     * Calculate the encoded size of the given message as a Proto.Event.
+     *
+     * @return The encoded size, or {@code -1} if the message can not be encoded.
+     */
+    private int eventSize0(final Object d) {
+        if (d instanceof Metric) {
+            final Metric m = (Metric) d;
+            return commonSize0(m.getKey(), m.getHost(), m.getTime(), m.getTags(), m.getAttributes());
+        }
+
+        if (d instanceof Event) {
+            final Event e = (Event) d;
 
-        if (d.getHost() != null)
-            b.setHost(d.getHost());
+            int size = commonSize0(e.getKey(), e.getHost(), e.getTime(), e.getTags(), e.getAttributes());
 
-        b.setMetricD(d.getValue());
-        b.addAllAttributes(convertAttributes0(d.getAttributes()));
-        b.addAllTags(d.getTags());
-        b.setTime(d.getTime().getTime());
+            if (e.getState() != null)
+                size += stringSize(e.getState());
 
-        return b;
+            if (e.getDescription() != null)
+                size += stringSize(e.getDescription());
+
+            // ttl
+            size += 1 + 4;
+            return size;
+        }
+
+        return -1;
     }
 
-    private Proto.Event.Builder encodeEvent0(final Event d) {
-        final Proto.Event.Builder b = Proto.Event.newBuilder();
-        if (d.getKey() != null)
-            b.setService(d.getKey());
+    private int commonSize0(final String key, final String host, final Date time, final Set<String> tags,
+            final Map<String, String> attributes) {
+        // metric_d
+        int size = 1 + 8;
 
-        if (d.getHost() != null)
-            b.setHost(d.getHost());
+        if (time != null)
+            size += 1 + CodedOutputStream.computeRawVarint64Size(time.getTime());
 
-        b.setMetricD(d.getValue());
-        b.addAllAttributes(convertAttributes0(d.getAttributes()));
-        b.addAllTags(d.getTags());
-        b.setTime(d.getTime().getTime());
+        if (key != null)
+            size += stringSize(key);
 
-        if (d.getDescription() != null)
-            b.setDescription(d.getDescription());
+        if (host != null)
+            size += stringSize(host);
 
-        b.setTtl(d.getTtl());
+        for (final String tag : tags) {
+            if (tag != null)
+                size += stringSize(tag);
+        }
 
-        if (d.getState() != null)
-            b.setState(d.getState());
+        for (final Map.Entry<String, String> a : attributes.entrySet()) {
+            // the key of an attribute is required.
+            if (a.getKey() != null)
+                size += embeddedSize0(attributeSize0(a));
+        }
 
-        return b;
+        return size;
     }
 
-    private Iterable<? extends Proto.Attribute> convertAttributes0(Map<String, String> source) {
-        final List<Proto.Attribute> attributes = new ArrayList<>();
+    private int attributeSize0(final Map.Entry<String, String> a) {
+        int size = stringSize(a.getKey());
 
-        for (final Map.Entry<String, String> e : source.entrySet())
-            attributes.add(Proto.Attribute.newBuilder().setKey(e.getKey()).setValue(e.getValue()).build());
+        if (a.getValue() != null)
+            size += stringSize(a.getValue());
 
-        return attributes;
+        return size;
+    }
+
+    private void writeEvent0(final ByteBuf out, final Object d) {
+        if (d instanceof Metric) {
+            final Metric m = (Metric) d;
+            writeCommon0(out, m.getKey(), m.getHost(), m.getTime(), m.getTags(), m.getAttributes(), m.getValue());
+            return;
+        }
+
+        final Event e = (Event) d;
+
+        writeCommon0(out, e.getKey(), e.getHost(), e.getTime(), e.getTags(), e.getAttributes(), e.getValue());
+
+        if (e.getState() != null)
+            writeString(out, EVENT_STATE, e.getState());
+
+        if (e.getDescription() != null)
+            writeString(out, EVENT_DESCRIPTION, e.getDescription());
+
+        writeTag(out, EVENT_TTL, WireFormat.WIRETYPE_FIXED32);
+        out.writeInt(Integer.reverseBytes(Float.floatToRawIntBits(e.getTtl())));
+    }
+
+    private void writeCommon0(final ByteBuf out, final String key, final String host, final Date time,
+            final Set<String> tags, final Map<String, String> attributes, final double value) {
+        if (time != null) {
+            writeTag(out, EVENT_TIME, WireFormat.WIRETYPE_VARINT);
+            writeVarint(out, time.getTime());
+        }
+
+        if (key != null)
+            writeString(out, EVENT_SERVICE, key);
+
+        if (host != null)
+            writeString(out, EVENT_HOST, host);
+
+        for (final String tag : tags) {
+            if (tag != null)
+                writeString(out, EVENT_TAGS, tag);
+        }
+
+        for (final Map.Entry<String, String> a : attributes.entrySet()) {
+            if (a.getKey() == null)
+                continue;
+
+            writeTag(out, EVENT_ATTRIBUTES, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            writeVarint(out, attributeSize0(a));
+            writeString(out, ATTRIBUTE_KEY, a.getKey());
+
+            if (a.getValue() != null)
+                writeString(out, ATTRIBUTE_VALUE, a.getValue());
+        }
+
+        writeTag(out, EVENT_METRIC_D, WireFormat.WIRETYPE_FIXED64);
+        out.writeLong(Long.reverseBytes(Double.doubleToRawLongBits(value)));
+    }
+
+    /**
+     * Size of a string field, all fields used have numbers below 16 so the tag is always a single byte.
+     */
+    private static int stringSize(final String value) {
+        final int length = utf8Length(value);
+        return 1 + CodedOutputStream.computeRawVarint32Size(length) + length;
+    }
+
+    private static void writeTag(final ByteBuf out, final int field, final int wireType) {
+        out.writeByte((field << 3) | wireType);
+    }
+
+    private static void writeVarint(final ByteBuf out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+
+        out.writeByte((int) value);
+    }
+
+    private static void writeString(final ByteBuf out, final int field, final String value) {
+        writeTag(out, field, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        writeVarint(out, utf8Length(value));
+
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+
+            if (c < 0x80) {
+                out.writeByte(c);
+            } else if (c < 0x800) {
+                out.writeByte(0xc0 | (c >> 6));
+                out.writeByte(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(c, value.charAt(++i));
+                out.writeByte(0xf0 | (cp >> 18));
+                out.writeByte(0x80 | ((cp >> 12) & 0x3f));
+                out.writeByte(0x80 | ((cp >> 6) & 0x3f));
+                out.writeByte(0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate, encoded as '?' like String#getBytes does.
+                out.writeByte('?');
+            } else {
+                out.writeByte(0xe0 | (c >> 12));
+                out.writeByte(0x80 | ((c >> 6) & 0x3f));
+                out.writeByte(0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    /**
+     * Length of the given string when encoded as UTF-8, without encoding it.
+     */
+    private static int utf8Length(final String value) {
+        int length = 0;
+
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                ++i;
+            } else if (Character.isSurrogate(c)) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+
+        return length;
     }
 
     private Map<String, String> convertAttributes0(List<Proto.Attribute> attributesList) {
@@ -18,89 +18,172 @@ package com.spotify.ffwd.riemann;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
-import io.netty.channel.ChannelOutboundHandlerAdapter;
 import io.netty.channel.ChannelPromise;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
 import java.util.Collection;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Deque;
 
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
+import com.aphyr.riemann.Proto;
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
 import com.spotify.ffwd.protocol.ProtocolClient;
 
+/**
+ * Pipelined Riemann client.
+ *
+ * Riemann acknowledges each message in the order they were received, which allows each ack to be matched against the
+ * oldest in-flight message. A write is only completed when its ack arrives, and at most {@code window} messages are
+ * in-flight at a time. Additional writes wait in a bounded backlog until the window has room.
+ *
+ * Messages which are in-flight when a connection is lost are failed, which lets the connection re-send them once
+ * connected again.
+ */
 @Slf4j
 public class RiemannTCPProtocolClient implements ProtocolClient {
     private static final int MAX_LENGTH = 0xffffff;
-    private static final int WARNING_ACK_THRESHOLD = 100;
 
     @Inject
     private RiemannSerialization serializer;
 
-    private final AtomicInteger pending = new AtomicInteger();
-
-    private final ChannelInboundHandlerAdapter receiver = new ChannelInboundHandlerAdapter() {
-        @Override
-        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-            final int p = pending.decrementAndGet();
+    @Inject
+    @Named("window")
+    private int window;
 
-            if (p > WARNING_ACK_THRESHOLD)
-                log.warn("number of pending acks are high ({})", p);
-        }
+    @Inject
+    @Named("backlog")
+    private int backlog;
 
-        @Override
-        public boolean isSharable() {
-            return true;
+    @Override
+    public ChannelInitializer<Channel> initializer() {
+        return new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) throws Exception {
+                final LengthFieldBasedFrameDecoder lengthPrefix = new LengthFieldBasedFrameDecoder(MAX_LENGTH, 0, 4);
+                ch.pipeline().addLast(lengthPrefix, new AckWindow());
+            }
         };
-    };
+    }
+
+    @RequiredArgsConstructor
+    private static final class InFlight {
+        private final ByteBuf frame;
+        private final ChannelPromise promise;
+    }
+
+    /**
+     * Keeps track of in-flight messages for a single channel.
+     *
+     * All methods are called on the event loop of the channel, so no further synchronization is necessary.
+     */
+    private final class AckWindow extends ChannelDuplexHandler {
+        private final Deque<ChannelPromise> inFlight = new ArrayDeque<>();
+        private final Deque<InFlight> waiting = new ArrayDeque<>();
 
-    private final ChannelOutboundHandlerAdapter sender = new ChannelOutboundHandlerAdapter() {
         @SuppressWarnings("unchecked")
         @Override
         public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
-            final ByteBuf buf;
+            final ByteBuf frame;
 
             if (msg instanceof Collection) {
-                buf = serializer.encodeAll0((Collection<Object>) msg);
+                frame = serializer.encodeAll0(ctx.alloc(), (Collection<Object>) msg);
             } else {
-                buf = serializer.encode0(msg);
+                frame = serializer.encode0(ctx.alloc(), msg);
+            }
+
+            // nothing that can be sent to riemann.
+            if (frame == null) {
+                promise.trySuccess();
+                return;
             }
 
-            if (buf == null)
+            if (waiting.size() >= backlog) {
+                frame.release();
+                promise.tryFailure(new IOException("backlog full, " + waiting.size() + " messages waiting for acks"));
                 return;
+            }
 
-            pending.incrementAndGet();
+            waiting.add(new InFlight(frame, promise));
+            drain(ctx);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            final Proto.Msg ack;
+
+            final ByteBuf frame = (ByteBuf) msg;
 
             try {
-                ctx.writeAndFlush(buf);
-            } catch (Exception e) {
-                log.error("failed to write", e);
+                // skip length prefix.
+                frame.skipBytes(4);
+                ack = serializer.parse0(frame);
+            } finally {
+                frame.release();
             }
-        };
+
+            final ChannelPromise promise = inFlight.poll();
+
+            if (promise == null) {
+                log.warn("Received ack without any message in-flight");
+                return;
+            }
+
+            if (ack.getOk()) {
+                promise.trySuccess();
+            } else {
+                promise.tryFailure(new IOException("riemann: " + ack.getError()));
+            }
+
+            drain(ctx);
+        }
 
         @Override
-        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
-            log.error("error when sending");
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            final ClosedChannelException cause = new ClosedChannelException();
+
+            while (!inFlight.isEmpty())
+                inFlight.poll().tryFailure(cause);
+
+            while (!waiting.isEmpty()) {
+                final InFlight f = waiting.poll();
+                f.frame.release();
+                f.promise.tryFailure(cause);
+            }
+
+            super.channelInactive(ctx);
         }
 
         @Override
-        public boolean isSharable() {
-            return true;
-        };
-    };
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            // acks can no longer be matched against messages reliably.
+            log.error("Error in riemann connection, closing", cause);
+            ctx.close();
+        }
 
-    @Override
-    public ChannelInitializer<Channel> initializer() {
-        return new ChannelInitializer<Channel>() {
-            @Override
-            protected void initChannel(Channel ch) throws Exception {
-                final LengthFieldBasedFrameDecoder lengthPrefix = new LengthFieldBasedFrameDecoder(MAX_LENGTH, 0, 4);
-                ch.pipeline().addLast(lengthPrefix, receiver, sender);
+        /**
+         * Write waiting messages, as long as there is room in the window.
+         */
+        private void drain(ChannelHandlerContext ctx) {
+            boolean written = false;
+
+            while (inFlight.size() < window && !waiting.isEmpty()) {
+                final InFlight f = waiting.poll();
+                inFlight.add(f.promise);
+                ctx.write(f.frame);
+                written = true;
             }
-        };
+
+            if (written)
+                ctx.flush();
+        }
     }
-}
\ No newline at end of file
+}
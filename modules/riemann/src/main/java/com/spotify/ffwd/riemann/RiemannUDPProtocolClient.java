@@ -0,0 +1,118 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.riemann;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.spotify.ffwd.protocol.ProtocolClient;
+
+/**
+ * Riemann client sending events as datagrams.
+ *
+ * Riemann does not acknowledge datagrams, so a write is completed as soon as all of its datagrams have been written to
+ * the socket. Batches are split into as many datagrams as necessary to keep each one below {@code maxDatagramSize}.
+ */
+public class RiemannUDPProtocolClient implements ProtocolClient {
+    @Inject
+    private RiemannSerialization serializer;
+
+    @Inject
+    @Named("maxDatagramSize")
+    private int maxDatagramSize;
+
+    private final DatagramEncoder encoder = new DatagramEncoder();
+
+    @Override
+    public ChannelInitializer<Channel> initializer() {
+        return new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) throws Exception {
+                ch.pipeline().addLast(encoder);
+            }
+        };
+    }
+
+    @Sharable
+    private final class DatagramEncoder extends ChannelOutboundHandlerAdapter {
+        @SuppressWarnings("unchecked")
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            final Collection<Object> messages;
+
+            if (msg instanceof Collection) {
+                messages = (Collection<Object>) msg;
+            } else {
+                messages = ImmutableList.of(msg);
+            }
+
+            final List<ByteBuf> datagrams = serializer.encodeDatagrams0(ctx.alloc(), messages, maxDatagramSize);
+
+            // nothing that can be sent to riemann.
+            if (datagrams.isEmpty()) {
+                promise.trySuccess();
+                return;
+            }
+
+            if (datagrams.size() == 1) {
+                ctx.write(datagrams.get(0), promise);
+                return;
+            }
+
+            final ChannelFutureListener listener = new AllWritten(datagrams.size(), promise);
+
+            for (final ByteBuf datagram : datagrams)
+                ctx.write(datagram).addListener(listener);
+        }
+    }
+
+    /**
+     * Completes a promise when a number of writes have completed, failing it if any of them failed.
+     */
+    private static final class AllWritten implements ChannelFutureListener {
+        private final AtomicInteger remaining;
+        private final ChannelPromise promise;
+
+        private AllWritten(final int count, final ChannelPromise promise) {
+            this.remaining = new AtomicInteger(count);
+            this.promise = promise;
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+            if (!future.isSuccess())
+                promise.tryFailure(future.cause());
+
+            if (remaining.decrementAndGet() == 0)
+                promise.trySuccess();
+        }
+    }
+}
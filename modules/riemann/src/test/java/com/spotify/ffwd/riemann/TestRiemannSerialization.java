@@ -0,0 +1,203 @@
+// $LICENSE
+/**
+ * Copyright 2013-2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ **/
+package com.spotify.ffwd.riemann;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.aphyr.riemann.Proto;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.spotify.ffwd.model.Event;
+import com.spotify.ffwd.model.Metric;
+
+/**
+ * Checks the hand-written encoder against the protobuf schema, by parsing its output with the generated classes.
+ */
+public class TestRiemannSerialization {
+    private static final UnpooledByteBufAllocator ALLOC = UnpooledByteBufAllocator.DEFAULT;
+
+    private final RiemannSerialization serialization = new RiemannSerialization();
+
+    @Test
+    public void testMetric() throws IOException {
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put("what", "latency");
+        attributes.put("r\u00e9gion", "z\u00fcrich \u2603");
+        attributes.put("empty", "");
+
+        final Metric metric = new Metric("k\u00e9y \ud83d\ude00", 42.5, new Date(1420070400123L), "h\u00f6st",
+                ImmutableSet.of("a", "t\u00e4g", ""), attributes, null);
+
+        final Proto.Msg msg = frame(serialization.encodeAll0(ALLOC, ImmutableList.<Object> of(metric)));
+
+        Assert.assertEquals(1, msg.getEventsCount());
+
+        final Proto.Event e = msg.getEvents(0);
+        Assert.assertEquals(metric.getKey(), e.getService());
+        Assert.assertEquals(metric.getHost(), e.getHost());
+        Assert.assertEquals(metric.getTime().getTime(), e.getTime());
+        Assert.assertEquals(metric.getValue(), e.getMetricD(), 0.0);
+        Assert.assertEquals(metric.getTags(), ImmutableSet.copyOf(e.getTagsList()));
+        Assert.assertEquals(attributes, attributes(e));
+        Assert.assertFalse(e.hasState());
+        Assert.assertFalse(e.hasDescription());
+        Assert.assertFalse(e.hasTtl());
+    }
+
+    @Test
+    public void testEvent() throws IOException {
+        final Event event = new Event("s\u00e9rvice", -1.25, new Date(1420070400000L), 300, "cr\u00eftical",
+                "d\u00e9scription \u4e2d\u6587", "host", ImmutableSet.of("tag"), ImmutableMap.of("a", "b"));
+
+        final Proto.Msg msg = frame(serialization.encodeAll0(ALLOC, ImmutableList.<Object> of(event)));
+
+        Assert.assertEquals(1, msg.getEventsCount());
+
+        final Proto.Event e = msg.getEvents(0);
+        Assert.assertEquals(event.getKey(), e.getService());
+        Assert.assertEquals(event.getHost(), e.getHost());
+        Assert.assertEquals(event.getTime().getTime(), e.getTime());
+        Assert.assertEquals(event.getValue(), e.getMetricD(), 0.0);
+        Assert.assertEquals(event.getState(), e.getState());
+        Assert.assertEquals(event.getDescription(), e.getDescription());
+        Assert.assertEquals(event.getTtl(), e.getTtl(), 0.0);
+        Assert.assertEquals(event.getTags(), ImmutableSet.copyOf(e.getTagsList()));
+        Assert.assertEquals(event.getAttributes(), attributes(e));
+
+        // decoding gives back the original event.
+        Assert.assertEquals(ImmutableList.<Object> of(event), serialization.decode0(msg));
+    }
+
+    @Test
+    public void testMissingFields() throws IOException {
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put("novalue", null);
+        attributes.put(null, "nokey");
+
+        final Metric metric = new Metric(null, 0, null, null, ImmutableSet.<String> of(), attributes, null);
+        final Event event = new Event("", 0, null, 0, null, null, null, ImmutableSet.<String> of(),
+                ImmutableMap.<String, String> of());
+
+        final Proto.Msg msg = frame(serialization.encodeAll0(ALLOC, ImmutableList.<Object> of(metric, event)));
+
+        Assert.assertEquals(2, msg.getEventsCount());
+
+        final Proto.Event m = msg.getEvents(0);
+        Assert.assertFalse(m.hasService());
+        Assert.assertFalse(m.hasHost());
+        Assert.assertFalse(m.hasTime());
+        Assert.assertEquals(0, m.getTagsCount());
+
+        // attributes without a key are skipped, and attributes without a value have no value.
+        Assert.assertEquals(1, m.getAttributesCount());
+        Assert.assertEquals("novalue", m.getAttributes(0).getKey());
+        Assert.assertFalse(m.getAttributes(0).hasValue());
+
+        final Proto.Event e = msg.getEvents(1);
+        Assert.assertTrue(e.hasService());
+        Assert.assertEquals("", e.getService());
+        Assert.assertFalse(e.hasState());
+        Assert.assertFalse(e.hasDescription());
+        Assert.assertEquals(0, e.getAttributesCount());
+    }
+
+    @Test
+    public void testUnpairedSurrogate() throws IOException {
+        final String key = "a\ud83db\ude00c\ud83d";
+        final Metric metric = new Metric(key, 1, null, null, ImmutableSet.<String> of(),
+                ImmutableMap.<String, String> of(), null);
+
+        final Proto.Msg msg = frame(serialization.encodeAll0(ALLOC, ImmutableList.<Object> of(metric)));
+
+        // encoded like String#getBytes does.
+        Assert.assertEquals(new String(key.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8),
+                msg.getEvents(0).getService());
+    }
+
+    @Test
+    public void testUnsupported() throws IOException {
+        Assert.assertNull(serialization.encodeAll0(ALLOC, ImmutableList.<Object> of("not a message")));
+    }
+
+    @Test
+    public void testDatagrams() throws IOException {
+        final List<Object> messages = new ArrayList<>();
+
+        for (int i = 0; i < 100; i++) {
+            messages.add(new Metric("metric-\u00e9-" + i, i, new Date(i), "host", ImmutableSet.of("tag"),
+                    ImmutableMap.of("index", String.valueOf(i)), null));
+        }
+
+        final int maxSize = 512;
+        final List<ByteBuf> datagrams = serialization.encodeDatagrams0(ALLOC, messages, maxSize);
+
+        Assert.assertTrue(datagrams.size() > 1);
+
+        int i = 0;
+
+        for (final ByteBuf datagram : datagrams) {
+            Assert.assertTrue(datagram.readableBytes() <= maxSize);
+
+            for (final Proto.Event e : Proto.Msg.parseFrom(bytes(datagram)).getEventsList()) {
+                final Metric m = (Metric) messages.get(i++);
+                Assert.assertEquals(m.getKey(), e.getService());
+                Assert.assertEquals(m.getValue(), e.getMetricD(), 0.0);
+                Assert.assertEquals(m.getAttributes(), attributes(e));
+            }
+        }
+
+        Assert.assertEquals(messages.size(), i);
+    }
+
+    /**
+     * Parse a length-prefixed frame, checking that the prefix matches the size of the message.
+     */
+    private Proto.Msg frame(final ByteBuf frame) throws IOException {
+        final int size = frame.readInt();
+        Assert.assertEquals(size, frame.readableBytes());
+        return Proto.Msg.parseFrom(bytes(frame));
+    }
+
+    private byte[] bytes(final ByteBuf buffer) {
+        final byte[] bytes = new byte[buffer.readableBytes()];
+        buffer.readBytes(bytes);
+        buffer.release();
+        return bytes;
+    }
+
+    private Map<String, String> attributes(final Proto.Event e) {
+        final Map<String, String> attributes = new HashMap<>();
+
+        for (final Proto.Attribute a : e.getAttributesList())
+            attributes.put(a.getKey(), a.getValue());
+
+        return attributes;
+    }
+}